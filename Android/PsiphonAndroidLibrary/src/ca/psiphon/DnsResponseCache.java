@@ -0,0 +1,415 @@
+/*
+ * Copyright (c) 2015, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Caches DNS responses for whole device mode, where tun2socks forwards every
+// query sent to the VPN interface address through the tunnel via udpgw.
+//
+// tun2socks offers each query to lookup() before forwarding it and each
+// response to onResponse() before writing it to the device. Responses are
+// cached for the lowest TTL they contain (capped), keyed on the question and
+// the query's DNSSEC CD and EDNS DO bits, which change the answer, and served
+// with the querier's ID and question and with TTLs reduced by the time spent
+// in the cache. A query for a question that is already in flight is held and
+// answered when the first response arrives, instead of being forwarded again.
+// A retransmit, from the same client address, port and ID as a query already
+// forwarded or held, is always forwarded: the client resends because the
+// query or its response was lost.
+//
+// Addresses and ports are opaque values passed through from tun2socks.
+class DnsResponseCache {
+
+    public interface ResponseWriter {
+        public void writeResponse(int clientAddress, int clientPort, byte[] response);
+    }
+
+    private static final int MAX_ENTRIES = 1000;
+    private static final long MAX_TTL_SECONDS = 3600;
+    private static final long IN_FLIGHT_TIMEOUT_MS = 5000;
+    private static final int MAX_WAITERS = 16;
+
+    private static final int HEADER_LENGTH = 12;
+    private static final int TYPE_OPT = 41;
+    private static final int RCODE_NOERROR = 0;
+    private static final int RCODE_NXDOMAIN = 3;
+
+    // Key flags
+    private static final int FLAG_CD = 1;
+    private static final int FLAG_DO = 2;
+
+    private static class Entry {
+        final byte[] mResponse;
+        final int mQuestionEnd;
+        final int[] mTtlOffsets;
+        final long mStoredTime;
+        final long mExpiryTime;
+
+        Entry(byte[] response, int questionEnd, int[] ttlOffsets, long storedTime, long expiryTime) {
+            mResponse = response;
+            mQuestionEnd = questionEnd;
+            mTtlOffsets = ttlOffsets;
+            mStoredTime = storedTime;
+            mExpiryTime = expiryTime;
+        }
+    }
+
+    private static class Waiter {
+        final int mClientAddress;
+        final int mClientPort;
+        final byte[] mQuery;
+
+        Waiter(int clientAddress, int clientPort, byte[] query) {
+            mClientAddress = clientAddress;
+            mClientPort = clientPort;
+            mQuery = query;
+        }
+
+        boolean hasId(byte[] message) {
+            return message[0] == mQuery[0] && message[1] == mQuery[1];
+        }
+
+        boolean isRetransmit(int clientAddress, int clientPort, byte[] query) {
+            return clientAddress == mClientAddress && clientPort == mClientPort && hasId(query);
+        }
+    }
+
+    private static class InFlight {
+        final long mStartTime;
+        // The forwarded query, whose response releases the waiters
+        final Waiter mQuerier;
+        final List<Waiter> mWaiters = new ArrayList<Waiter>();
+
+        InFlight(long startTime, Waiter querier) {
+            mStartTime = startTime;
+            mQuerier = querier;
+        }
+    }
+
+    private final Map<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private final Map<String, InFlight> mInFlight = new HashMap<String, InFlight>();
+
+    private long mHits = 0;
+    private long mMisses = 0;
+    private long mCoalesced = 0;
+    private long mRetransmits = 0;
+
+    // Returns a response to send to the client; an empty array when the query
+    // will be answered once an identical query in flight completes; or null
+    // when the query should be forwarded.
+    public synchronized byte[] lookup(int clientAddress, int clientPort, byte[] query) {
+        if (query.length < HEADER_LENGTH
+                || (query[2] & 0xF8) != 0 // QR = query, OPCODE = standard query
+                || readUint16(query, 4) != 1) { // QDCOUNT
+            return null;
+        }
+        int questionEnd = skipQuestion(query);
+        if (questionEnd < 0) {
+            return null;
+        }
+        int flags = keyFlags(query, questionEnd);
+        if (flags < 0) {
+            return null;
+        }
+        String key = questionKey(query, questionEnd, flags);
+        long now = SystemClock.elapsedRealtime();
+
+        Entry entry = mEntries.get(key);
+        if (entry != null) {
+            if (now < entry.mExpiryTime) {
+                mHits++;
+                return buildResponse(entry, query, questionEnd, (now - entry.mStoredTime) / 1000);
+            }
+            mEntries.remove(key);
+        }
+        mMisses++;
+
+        InFlight inFlight = mInFlight.get(key);
+        if (inFlight != null && now - inFlight.mStartTime < IN_FLIGHT_TIMEOUT_MS) {
+            if (inFlight.mQuerier.isRetransmit(clientAddress, clientPort, query)) {
+                mRetransmits++;
+                return null;
+            }
+            Iterator<Waiter> iterator = inFlight.mWaiters.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().isRetransmit(clientAddress, clientPort, query)) {
+                    // Answered by the forwarded retransmit instead
+                    iterator.remove();
+                    mRetransmits++;
+                    return null;
+                }
+            }
+            if (inFlight.mWaiters.size() >= MAX_WAITERS) {
+                return null;
+            }
+            inFlight.mWaiters.add(new Waiter(clientAddress, clientPort, query));
+            mCoalesced++;
+            return new byte[0];
+        }
+
+        if (mInFlight.size() >= MAX_ENTRIES) {
+            expireInFlight(now);
+        }
+        mInFlight.put(key, new InFlight(now, new Waiter(clientAddress, clientPort, query)));
+        return null;
+    }
+
+    // Caches a response received from the tunnel and answers any queries held
+    // for it. The response itself is still delivered to its querier by the caller.
+    public synchronized void onResponse(byte[] response, ResponseWriter writer) {
+        if (response.length < HEADER_LENGTH
+                || (response[2] & 0x80) == 0 // QR = response
+                || readUint16(response, 4) != 1) { // QDCOUNT
+            return;
+        }
+        int questionEnd = skipQuestion(response);
+        if (questionEnd < 0) {
+            return;
+        }
+
+        int responseFlags = keyFlags(response, questionEnd);
+        if (responseFlags < 0) {
+            return;
+        }
+        String key = questionKey(response, questionEnd, responseFlags);
+        InFlight inFlight = mInFlight.get(key);
+        if (inFlight == null || !inFlight.mQuerier.hasId(response)) {
+            // Servers should echo the query's CD and DO bits, but don't always:
+            // look for the query forwarded with the response's ID
+            for (int flags = 0; flags <= (FLAG_CD | FLAG_DO); flags++) {
+                if (flags == responseFlags) {
+                    continue;
+                }
+                String flagsKey = questionKey(response, questionEnd, flags);
+                InFlight flagsInFlight = mInFlight.get(flagsKey);
+                if (flagsInFlight != null && flagsInFlight.mQuerier.hasId(response)) {
+                    key = flagsKey;
+                    inFlight = flagsInFlight;
+                    break;
+                }
+            }
+        }
+        long now = SystemClock.elapsedRealtime();
+
+        Entry entry = newEntry(response, questionEnd, now);
+        if (entry != null) {
+            mEntries.put(key, entry);
+        }
+
+        if (inFlight == null) {
+            return;
+        }
+        mInFlight.remove(key);
+        if (entry == null) {
+            // Uncacheable, e.g., SERVFAIL or truncated, but still the answer
+            entry = new Entry(response, questionEnd, new int[0], now, now);
+        }
+        for (Waiter waiter : inFlight.mWaiters) {
+            byte[] waiterResponse = buildResponse(entry, waiter.mQuery, skipQuestion(waiter.mQuery), 0);
+            if (waiterResponse != null) {
+                writer.writeResponse(waiter.mClientAddress, waiter.mClientPort, waiterResponse);
+            }
+        }
+    }
+
+    // Held queries can't be answered once the tun2socks run they arrived on ends.
+    public synchronized void clearInFlight() {
+        mInFlight.clear();
+    }
+
+    public synchronized String getStatistics() {
+        long lookups = mHits + mMisses;
+        return String.format("%d entries, %d hits, %d misses, %d coalesced, %d retransmits, %d%% hit rate",
+                mEntries.size(), mHits, mMisses, mCoalesced, mRetransmits, lookups == 0 ? 0 : (100 * mHits) / lookups);
+    }
+
+    private void expireInFlight(long now) {
+        Iterator<InFlight> iterator = mInFlight.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().mStartTime >= IN_FLIGHT_TIMEOUT_MS) {
+                iterator.remove();
+            }
+        }
+    }
+
+    // Returns null when the response isn't cacheable.
+    private static Entry newEntry(byte[] response, int questionEnd, long now) {
+        int rcode = response[3] & 0x0F;
+        if ((response[2] & 0x02) != 0 // TC
+                || (rcode != RCODE_NOERROR && rcode != RCODE_NXDOMAIN)) {
+            return null;
+        }
+        int recordCount = readUint16(response, 6) + readUint16(response, 8) + readUint16(response, 10);
+        int[] ttlOffsets = new int[recordCount];
+        int ttlCount = 0;
+        long minTtl = MAX_TTL_SECONDS;
+        int offset = questionEnd;
+        for (int i = 0; i < recordCount; i++) {
+            offset = skipName(response, offset);
+            if (offset < 0 || offset + 10 > response.length) {
+                return null;
+            }
+            int type = readUint16(response, offset);
+            // The OPT pseudo-record uses the TTL field for flags
+            if (type != TYPE_OPT) {
+                ttlOffsets[ttlCount++] = offset + 4;
+                minTtl = Math.min(minTtl, readUint32(response, offset + 4));
+            }
+            offset += 10 + readUint16(response, offset + 8);
+            if (offset > response.length) {
+                return null;
+            }
+        }
+        // Without any records, e.g., NODATA with no SOA, there's no TTL to honour
+        if (ttlCount == 0 || minTtl == 0) {
+            return null;
+        }
+        int[] offsets = new int[ttlCount];
+        System.arraycopy(ttlOffsets, 0, offsets, 0, ttlCount);
+        return new Entry(response, questionEnd, offsets, now, now + minTtl * 1000);
+    }
+
+    private static byte[] buildResponse(Entry entry, byte[] query, int queryQuestionEnd, long ageSeconds) {
+        // The questions have the same key, so they differ at most in case
+        if (queryQuestionEnd != entry.mQuestionEnd) {
+            return null;
+        }
+        byte[] response = entry.mResponse.clone();
+        response[0] = query[0];
+        response[1] = query[1];
+        // Keep RD as sent, in case the client checks it
+        response[2] = (byte)((response[2] & ~0x01) | (query[2] & 0x01));
+        System.arraycopy(query, HEADER_LENGTH, response, HEADER_LENGTH, queryQuestionEnd - HEADER_LENGTH);
+        if (ageSeconds > 0) {
+            for (int offset : entry.mTtlOffsets) {
+                writeUint32(response, offset, Math.max(0, readUint32(response, offset) - ageSeconds));
+            }
+        }
+        return response;
+    }
+
+    // Returns the offset following the single question, or -1 if it's malformed.
+    private static int skipQuestion(byte[] message) {
+        int offset = skipName(message, HEADER_LENGTH);
+        if (offset < 0 || offset + 4 > message.length) {
+            return -1;
+        }
+        return offset + 4;
+    }
+
+    // Returns the offset following the name at offset, or -1 if it's malformed.
+    private static int skipName(byte[] message, int offset) {
+        while (offset < message.length) {
+            int length = message[offset] & 0xFF;
+            if (length == 0) {
+                return offset + 1;
+            }
+            if ((length & 0xC0) == 0xC0) {
+                return offset + 2 <= message.length ? offset + 2 : -1;
+            }
+            if ((length & 0xC0) != 0) {
+                return -1;
+            }
+            offset += 1 + length;
+        }
+        return -1;
+    }
+
+    // Returns the key flags: the header's CD bit and the DO bit of the OPT
+    // pseudo-record, if any; or -1 if the records are malformed.
+    private static int keyFlags(byte[] message, int questionEnd) {
+        int flags = (message[3] & 0x10) != 0 ? FLAG_CD : 0;
+        int recordCount = readUint16(message, 6) + readUint16(message, 8) + readUint16(message, 10);
+        int offset = questionEnd;
+        for (int i = 0; i < recordCount; i++) {
+            offset = skipName(message, offset);
+            if (offset < 0 || offset + 10 > message.length) {
+                return -1;
+            }
+            // The OPT pseudo-record's TTL field is extended RCODE, version and flags
+            if (readUint16(message, offset) == TYPE_OPT && (message[offset + 6] & 0x80) != 0) {
+                flags |= FLAG_DO;
+            }
+            offset += 10 + readUint16(message, offset + 8);
+            if (offset > message.length) {
+                return -1;
+            }
+        }
+        return flags;
+    }
+
+    // Names are case insensitive, so only the QNAME label bytes are folded;
+    // the label lengths, QTYPE and QCLASS are copied as is, followed by the
+    // key flags. skipQuestion has already checked the labels.
+    private static String questionKey(byte[] message, int questionEnd, int flags) {
+        char[] key = new char[questionEnd - HEADER_LENGTH + 1];
+        int i = 0;
+        int labelEnd = 0;
+        for (; i < key.length - 1; i++) {
+            char c = (char)(message[HEADER_LENGTH + i] & 0xFF);
+            if (i == labelEnd) {
+                // A label length; the root label or a pointer ends QNAME
+                key[i] = c;
+                if (c == 0 || (c & 0xC0) != 0) {
+                    i++;
+                    break;
+                }
+                labelEnd = i + 1 + c;
+            } else {
+                key[i] = (c >= 'A' && c <= 'Z') ? (char)(c + ('a' - 'A')) : c;
+            }
+        }
+        for (; i < key.length - 1; i++) {
+            key[i] = (char)(message[HEADER_LENGTH + i] & 0xFF);
+        }
+        key[key.length - 1] = (char)flags;
+        return new String(key);
+    }
+
+    private static int readUint16(byte[] b, int offset) {
+        return ((b[offset] & 0xFF) << 8) | (b[offset + 1] & 0xFF);
+    }
+
+    private static long readUint32(byte[] b, int offset) {
+        return ((long)readUint16(b, offset) << 16) | readUint16(b, offset + 2);
+    }
+
+    private static void writeUint32(byte[] b, int offset, long value) {
+        b[offset] = (byte)(value >> 24);
+        b[offset + 1] = (byte)(value >> 16);
+        b[offset + 2] = (byte)(value >> 8);
+        b[offset + 3] = (byte)value;
+    }
+}
@@ -21,12 +21,15 @@ package ca.psiphon;
 
 import android.annotation.TargetApi;
 import android.content.Context;
+import android.content.pm.PackageManager;
 import android.net.ConnectivityManager;
 import android.net.LinkProperties;
 import android.net.NetworkInfo;
+import android.net.TrafficStats;
 import android.net.VpnService;
 import android.os.Build;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Base64;
 
 import org.apache.http.conn.util.InetAddressUtils;
@@ -54,11 +57,15 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 import go.psi.Psi;
@@ -96,6 +103,14 @@ public class PsiphonTunnel extends Psi.PsiphonProvider.Stub {
     private AtomicBoolean mRoutingThroughTunnel;
     private Thread mTun2SocksThread;
     private AtomicBoolean mIsWaitingForNetworkConnectivity;
+    private AtomicInteger mTun2SocksLogLevel;
+    private AtomicInteger mVpnInterfaceMTU;
+    private int[] mBypassUids;
+    private long mBypassStartTime;
+    private long mBypassBytesSent;
+    private long mBypassBytesReceived;
+    private AtomicLong mTunneledBytesSent;
+    private AtomicLong mTunneledBytesReceived;
 
     // Only one PsiphonVpn instance may exist at a time, as the underlying
     // go.psi.Psi and tun2socks implementations each contain global state.
@@ -117,6 +132,10 @@ public class PsiphonTunnel extends Psi.PsiphonProvider.Stub {
         mLocalSocksProxyPort = new AtomicInteger(0);
         mRoutingThroughTunnel = new AtomicBoolean(false);
         mIsWaitingForNetworkConnectivity = new AtomicBoolean(false);
+        mTun2SocksLogLevel = new AtomicInteger(TUN2SOCKS_LOG_LEVEL_WARNING);
+        mVpnInterfaceMTU = new AtomicInteger(DEFAULT_VPN_INTERFACE_MTU);
+        mTunneledBytesSent = new AtomicLong(0);
+        mTunneledBytesReceived = new AtomicLong(0);
     }
 
     public Object clone() throws CloneNotSupportedException {
@@ -127,6 +146,13 @@ public class PsiphonTunnel extends Psi.PsiphonProvider.Stub {
     // Public API
     //----------------------------------------------------------------------------------------------
 
+    // Sets the minimum level of tun2socks log lines passed on as diagnostic messages. Lines
+    // below this level are filtered out in the native code. Takes effect the next time
+    // tun2socks is started.
+    public void setTun2SocksLogLevel(int level) {
+        mTun2SocksLogLevel.set(Math.max(TUN2SOCKS_LOG_LEVEL_NONE, Math.min(level, TUN2SOCKS_LOG_LEVEL_DEBUG)));
+    }
+
     // To start, call in sequence: startRouting(), then startTunneling(). After startRouting()
     // succeeds, the caller must call stop() to clean up.
 
@@ -160,7 +186,9 @@ public class PsiphonTunnel extends Psi.PsiphonProvider.Stub {
     //----------------------------------------------------------------------------------------------
 
     private final static String VPN_INTERFACE_NETMASK = "255.255.255.0";
-    private final static int VPN_INTERFACE_MTU = 1500;
+    private final static int DEFAULT_VPN_INTERFACE_MTU = 1500;
+    private final static int MIN_VPN_INTERFACE_MTU = 1280;
+    private final static int MAX_VPN_INTERFACE_MTU = 1500;
     private final static int UDPGW_SERVER_PORT = 7300;
     private final static String DEFAULT_DNS_SERVER = "8.8.4.4";
     
@@ -174,6 +202,16 @@ public class PsiphonTunnel extends Psi.PsiphonProvider.Stub {
 
         mPrivateAddress = selectPrivateAddress();
 
+        // getPsiphonConfig() builds the config, with side effects, so it's only called once
+        JSONObject config;
+        try {
+            config = new JSONObject(mHostService.getPsiphonConfig());
+        } catch (JSONException e) {
+            // Use the defaults
+            config = new JSONObject();
+        }
+        mVpnInterfaceMTU.set(selectVpnInterfaceMTU(config));
+
         Locale previousLocale = Locale.getDefault();
 
         final String errorMessage = "startVpn failed";
@@ -181,12 +219,16 @@ public class PsiphonTunnel extends Psi.PsiphonProvider.Stub {
             // Workaround for https://code.google.com/p/android/issues/detail?id=61096
             Locale.setDefault(new Locale("en"));
 
-            ParcelFileDescriptor tunFd =
+            VpnService.Builder builder =
                 ((VpnService.Builder) mHostService.newVpnServiceBuilder())
                     .setSession(mHostService.getAppName())
-                    .setMtu(VPN_INTERFACE_MTU)
+                    .setMtu(mVpnInterfaceMTU.get())
                     .addAddress(mPrivateAddress.mIpAddress, mPrivateAddress.mPrefixLength)
-                    .addRoute("0.0.0.0", 0)
+                    .addRoute("0.0.0.0", 0);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                addBypassApplications(builder, config);
+            }
+            ParcelFileDescriptor tunFd = builder
                     .addRoute(mPrivateAddress.mSubnet, mPrivateAddress.mPrefixLength)
                     .addDnsServer(mPrivateAddress.mRouter)
                     .establish();
@@ -213,6 +255,148 @@ public class PsiphonTunnel extends Psi.PsiphonProvider.Stub {
         return true;
     }
     
+    // The VPN interface MTU is taken from the "VpnInterfaceMTU" config value when set.
+    // Otherwise, when "VpnInterfaceMTUAutoTune" is set, it's the smallest MTU of the
+    // device's active network interfaces, so packets from the VPN interface are never
+    // larger than the underlying network can carry. The same value is used for the
+    // VPN interface and tun2socks.
+    private int selectVpnInterfaceMTU(JSONObject config) {
+        int mtu = DEFAULT_VPN_INTERFACE_MTU;
+        String source = "default";
+        int configuredMTU = config.optInt("VpnInterfaceMTU", 0);
+        if (configuredMTU > 0) {
+            mtu = configuredMTU;
+            source = "configured";
+        } else if (config.optBoolean("VpnInterfaceMTUAutoTune", false)) {
+            int probedMTU = probeNetworkMTU();
+            if (probedMTU > 0) {
+                mtu = probedMTU;
+                source = "probed";
+            }
+        }
+        mtu = Math.max(MIN_VPN_INTERFACE_MTU, Math.min(mtu, MAX_VPN_INTERFACE_MTU));
+        mHostService.onDiagnosticMessage("VPN interface MTU: " + Integer.toString(mtu) + " (" + source + ")");
+        return mtu;
+    }
+
+    // Apps listed in the "VpnBypassApplications" config value (package names) are
+    // excluded from the VPN and connect directly, so their traffic, often bulk updates
+    // and backups, doesn't compete for tun2socks. When the VPN stops, the session's
+    // tunneled traffic, from the BytesTransferred notices, is reported with the number
+    // of bypass apps and their traffic, where TrafficStats reports it: from Android N,
+    // it's UNSUPPORTED for other apps' UIDs, and the NetworkStatsManager alternative
+    // requires the PACKAGE_USAGE_STATS permission.
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void addBypassApplications(VpnService.Builder builder, JSONObject config) {
+        mBypassUids = new int[0];
+        JSONArray packageNames = config.optJSONArray("VpnBypassApplications");
+        if (packageNames == null) {
+            return;
+        }
+        Context context = mHostService.getContext();
+        PackageManager packageManager = context.getPackageManager();
+        List<Integer> uids = new ArrayList<Integer>();
+        for (int i = 0; i < packageNames.length(); i++) {
+            String packageName = packageNames.optString(i);
+            // Our own traffic must always use the VPN
+            if (packageName.length() == 0 || packageName.equals(context.getPackageName())) {
+                continue;
+            }
+            try {
+                int uid = packageManager.getApplicationInfo(packageName, 0).uid;
+                builder.addDisallowedApplication(packageName);
+                uids.add(uid);
+            } catch (PackageManager.NameNotFoundException e) {
+                // The app has been uninstalled since it was selected
+                mHostService.onDiagnosticMessage("bypass application not found: " + packageName);
+            }
+        }
+        mBypassUids = new int[uids.size()];
+        for (int i = 0; i < mBypassUids.length; i++) {
+            mBypassUids[i] = uids.get(i);
+        }
+        mBypassStartTime = SystemClock.elapsedRealtime();
+        mTunneledBytesSent.set(0);
+        mTunneledBytesReceived.set(0);
+        mBypassBytesSent = getBypassBytes(true);
+        mBypassBytesReceived = getBypassBytes(false);
+        if (mBypassUids.length > 0) {
+            mHostService.onDiagnosticMessage("VPN bypass applications: " + Integer.toString(mBypassUids.length));
+        }
+    }
+
+    // Returns TrafficStats.UNSUPPORTED unless the traffic of every bypass UID is available.
+    private long getBypassBytes(boolean sent) {
+        long total = 0;
+        for (int uid : mBypassUids) {
+            long bytes = sent ? TrafficStats.getUidTxBytes(uid) : TrafficStats.getUidRxBytes(uid);
+            if (bytes == TrafficStats.UNSUPPORTED) {
+                return TrafficStats.UNSUPPORTED;
+            }
+            total += bytes;
+        }
+        return total;
+    }
+
+    private void reportBypassTraffic() {
+        if (mBypassUids == null || mBypassUids.length == 0) {
+            return;
+        }
+        long seconds = Math.max(1, (SystemClock.elapsedRealtime() - mBypassStartTime) / 1000);
+        long tunneledSent = mTunneledBytesSent.get();
+        long tunneledReceived = mTunneledBytesReceived.get();
+        String bypassTraffic;
+        long bytesSent = getBypassBytes(true);
+        long bytesReceived = getBypassBytes(false);
+        if (mBypassBytesSent == TrafficStats.UNSUPPORTED || mBypassBytesReceived == TrafficStats.UNSUPPORTED ||
+                bytesSent == TrafficStats.UNSUPPORTED || bytesReceived == TrafficStats.UNSUPPORTED) {
+            // Stated as unavailable rather than reported as 0
+            bypassTraffic = "bypass bytes unavailable (TrafficStats UNSUPPORTED for other apps)";
+        } else {
+            long sent = bytesSent - mBypassBytesSent;
+            long received = bytesReceived - mBypassBytesReceived;
+            bypassTraffic =
+                    "bypass sent " + Long.toString(sent) +
+                    " bytes, received " + Long.toString(received) +
+                    " bytes (" + Long.toString((sent + received) / seconds) + " bytes/s)";
+        }
+        mHostService.onDiagnosticMessage(
+                "VPN session traffic in " + Long.toString(seconds) + " seconds: tunneled sent " +
+                Long.toString(tunneledSent) + " bytes, received " + Long.toString(tunneledReceived) +
+                " bytes (" + Long.toString((tunneledSent + tunneledReceived) / seconds) + " bytes/s); " +
+                Integer.toString(mBypassUids.length) + " bypass applications, " + bypassTraffic);
+        mBypassUids = null;
+    }
+
+    @TargetApi(Build.VERSION_CODES.GINGERBREAD)
+    private static int probeNetworkMTU() {
+        int minMTU = 0;
+        try {
+            for (NetworkInterface netInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                // Skip interfaces that don't carry traffic off the device, including
+                // any existing VPN interface
+                if (!netInterface.isUp() || netInterface.isLoopback() || netInterface.isVirtual() ||
+                        netInterface.getName().startsWith("tun")) {
+                    continue;
+                }
+                boolean hasIPv4Address = false;
+                for (InetAddress inetAddress : Collections.list(netInterface.getInetAddresses())) {
+                    if (InetAddressUtils.isIPv4Address(inetAddress.getHostAddress()) &&
+                            !inetAddress.isLinkLocalAddress()) {
+                        hasIPv4Address = true;
+                    }
+                }
+                int mtu = netInterface.getMTU();
+                if (hasIPv4Address && mtu > 0 && (minMTU == 0 || mtu < minMTU)) {
+                    minMTU = mtu;
+                }
+            }
+        } catch (SocketException e) {
+            return 0;
+        }
+        return minMTU;
+    }
+
     private boolean isVpnMode() {
         return mTunFd.get() != null;
     }
@@ -229,7 +413,7 @@ public class PsiphonTunnel extends Psi.PsiphonProvider.Stub {
         String udpgwServerAddress = "127.0.0.1:" + Integer.toString(UDPGW_SERVER_PORT);
         startTun2Socks(
                 mTunFd.get(),
-                VPN_INTERFACE_MTU,
+                mVpnInterfaceMTU.get(),
                 mPrivateAddress.mRouter,
                 VPN_INTERFACE_NETMASK,
                 socksServerAddress,
@@ -248,6 +432,7 @@ public class PsiphonTunnel extends Psi.PsiphonProvider.Stub {
                 tunFd.close();
             } catch (IOException e) {
             }
+            reportBypassTraffic();
         }
         waitStopTun2Socks();
         mRoutingThroughTunnel.set(false);
@@ -436,6 +621,8 @@ public class PsiphonTunnel extends Psi.PsiphonProvider.Stub {
             } else if (noticeType.equals("BytesTransferred")) {
                 diagnostic = false;
                 JSONObject data = notice.getJSONObject("data");
+                mTunneledBytesSent.addAndGet(data.getLong("sent"));
+                mTunneledBytesReceived.addAndGet(data.getLong("received"));
                 mHostService.onBytesTransferred(data.getLong("sent"), data.getLong("received"));
             }
 
@@ -535,6 +722,36 @@ public class PsiphonTunnel extends Psi.PsiphonProvider.Stub {
     // Tun2Socks
     //----------------------------------------------------------------------------------------------
 
+    // Log levels, as defined by badvpn's BLog
+    public static final int TUN2SOCKS_LOG_LEVEL_NONE = 0;
+    public static final int TUN2SOCKS_LOG_LEVEL_ERROR = 1;
+    public static final int TUN2SOCKS_LOG_LEVEL_WARNING = 2;
+    public static final int TUN2SOCKS_LOG_LEVEL_NOTICE = 3;
+    public static final int TUN2SOCKS_LOG_LEVEL_INFO = 4;
+    public static final int TUN2SOCKS_LOG_LEVEL_DEBUG = 5;
+
+    // tun2socks can log the same line many times in a row, e.g., for each failed
+    // connection. The first occurrence of a line within the batch interval is passed on
+    // immediately; repeats are counted and reported when the interval ends, by a timer
+    // so that a burst followed by silence is still reported.
+    private static final long TUN2SOCKS_LOG_BATCH_INTERVAL_MS = 10000;
+    private static final int TUN2SOCKS_LOG_BATCH_MAX_LINES = 100;
+    private static final Map<String, Integer> sTun2SocksLogRepeats = new LinkedHashMap<String, Integer>();
+    private static long sTun2SocksLogBatchStartTime = 0;
+    private static Timer sTun2SocksLogFlushTimer = null;
+
+    // DNS queries sent to the VPN interface address are answered from this cache
+    // when possible, instead of each making a round trip through the tunnel.
+    // Entries are kept across tun2socks restarts; TTLs still apply.
+    private static final DnsResponseCache sDnsResponseCache = new DnsResponseCache();
+    private static final DnsResponseCache.ResponseWriter sDnsResponseWriter =
+            new DnsResponseCache.ResponseWriter() {
+                @Override
+                public void writeResponse(int clientAddress, int clientPort, byte[] response) {
+                    writeDnsResponse(clientAddress, clientPort, response);
+                }
+            };
+
     @TargetApi(Build.VERSION_CODES.HONEYCOMB_MR1)
     private void startTun2Socks(
             final ParcelFileDescriptor vpnInterfaceFileDescriptor,
@@ -544,6 +761,8 @@ public class PsiphonTunnel extends Psi.PsiphonProvider.Stub {
             final String socksServerAddress,
             final String udpgwServerAddress,
             final boolean udpgwTransparentDNS) {
+        final int logLevel = mTun2SocksLogLevel.get();
+        sDnsResponseCache.clearInFlight();
         mTun2SocksThread = new Thread(new Runnable() {
             @Override
             public void run() {
@@ -554,9 +773,10 @@ public class PsiphonTunnel extends Psi.PsiphonProvider.Stub {
                         vpnNetMask,
                         socksServerAddress,
                         udpgwServerAddress,
-                        udpgwTransparentDNS ? 1 : 0);
+                        udpgwTransparentDNS ? 1 : 0,
+                        logLevel);
             }
-        });
+        }, "tun2socks");
         mTun2SocksThread.start();
         mHostService.onDiagnosticMessage("tun2socks started");
     }
@@ -570,15 +790,71 @@ public class PsiphonTunnel extends Psi.PsiphonProvider.Stub {
                 Thread.currentThread().interrupt();
             }
             mTun2SocksThread = null;
+            flushTun2SocksLogRepeats();
+            mHostService.onDiagnosticMessage("DNS cache: " + sDnsResponseCache.getStatistics());
             mHostService.onDiagnosticMessage("tun2socks stopped");
         }
     }
 
     public static void logTun2Socks(String level, String channel, String msg) {
         String logMsg = "tun2socks: " + level + "(" + channel + "): " + msg;
+        synchronized (sTun2SocksLogRepeats) {
+            long now = SystemClock.elapsedRealtime();
+            if (now - sTun2SocksLogBatchStartTime >= TUN2SOCKS_LOG_BATCH_INTERVAL_MS) {
+                flushTun2SocksLogRepeats();
+                sTun2SocksLogBatchStartTime = now;
+                if (sTun2SocksLogFlushTimer == null) {
+                    sTun2SocksLogFlushTimer = new Timer("tun2socks log", true);
+                }
+                sTun2SocksLogFlushTimer.schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        synchronized (sTun2SocksLogRepeats) {
+                            flushTun2SocksLogRepeats();
+                            // The next line starts a new interval, and schedules its flush
+                            sTun2SocksLogBatchStartTime = 0;
+                        }
+                    }
+                }, TUN2SOCKS_LOG_BATCH_INTERVAL_MS);
+            }
+            Integer repeats = sTun2SocksLogRepeats.get(logMsg);
+            if (repeats != null) {
+                sTun2SocksLogRepeats.put(logMsg, repeats + 1);
+                return;
+            }
+            if (sTun2SocksLogRepeats.size() < TUN2SOCKS_LOG_BATCH_MAX_LINES) {
+                sTun2SocksLogRepeats.put(logMsg, 0);
+            }
+        }
         mPsiphonTunnel.mHostService.onDiagnosticMessage(logMsg);
     }
 
+    private static void flushTun2SocksLogRepeats() {
+        synchronized (sTun2SocksLogRepeats) {
+            for (Map.Entry<String, Integer> entry : sTun2SocksLogRepeats.entrySet()) {
+                if (entry.getValue() > 0) {
+                    mPsiphonTunnel.mHostService.onDiagnosticMessage(
+                            entry.getKey() + " (repeated " + entry.getValue() + " times)");
+                }
+            }
+            sTun2SocksLogRepeats.clear();
+        }
+    }
+
+    // Called by tun2socks, on its thread, for each DNS query from the device.
+    // See DnsResponseCache.lookup for the meaning of the result.
+    public static byte[] lookupDnsCache(int clientAddress, int clientPort, byte[] query) {
+        return sDnsResponseCache.lookup(clientAddress, clientPort, query);
+    }
+
+    // Called by tun2socks, on its thread, for each DNS response from the tunnel.
+    public static void onDnsResponse(byte[] response) {
+        sDnsResponseCache.onResponse(response, sDnsResponseWriter);
+    }
+
+    // Only valid on the tun2socks thread, while in a lookupDnsCache or onDnsResponse call.
+    private native static void writeDnsResponse(int clientAddress, int clientPort, byte[] response);
+
     private native static int runTun2Socks(
             int vpnInterfaceFileDescriptor,
             int vpnInterfaceMTU,
@@ -586,7 +862,8 @@ public class PsiphonTunnel extends Psi.PsiphonProvider.Stub {
             String vpnNetMask,
             String socksServerAddress,
             String udpgwServerAddress,
-            int udpgwTransparentDNS);
+            int udpgwTransparentDNS,
+            int logLevel);
 
     static {
         System.loadLibrary("tun2socks");
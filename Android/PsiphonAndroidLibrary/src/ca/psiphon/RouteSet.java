@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2015, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// A set of IPv4 addresses, built from CIDR prefixes and stored as a binary
+// prefix trie. Sibling prefixes that are both covered are merged into their
+// parent as they're added, so walking the trie yields the minimal list of
+// prefixes covering the set, or its complement.
+//
+// Nodes are stored in parallel int arrays rather than as objects: a split
+// tunnel region can contain thousands of ranges.
+class RouteSet {
+
+    public static class Route {
+        final public String mAddress;
+        final public int mPrefixLength;
+
+        Route(String address, int prefixLength) {
+            mAddress = address;
+            mPrefixLength = prefixLength;
+        }
+
+        @Override
+        public String toString() {
+            return mAddress + "/" + Integer.toString(mPrefixLength);
+        }
+    }
+
+    // Child references: EMPTY for no addresses, FULL for all addresses in the
+    // child's prefix, otherwise the index of the child node
+    private static final int EMPTY = 0;
+    private static final int FULL = -1;
+    private static final int ROOT = 1;
+
+    private int[] mChildren0 = new int[64];
+    private int[] mChildren1 = new int[64];
+    private int mNodeCount = ROOT + 1;
+    private boolean mFull = false;
+
+    // Adds a prefix in "a.b.c.d/n" form. Host bits are ignored.
+    public void add(String cidr) throws IllegalArgumentException {
+        int slash = cidr.indexOf('/');
+        if (slash < 0) {
+            add(parseAddress(cidr), 32);
+            return;
+        }
+        int prefixLength;
+        try {
+            prefixLength = Integer.parseInt(cidr.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid prefix length: " + cidr);
+        }
+        add(parseAddress(cidr.substring(0, slash)), prefixLength);
+    }
+
+    public void add(int address, int prefixLength) throws IllegalArgumentException {
+        if (prefixLength < 0 || prefixLength > 32) {
+            throw new IllegalArgumentException("invalid prefix length: " + Integer.toString(prefixLength));
+        }
+        if (mFull) {
+            return;
+        }
+        if (prefixLength == 0) {
+            mFull = true;
+            return;
+        }
+        if (add(ROOT, address, 0, prefixLength)) {
+            mFull = true;
+        }
+    }
+
+    // Returns true when the node's prefix is now entirely covered.
+    private boolean add(int node, int address, int depth, int prefixLength) {
+        int bit = (address >>> (31 - depth)) & 1;
+        int child = getChild(node, bit);
+        if (child != FULL) {
+            if (depth + 1 == prefixLength) {
+                // Any nodes below are no longer referenced; they're left unused
+                setChild(node, bit, FULL);
+            } else {
+                if (child == EMPTY) {
+                    child = newNode();
+                    setChild(node, bit, child);
+                }
+                if (add(child, address, depth + 1, prefixLength)) {
+                    setChild(node, bit, FULL);
+                }
+            }
+        }
+        return getChild(node, 0) == FULL && getChild(node, 1) == FULL;
+    }
+
+    public boolean contains(int address) {
+        if (mFull) {
+            return true;
+        }
+        int node = ROOT;
+        for (int depth = 0; depth < 32; depth++) {
+            int child = getChild(node, (address >>> (31 - depth)) & 1);
+            if (child == FULL) {
+                return true;
+            } else if (child == EMPTY) {
+                return false;
+            }
+            node = child;
+        }
+        return false;
+    }
+
+    // The minimal list of prefixes covering the set.
+    public List<Route> getRoutes() {
+        List<Route> routes = new ArrayList<Route>();
+        if (mFull) {
+            routes.add(new Route("0.0.0.0", 0));
+        } else {
+            collect(ROOT, 0, 0, FULL, routes);
+        }
+        return routes;
+    }
+
+    // The minimal list of prefixes covering every address not in the set.
+    public List<Route> getComplementRoutes() {
+        List<Route> routes = new ArrayList<Route>();
+        if (mFull) {
+            // 0.0.0.0/0 only sets mFull, so the root's children may still be EMPTY
+            return routes;
+        }
+        if (getChild(ROOT, 0) == EMPTY && getChild(ROOT, 1) == EMPTY) {
+            routes.add(new Route("0.0.0.0", 0));
+        } else {
+            collect(ROOT, 0, 0, EMPTY, routes);
+        }
+        return routes;
+    }
+
+    private void collect(int node, int prefix, int depth, int match, List<Route> routes) {
+        for (int bit = 0; bit <= 1; bit++) {
+            int child = getChild(node, bit);
+            int childPrefix = prefix | (bit << (31 - depth));
+            if (child == match) {
+                routes.add(new Route(formatAddress(childPrefix), depth + 1));
+            } else if (child != EMPTY && child != FULL) {
+                collect(child, childPrefix, depth + 1, match, routes);
+            }
+        }
+    }
+
+    private int getChild(int node, int bit) {
+        return bit == 0 ? mChildren0[node] : mChildren1[node];
+    }
+
+    private void setChild(int node, int bit, int child) {
+        if (bit == 0) {
+            mChildren0[node] = child;
+        } else {
+            mChildren1[node] = child;
+        }
+    }
+
+    private int newNode() {
+        if (mNodeCount == mChildren0.length) {
+            mChildren0 = grow(mChildren0);
+            mChildren1 = grow(mChildren1);
+        }
+        return mNodeCount++;
+    }
+
+    private static int[] grow(int[] array) {
+        int[] grown = new int[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    static int parseAddress(String address) throws IllegalArgumentException {
+        String[] octets = address.trim().split("\\.");
+        if (octets.length != 4) {
+            throw new IllegalArgumentException("invalid IPv4 address: " + address);
+        }
+        int value = 0;
+        for (String octet : octets) {
+            int n;
+            try {
+                n = Integer.parseInt(octet);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid IPv4 address: " + address);
+            }
+            if (n < 0 || n > 255) {
+                throw new IllegalArgumentException("invalid IPv4 address: " + address);
+            }
+            value = (value << 8) | n;
+        }
+        return value;
+    }
+
+    static String formatAddress(int address) {
+        return Integer.toString((address >>> 24) & 0xFF) + "." +
+                Integer.toString((address >>> 16) & 0xFF) + "." +
+                Integer.toString((address >>> 8) & 0xFF) + "." +
+                Integer.toString(address & 0xFF);
+    }
+}
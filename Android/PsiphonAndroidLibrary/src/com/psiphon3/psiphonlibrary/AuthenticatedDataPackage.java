@@ -19,6 +19,7 @@
 
 package com.psiphon3.psiphonlibrary;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FilterOutputStream;
@@ -137,6 +138,11 @@ public class AuthenticatedDataPackage
             }
         };
         
+        // Jackson emits decoded data in small pieces, and Base64OutputStream re-encodes
+        // each piece separately. Buffering in front of the signature batches these into
+        // large Signature.update() calls.
+        private static final int SIGNATURE_UPDATE_CHUNK_SIZE = 64*1024;
+
         private boolean dataIsBase64;
         private OutputStream verifyOutputStream;
 
@@ -144,7 +150,9 @@ public class AuthenticatedDataPackage
         {
             super(out);
             this.dataIsBase64 = dataIsBase64;
-            this.verifyOutputStream = new SignatureOutputStream(signature);
+            this.verifyOutputStream = new BufferedOutputStream(
+                    new SignatureOutputStream(signature),
+                    SIGNATURE_UPDATE_CHUNK_SIZE);
 
             if (this.dataIsBase64)
             {
@@ -0,0 +1,379 @@
+/*
+ * Copyright (c) 2015, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3.psiphonlibrary;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Process;
+
+import com.psiphon3.psiphonlibrary.Utils.MyLog;
+
+/**
+ * Shared executors for background work in the library and the browser,
+ * in place of a new thread per task:
+ *
+ *   io()        short network and file transfers; a few threads, bounded queue
+ *   serialDb()  database work, run one task at a time in submission order
+ *   scheduled() delayed and periodic tasks; must not block
+ *
+ * Each executor counts submitted, completed and rejected tasks and
+ * records queue latency and run time; see getStatistics(). Rejected
+ * tasks are dropped and logged rather than thrown back at the caller,
+ * which is often the UI thread. Callers which hold UI state for a task,
+ * such as a progress dialog, should use tryExecute() and release it
+ * when the task is rejected.
+ *
+ * Long lived work that would occupy a pool thread for minutes or for the
+ * lifetime of a service, such as the tunnel or a file download, should
+ * use newThread() instead.
+ */
+public class BackgroundExecutors
+{
+    private static final int IO_THREADS = 4;
+    private static final int IO_QUEUE_CAPACITY = 256;
+    private static final int SERIAL_DB_QUEUE_CAPACITY = 256;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    public static class Statistics
+    {
+        public final String name;
+        public final int queueDepth;
+        public final int activeCount;
+        public final long submitted;
+        public final long completed;
+        public final long rejected;
+        public final long meanQueueLatencyMs;
+        public final long maxQueueLatencyMs;
+        public final long meanRunTimeMs;
+
+        Statistics(String name, int queueDepth, int activeCount, Counters counters)
+        {
+            this.name = name;
+            this.queueDepth = queueDepth;
+            this.activeCount = activeCount;
+            this.submitted = counters.submitted.get();
+            this.completed = counters.completed.get();
+            this.rejected = counters.rejected.get();
+            this.meanQueueLatencyMs = this.completed == 0 ? 0 : counters.totalQueueLatencyMs.get() / this.completed;
+            this.maxQueueLatencyMs = counters.maxQueueLatencyMs.get();
+            this.meanRunTimeMs = this.completed == 0 ? 0 : counters.totalRunTimeMs.get() / this.completed;
+        }
+    }
+
+    private static class Counters
+    {
+        final AtomicLong submitted = new AtomicLong();
+        final AtomicLong completed = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+        final AtomicLong totalQueueLatencyMs = new AtomicLong();
+        final AtomicLong maxQueueLatencyMs = new AtomicLong();
+        final AtomicLong totalRunTimeMs = new AtomicLong();
+
+        void recordCompleted(long queueLatencyMs, long runTimeMs)
+        {
+            this.completed.incrementAndGet();
+            this.totalQueueLatencyMs.addAndGet(queueLatencyMs);
+            this.totalRunTimeMs.addAndGet(runTimeMs);
+            long max;
+            while (queueLatencyMs > (max = this.maxQueueLatencyMs.get()))
+            {
+                if (this.maxQueueLatencyMs.compareAndSet(max, queueLatencyMs))
+                {
+                    break;
+                }
+            }
+        }
+    }
+
+    private static class CountingRejectedExecutionHandler implements RejectedExecutionHandler
+    {
+        private final String name;
+        private final Counters counters;
+
+        CountingRejectedExecutionHandler(String name, Counters counters)
+        {
+            this.name = name;
+            this.counters = counters;
+        }
+
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor)
+        {
+            if (task instanceof TimedTask)
+            {
+                ((TimedTask)task).rejected = true;
+            }
+            this.counters.rejected.incrementAndGet();
+            MyLog.g("BackgroundExecutorRejected", "executor", this.name, "shutdown", executor.isShutdown());
+        }
+    }
+
+    private static class PriorityThreadFactory implements ThreadFactory
+    {
+        private final String name;
+        private final int priority;
+        private final AtomicInteger count = new AtomicInteger();
+
+        PriorityThreadFactory(String name, int priority)
+        {
+            this.name = name;
+            this.priority = priority;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable)
+        {
+            return BackgroundExecutors.newThread(
+                    this.name + "-" + this.count.incrementAndGet(), this.priority, runnable);
+        }
+    }
+
+    private static class TimedTask implements Runnable
+    {
+        private final Runnable command;
+        private final Counters counters;
+        private final long submitTime = System.currentTimeMillis();
+        // Set by the rejected execution handler, which runs on the submitting thread
+        boolean rejected = false;
+
+        TimedTask(Runnable command, Counters counters)
+        {
+            this.command = command;
+            this.counters = counters;
+        }
+
+        @Override
+        public void run()
+        {
+            long startTime = System.currentTimeMillis();
+            try
+            {
+                this.command.run();
+            }
+            finally
+            {
+                this.counters.recordCompleted(startTime - this.submitTime, System.currentTimeMillis() - startTime);
+            }
+        }
+    }
+
+    /**
+     * A thread pool which times each task from submission to completion.
+     */
+    public static class InstrumentedThreadPoolExecutor extends ThreadPoolExecutor
+    {
+        private final String name;
+        private final Counters counters;
+
+        InstrumentedThreadPoolExecutor(String name, int threads, int queueCapacity, int priority)
+        {
+            this(name, threads, queueCapacity, priority, new Counters());
+        }
+
+        private InstrumentedThreadPoolExecutor(String name, int threads, int queueCapacity, int priority, Counters counters)
+        {
+            super(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(queueCapacity),
+                    new PriorityThreadFactory(name, priority),
+                    new CountingRejectedExecutionHandler(name, counters));
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD)
+            {
+                allowIdleThreadsToExit();
+            }
+            this.name = name;
+            this.counters = counters;
+        }
+
+        @TargetApi(Build.VERSION_CODES.GINGERBREAD)
+        private void allowIdleThreadsToExit()
+        {
+            allowCoreThreadTimeOut(true);
+        }
+
+        @Override
+        public void execute(Runnable command)
+        {
+            tryExecute(command);
+        }
+
+        /**
+         * Like execute(), but tells the caller whether the task was accepted.
+         * @return false if the task was rejected and will never run
+         */
+        public boolean tryExecute(Runnable command)
+        {
+            this.counters.submitted.incrementAndGet();
+            TimedTask task = new TimedTask(command, this.counters);
+            super.execute(task);
+            return !task.rejected;
+        }
+
+        public Statistics getStatistics()
+        {
+            return new Statistics(this.name, getQueue().size(), getActiveCount(), this.counters);
+        }
+    }
+
+    /**
+     * A scheduled pool which times each run. Queue latency is measured from
+     * the time the task was due.
+     */
+    public static class InstrumentedScheduledThreadPoolExecutor extends ScheduledThreadPoolExecutor
+    {
+        private final String name;
+        private final Counters counters;
+        private final ThreadLocal<Long> startTime = new ThreadLocal<Long>();
+
+        InstrumentedScheduledThreadPoolExecutor(String name, int threads, int priority)
+        {
+            this(name, threads, priority, new Counters());
+        }
+
+        private InstrumentedScheduledThreadPoolExecutor(String name, int threads, int priority, Counters counters)
+        {
+            super(threads, new PriorityThreadFactory(name, priority), new CountingRejectedExecutionHandler(name, counters));
+            this.name = name;
+            this.counters = counters;
+        }
+
+        // execute() and submit() go through schedule()
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit)
+        {
+            this.counters.submitted.incrementAndGet();
+            return super.schedule(command, delay, unit);
+        }
+
+        @Override
+        public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit)
+        {
+            this.counters.submitted.incrementAndGet();
+            return super.schedule(callable, delay, unit);
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit)
+        {
+            this.counters.submitted.incrementAndGet();
+            return super.scheduleAtFixedRate(command, initialDelay, period, unit);
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit)
+        {
+            this.counters.submitted.incrementAndGet();
+            return super.scheduleWithFixedDelay(command, initialDelay, delay, unit);
+        }
+
+        @Override
+        protected void beforeExecute(Thread thread, Runnable runnable)
+        {
+            super.beforeExecute(thread, runnable);
+            this.startTime.set(System.currentTimeMillis());
+        }
+
+        @Override
+        protected void afterExecute(Runnable runnable, Throwable throwable)
+        {
+            super.afterExecute(runnable, throwable);
+            long runTime = System.currentTimeMillis() - this.startTime.get();
+            long lateness = 0;
+            if (runnable instanceof Delayed)
+            {
+                // The delay is negative once the task is due; it was due this long
+                // before it started
+                lateness = Math.max(0, -((Delayed)runnable).getDelay(TimeUnit.MILLISECONDS) - runTime);
+            }
+            this.counters.recordCompleted(lateness, runTime);
+        }
+
+        public Statistics getStatistics()
+        {
+            return new Statistics(this.name, getQueue().size(), getActiveCount(), this.counters);
+        }
+    }
+
+    private static final InstrumentedThreadPoolExecutor s_io = new InstrumentedThreadPoolExecutor(
+            "io", IO_THREADS, IO_QUEUE_CAPACITY, Process.THREAD_PRIORITY_BACKGROUND);
+
+    private static final InstrumentedThreadPoolExecutor s_serialDb = new InstrumentedThreadPoolExecutor(
+            "db", 1, SERIAL_DB_QUEUE_CAPACITY,
+            Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_MORE_FAVORABLE);
+
+    // Timers and timeouts are short and should fire on time
+    private static final InstrumentedScheduledThreadPoolExecutor s_scheduled = new InstrumentedScheduledThreadPoolExecutor(
+            "scheduled", 1, Process.THREAD_PRIORITY_DEFAULT);
+
+    public static InstrumentedThreadPoolExecutor io()
+    {
+        return s_io;
+    }
+
+    public static InstrumentedThreadPoolExecutor serialDb()
+    {
+        return s_serialDb;
+    }
+
+    public static InstrumentedScheduledThreadPoolExecutor scheduled()
+    {
+        return s_scheduled;
+    }
+
+    /**
+     * Creates, but doesn't start, a named thread which sets its own priority,
+     * one of the android.os.Process THREAD_PRIORITY_ values.
+     */
+    public static Thread newThread(String name, final int priority, final Runnable runnable)
+    {
+        return new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Process.setThreadPriority(priority);
+                runnable.run();
+            }
+        }, name);
+    }
+
+    public static List<Statistics> getStatistics()
+    {
+        List<Statistics> statistics = new ArrayList<Statistics>();
+        statistics.add(s_io.getStatistics());
+        statistics.add(s_serialDb.getStatistics());
+        statistics.add(s_scheduled.getStatistics());
+        return statistics;
+    }
+}
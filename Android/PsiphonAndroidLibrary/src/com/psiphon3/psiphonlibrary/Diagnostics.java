@@ -19,41 +19,60 @@
 
 package com.psiphon3.psiphonlibrary;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.ProtocolException;
 import java.net.URL;
 import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.Locale;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 
 import javax.net.ssl.HttpsURLConnection;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import android.content.Context;
 import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 
+import com.fasterxml.jackson.core.Base64Variants;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.psiphon3.psiphonlibrary.PsiphonData.StatusEntry;
 import com.psiphon3.psiphonlibrary.Utils.MyLog;
 import com.psiphon3.psiphonlibrary.Utils.MyLog.Sensitivity;
+import com.psiphon3.psiphonlibrary.codec.Hex;
 
 public class Diagnostics
 {
+    private static final int DIAGNOSTIC_BUFFER_SIZE = 16*1024;
+
     /**
      * Create the diagnostic info package.
+     * The package is streamed to a file: the diagnostic JSON is generated
+     * incrementally, gzipped, encrypted and MAC'd, and the ciphertext is
+     * then Base64-encoded into the JSON envelope holding the encryption
+     * elements. Memory use doesn't depend on the size of the histories.
      * @param context
      * @param sendDiagnosticInfo
      * @param email
      * @param feedbackText
      * @param surveyResponsesJson
-     * @return A String containing the diagnostic info, or `null` if there is
-     *         an error.
+     * @return The file containing the diagnostic info package, or `null` if
+     *         there is an error. The caller is responsible for deleting it.
      */
-    static public String create(
+    static public File create(
                             Context context,
                             boolean sendDiagnosticInfo,
                             String email,
@@ -63,72 +82,240 @@ public class Diagnostics
         // Our attachment is JSON, which is then encrypted, and the
         // encryption elements stored in JSON.
 
-        String diagnosticJSON = null;
+        File ciphertextFile = null;
+        File packageFile = null;
+        boolean success = false;
 
         try
         {
+            ciphertextFile = File.createTempFile("diagnostics", ".ciphertext", context.getCacheDir());
+            packageFile = File.createTempFile("diagnostics", ".package", context.getCacheDir());
+
             /*
-             * Metadata
+             * Encrypt the diagnostic info as it's generated
              */
 
-            JSONObject metadata = new JSONObject();
+            Utils.RSAEncryptOutput rsaEncryptOutput = null;
+            OutputStream ciphertextOut = new BufferedOutputStream(new FileOutputStream(ciphertextFile), DIAGNOSTIC_BUFFER_SIZE);
+            try
+            {
+                Utils.RSAEncryptOutputStream encryptStream = new Utils.RSAEncryptOutputStream(
+                        ciphertextOut,
+                        EmbeddedValues.FEEDBACK_ENCRYPTION_PUBLIC_KEY);
+
+                GZIPOutputStream gzipStream = new GZIPOutputStream(encryptStream, DIAGNOSTIC_BUFFER_SIZE);
+                JsonGenerator generator = new JsonFactory().createGenerator(gzipStream, JsonEncoding.UTF8);
+                writeDiagnosticInfo(
+                        generator,
+                        context,
+                        sendDiagnosticInfo,
+                        email,
+                        feedbackText,
+                        surveyResponsesJson);
+
+                // Closes the gzip and encryption streams, which completes the MAC
+                generator.close();
+                rsaEncryptOutput = encryptStream.getOutput();
+            }
+            finally
+            {
+                ciphertextOut.close();
+            }
 
-            metadata.put("platform", "android");
-            metadata.put("version", 4);
+            /*
+             * Write the encrypted package
+             */
 
-            SecureRandom rnd = new SecureRandom();
-            byte[] id = new byte[8];
-            rnd.nextBytes(id);
-            metadata.put("id", Utils.byteArrayToHexString(id));
+            OutputStream packageOut = new BufferedOutputStream(new FileOutputStream(packageFile), DIAGNOSTIC_BUFFER_SIZE);
+            InputStream ciphertextIn = null;
+            try
+            {
+                ciphertextIn = new BufferedInputStream(new FileInputStream(ciphertextFile), DIAGNOSTIC_BUFFER_SIZE);
+
+                JsonGenerator generator = new JsonFactory().createGenerator(packageOut, JsonEncoding.UTF8);
+                generator.writeStartObject();
+                generator.writeFieldName("contentCiphertext");
+                generator.writeBinary(Base64Variants.MIME_NO_LINEFEEDS, ciphertextIn, (int)ciphertextFile.length());
+                generator.writeBinaryField("iv", rsaEncryptOutput.mIv);
+                generator.writeBinaryField("wrappedEncryptionKey", rsaEncryptOutput.mWrappedEncryptionKey);
+                generator.writeBinaryField("contentMac", rsaEncryptOutput.mContentMac);
+                generator.writeBinaryField("wrappedMacKey", rsaEncryptOutput.mWrappedMacKey);
+                generator.writeEndObject();
+                generator.close();
+            }
+            finally
+            {
+                if (ciphertextIn != null)
+                {
+                    ciphertextIn.close();
+                }
+                packageOut.close();
+            }
+
+            success = true;
+        }
+        catch (GeneralSecurityException e)
+        {
+            MyLog.e(R.string.Diagnostics_EncryptedFailed, MyLog.Sensitivity.NOT_SENSITIVE, e);
+        }
+        catch (IOException e)
+        {
+            MyLog.e(R.string.Diagnostics_EncryptedFailed, MyLog.Sensitivity.NOT_SENSITIVE, e);
+        }
+        finally
+        {
+            if (ciphertextFile != null)
+            {
+                ciphertextFile.delete();
+            }
+            if (!success && packageFile != null)
+            {
+                packageFile.delete();
+            }
+        }
+
+        return success ? packageFile : null;
+    }
+
+    static private void writeDiagnosticInfo(
+            JsonGenerator generator,
+            Context context,
+            boolean sendDiagnosticInfo,
+            String email,
+            String feedbackText,
+            String surveyResponsesJson)
+        throws IOException
+    {
+        generator.writeStartObject();
+
+        /*
+         * Metadata
+         */
+
+        generator.writeObjectFieldStart("Metadata");
+        generator.writeStringField("platform", "android");
+        generator.writeNumberField("version", 4);
+
+        SecureRandom rnd = new SecureRandom();
+        byte[] id = new byte[8];
+        rnd.nextBytes(id);
+        generator.writeStringField("id", Hex.encodeToString(id, Hex.UPPER_CASE));
+        generator.writeEndObject();
+
+        if (sendDiagnosticInfo)
+        {
+            generator.writeObjectFieldStart("DiagnosticInfo");
 
             /*
              * System Information
              */
 
-            JSONObject sysInfo_Build = new JSONObject();
-            sysInfo_Build.put("BRAND", Build.BRAND);
-            sysInfo_Build.put("CPU_ABI", Build.CPU_ABI);
-            sysInfo_Build.put("MANUFACTURER", Build.MANUFACTURER);
-            sysInfo_Build.put("MODEL", Build.MODEL);
-            sysInfo_Build.put("DISPLAY", Build.DISPLAY);
-            sysInfo_Build.put("TAGS", Build.TAGS);
-            sysInfo_Build.put("VERSION__CODENAME", Build.VERSION.CODENAME);
-            sysInfo_Build.put("VERSION__RELEASE", Build.VERSION.RELEASE);
-            sysInfo_Build.put("VERSION__SDK_INT", Build.VERSION.SDK_INT);
-
-            JSONObject sysInfo_psiphonEmbeddedValues = new JSONObject();
-            sysInfo_psiphonEmbeddedValues.put("PROPAGATION_CHANNEL_ID", EmbeddedValues.PROPAGATION_CHANNEL_ID);
-            sysInfo_psiphonEmbeddedValues.put("SPONSOR_ID", EmbeddedValues.SPONSOR_ID);
-            sysInfo_psiphonEmbeddedValues.put("CLIENT_VERSION", EmbeddedValues.CLIENT_VERSION);
-
-            JSONObject sysInfo = new JSONObject();
-            sysInfo.put("isRooted", Utils.isRooted());
-            sysInfo.put("isPlayStoreBuild", EmbeddedValues.IS_PLAY_STORE_BUILD);
-            sysInfo.put("language", Locale.getDefault().getLanguage());
-            sysInfo.put("networkTypeName", Utils.getNetworkTypeName(context));
-            sysInfo.put("Build", sysInfo_Build);
-            sysInfo.put("PsiphonInfo", sysInfo_psiphonEmbeddedValues);
+            generator.writeObjectFieldStart("SystemInformation");
+            generator.writeBooleanField("isRooted", Utils.isRooted());
+            generator.writeBooleanField("isPlayStoreBuild", EmbeddedValues.IS_PLAY_STORE_BUILD);
+            generator.writeStringField("language", Locale.getDefault().getLanguage());
+            generator.writeStringField("networkTypeName", Utils.getNetworkTypeName(context));
+
+            generator.writeObjectFieldStart("Build");
+            generator.writeStringField("BRAND", Build.BRAND);
+            generator.writeStringField("CPU_ABI", Build.CPU_ABI);
+            generator.writeStringField("MANUFACTURER", Build.MANUFACTURER);
+            generator.writeStringField("MODEL", Build.MODEL);
+            generator.writeStringField("DISPLAY", Build.DISPLAY);
+            generator.writeStringField("TAGS", Build.TAGS);
+            generator.writeStringField("VERSION__CODENAME", Build.VERSION.CODENAME);
+            generator.writeStringField("VERSION__RELEASE", Build.VERSION.RELEASE);
+            generator.writeNumberField("VERSION__SDK_INT", Build.VERSION.SDK_INT);
+            generator.writeEndObject();
+
+            generator.writeObjectFieldStart("PsiphonInfo");
+            generator.writeStringField("PROPAGATION_CHANNEL_ID", EmbeddedValues.PROPAGATION_CHANNEL_ID);
+            generator.writeStringField("SPONSOR_ID", EmbeddedValues.SPONSOR_ID);
+            generator.writeStringField("CLIENT_VERSION", EmbeddedValues.CLIENT_VERSION);
+            generator.writeEndObject();
+
+            generator.writeObjectFieldStart("BackgroundExecutors");
+            for (BackgroundExecutors.Statistics statistics : BackgroundExecutors.getStatistics())
+            {
+                generator.writeObjectFieldStart(statistics.name);
+                generator.writeNumberField("queueDepth", statistics.queueDepth);
+                generator.writeNumberField("activeCount", statistics.activeCount);
+                generator.writeNumberField("submitted", statistics.submitted);
+                generator.writeNumberField("completed", statistics.completed);
+                generator.writeNumberField("rejected", statistics.rejected);
+                generator.writeNumberField("meanQueueLatencyMs", statistics.meanQueueLatencyMs);
+                generator.writeNumberField("maxQueueLatencyMs", statistics.maxQueueLatencyMs);
+                generator.writeNumberField("meanRunTimeMs", statistics.meanRunTimeMs);
+                generator.writeEndObject();
+            }
+            generator.writeEndObject();
+
+            generator.writeEndObject();
 
             /*
              * Diagnostic History
              */
 
-            JSONArray diagnosticHistory = new JSONArray();
+            generator.writeArrayFieldStart("DiagnosticHistory");
 
             for (PsiphonData.DiagnosticEntry item : PsiphonData.cloneDiagnosticHistory())
             {
-                JSONObject entry = new JSONObject();
-                entry.put("timestamp!!timestamp", Utils.getISO8601String(item.timestamp()));
-                entry.put("msg", item.msg() == null ? JSONObject.NULL : item.msg());
-                entry.put("data", item.data() == null ? JSONObject.NULL : item.data());
-                diagnosticHistory.put(entry);
+                generator.writeStartObject();
+                generator.writeStringField("timestamp!!timestamp", Utils.getISO8601String(item.timestamp()));
+                writeStringOrNullField(generator, "msg", item.msg());
+                generator.writeFieldName("data");
+                if (item.fieldType() != PsiphonData.DiagnosticEntry.FIELD_NONE)
+                {
+                    generator.writeStartObject();
+                    generator.writeFieldName(item.fieldName());
+                    switch (item.fieldType())
+                    {
+                    case PsiphonData.DiagnosticEntry.FIELD_STRING:
+                        writeValue(generator, item.fieldStringValue());
+                        break;
+                    case PsiphonData.DiagnosticEntry.FIELD_LONG:
+                        generator.writeNumber(item.fieldLongValue());
+                        break;
+                    default:
+                        generator.writeBoolean(item.fieldLongValue() != 0);
+                        break;
+                    }
+                    generator.writeEndObject();
+                }
+                else if (item.nameValuePairs() != null)
+                {
+                    Object[] nameValuePairs = item.nameValuePairs();
+                    generator.writeStartObject();
+                    for (int i = 0; i + 1 < nameValuePairs.length; i += 2)
+                    {
+                        generator.writeFieldName(nameValuePairs[i].toString());
+                        writeValue(generator, nameValuePairs[i+1]);
+                    }
+                    generator.writeEndObject();
+                }
+                else if (item.data() == null)
+                {
+                    generator.writeNull();
+                }
+                else
+                {
+                    // Individual entries are small; only the history as a whole is large
+                    generator.writeRawValue(item.data().toString());
+                }
+                if (item.suppressedCount() > 0)
+                {
+                    generator.writeNumberField("suppressedCount", item.suppressedCount());
+                }
+                generator.writeEndObject();
             }
 
+            generator.writeEndArray();
+
             /*
              * Status History
              */
 
-            JSONArray statusHistory = new JSONArray();
+            generator.writeArrayFieldStart("StatusHistory");
 
             for (StatusEntry internalEntry : PsiphonData.getPsiphonData().cloneStatusHistory())
             {
@@ -139,277 +326,392 @@ public class Diagnostics
                     continue;
                 }
 
-                JSONObject statusEntry = new JSONObject();
+                generator.writeStartObject();
 
                 String idName = context.getResources().getResourceEntryName(internalEntry.id());
-                statusEntry.put("id", idName);
-                statusEntry.put("timestamp!!timestamp", Utils.getISO8601String(internalEntry.timestamp()));
-                statusEntry.put("priority", internalEntry.priority());
-                statusEntry.put("formatArgs", JSONObject.NULL);
-                statusEntry.put("throwable", JSONObject.NULL);
+                generator.writeStringField("id", idName);
+                generator.writeStringField("timestamp!!timestamp", Utils.getISO8601String(internalEntry.timestamp()));
+                generator.writeNumberField("priority", internalEntry.priority());
 
+                generator.writeFieldName("formatArgs");
                 if (internalEntry.formatArgs() != null && internalEntry.formatArgs().length > 0
                     // Don't send any sensitive format args
                     && internalEntry.sensitivity() != MyLog.Sensitivity.SENSITIVE_FORMAT_ARGS)
                 {
-                    JSONArray formatArgs = new JSONArray();
+                    generator.writeStartArray();
                     for (Object o : internalEntry.formatArgs())
                     {
-                        formatArgs.put(o);
+                        writeValue(generator, o);
                     }
-                    statusEntry.put("formatArgs", formatArgs);
+                    generator.writeEndArray();
+                }
+                else
+                {
+                    generator.writeNull();
                 }
 
+                generator.writeFieldName("throwable");
                 if (internalEntry.throwable() != null)
                 {
-                    JSONObject throwable = new JSONObject();
-
-                    throwable.put("message", internalEntry.throwable().toString());
-
-                    JSONArray stack = new JSONArray();
+                    generator.writeStartObject();
+                    generator.writeStringField("message", internalEntry.throwable().toString());
+                    generator.writeArrayFieldStart("stack");
                     for (StackTraceElement element : internalEntry.throwable().getStackTrace())
                     {
-                        stack.put(element.toString());
+                        generator.writeString(element.toString());
                     }
-                    throwable.put("stack", stack);
-
-                    statusEntry.put("throwable", throwable);
+                    generator.writeEndArray();
+                    generator.writeEndObject();
+                }
+                else
+                {
+                    generator.writeNull();
                 }
 
-                statusHistory.put(statusEntry);
+                generator.writeEndObject();
             }
 
-            /*
-             * JSON-ify the diagnostic info
-             */
-
-            JSONObject diagnosticInfo = new JSONObject();
-            diagnosticInfo.put("SystemInformation", sysInfo);
-            diagnosticInfo.put("DiagnosticHistory", diagnosticHistory);
-            diagnosticInfo.put("StatusHistory", statusHistory);
+            generator.writeEndArray();
 
-            JSONObject diagnosticObject = new JSONObject();
-            diagnosticObject.put("Metadata", metadata);
+            generator.writeEndObject();
+        }
 
-            if (sendDiagnosticInfo)
-            {
-                diagnosticObject.put("DiagnosticInfo", diagnosticInfo);
-            }
+        if (feedbackText.length() > 0 || surveyResponsesJson.length() > 0)
+        {
+            generator.writeObjectFieldStart("Feedback");
+            writeStringOrNullField(generator, "email", email);
 
-            if (feedbackText.length() > 0 || surveyResponsesJson.length() > 0)
-            {
-                JSONObject feedbackInfo = new JSONObject();
-                feedbackInfo.put("email", email);
+            generator.writeObjectFieldStart("Message");
+            generator.writeStringField("text", feedbackText);
+            generator.writeEndObject();
 
-                JSONObject feedbackMessageInfo = new JSONObject();
-                feedbackMessageInfo.put("text", feedbackText);
-                feedbackInfo.put("Message", feedbackMessageInfo);
+            generator.writeObjectFieldStart("Survey");
+            generator.writeStringField("json", surveyResponsesJson);
+            generator.writeEndObject();
 
-                JSONObject feedbackSurveyInfo = new JSONObject();
-                feedbackSurveyInfo.put("json", surveyResponsesJson);
-                feedbackInfo.put("Survey", feedbackSurveyInfo);
+            generator.writeEndObject();
+        }
 
-                diagnosticObject.put("Feedback",  feedbackInfo);
-            }
+        generator.writeEndObject();
+    }
 
-            diagnosticJSON = diagnosticObject.toString();
+    static private void writeStringOrNullField(JsonGenerator generator, String name, String value)
+        throws IOException
+    {
+        if (value == null)
+        {
+            generator.writeNullField(name);
         }
-        catch (JSONException e)
+        else
         {
-            throw new RuntimeException(e);
+            generator.writeStringField(name, value);
         }
+    }
 
-        assert(diagnosticJSON != null);
-
-        // Encrypt the file contents
-        Utils.RSAEncryptOutput rsaEncryptOutput = null;
-        boolean encryptedOkay = false;
-        try
+    static private void writeValue(JsonGenerator generator, Object value)
+        throws IOException
+    {
+        if (value == null)
         {
-            rsaEncryptOutput = Utils.encryptWithRSA(
-                    diagnosticJSON.getBytes("UTF-8"),
-                    EmbeddedValues.FEEDBACK_ENCRYPTION_PUBLIC_KEY);
-            encryptedOkay = true;
+            generator.writeNull();
         }
-        catch (GeneralSecurityException e)
+        else if (value instanceof Boolean)
         {
-            MyLog.e(R.string.Diagnostics_EncryptedFailed, MyLog.Sensitivity.NOT_SENSITIVE, e);
+            generator.writeBoolean((Boolean)value);
         }
-        catch (UnsupportedEncodingException e)
+        else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte)
         {
-            MyLog.e(R.string.Diagnostics_EncryptedFailed, MyLog.Sensitivity.NOT_SENSITIVE, e);
+            generator.writeNumber(((Number)value).longValue());
         }
-
-        String result = null;
-        if (encryptedOkay)
+        else if (value instanceof Number)
         {
-            StringBuilder encryptedContent = new StringBuilder();
-            encryptedContent.append("{\n");
-            encryptedContent.append("  \"contentCiphertext\": \"").append(Utils.Base64.encode(rsaEncryptOutput.mContentCiphertext)).append("\",\n");
-            encryptedContent.append("  \"iv\": \"").append(Utils.Base64.encode(rsaEncryptOutput.mIv)).append("\",\n");
-            encryptedContent.append("  \"wrappedEncryptionKey\": \"").append(Utils.Base64.encode(rsaEncryptOutput.mWrappedEncryptionKey)).append("\",\n");
-            encryptedContent.append("  \"contentMac\": \"").append(Utils.Base64.encode(rsaEncryptOutput.mContentMac)).append("\",\n");
-            encryptedContent.append("  \"wrappedMacKey\": \"").append(Utils.Base64.encode(rsaEncryptOutput.mWrappedMacKey)).append("\"\n");
-            encryptedContent.append("}");
-
-            result = encryptedContent.toString();
+            generator.writeNumber(((Number)value).doubleValue());
+        }
+        else
+        {
+            generator.writeString(value.toString());
         }
-
-        return result;
     }
 
+    /*
+     * Upload queue
+     *
+     * Diagnostic packages are queued on disk and uploaded one at a time on the
+     * shared I/O executor, so reports survive process restarts and failed
+     * uploads are retried with exponential backoff. The queue is only drained when an upload can
+     * succeed; TunnelManager resumes it when the tunnel connects.
+     */
+
+    private static final String UPLOAD_QUEUE_DIRECTORY = "DiagnosticsUploadQueue";
+    private static final String UPLOAD_QUEUE_FILE_SUFFIX = ".package";
+    private static final int MAX_QUEUED_UPLOADS = 10;
+    private static final long UPLOAD_RETRY_INITIAL_DELAY_MS = 30 * 1000;
+    private static final long UPLOAD_RETRY_MAX_DELAY_MS = 60 * 60 * 1000;
+
+    // Serializes changes to the queue and uploads
+    private static final Object s_uploadQueueLock = new Object();
+
+    // Guarded by s_uploadQueueLock
+    private static int s_uploadFailureCount = 0;
+
+    // Guarded by Diagnostics.class
+    private static ScheduledFuture<?> s_scheduledDrain = null;
+    private static long s_scheduledDrainTime = 0;
+
     /**
-     * Create the diagnostic data package and upload it.
+     * Create the diagnostic data package and queue it for upload.
      * @param context
      * @param sendDiagnosticInfo
      * @param email
      * @param feedbackText
      * @param surveyResponsesJson
-     * @return
      */
     static public void send(
             Context context,
-            boolean sendDiagnosticInfo,
-            String email,
-            String feedbackText,
-            String surveyResponsesJson)
+            final boolean sendDiagnosticInfo,
+            final String email,
+            final String feedbackText,
+            final String surveyResponsesJson)
     {
-        // Fire-and-forget thread.
-        class FeedbackRequestThread extends Thread
-        {
-            private final Context mContext;
-            private final boolean mSendDiagnosticInfo;
-            private final String mEmail;
-            private final String mFeedbackText;
-            private final String mSurveyResponsesJson;
-
-            FeedbackRequestThread(
-                    Context context,
-                    boolean sendDiagnosticInfo,
-                    String email,
-                    String feedbackText,
-                    String surveyResponsesJson)
-            {
-                mContext = context;
-                mSendDiagnosticInfo = sendDiagnosticInfo;
-                mEmail = email;
-                mFeedbackText = feedbackText;
-                mSurveyResponsesJson = surveyResponsesJson;
-            }
+        final Context appContext = context.getApplicationContext();
 
+        Runnable createTask = new Runnable()
+        {
             @Override
             public void run()
             {
-                String diagnosticData = Diagnostics.create(
-                        mContext,
-                        mSendDiagnosticInfo,
-                        mEmail,
-                        mFeedbackText,
-                        mSurveyResponsesJson);
-
-                if (diagnosticData == null)
+                File diagnosticPackage = Diagnostics.create(
+                        appContext,
+                        sendDiagnosticInfo,
+                        email,
+                        feedbackText,
+                        surveyResponsesJson);
+
+                if (diagnosticPackage == null)
                 {
                     return;
                 }
 
-                byte[] diagnosticDataBytes;
-                try
-                {
-                    diagnosticDataBytes = diagnosticData.getBytes("UTF-8");
-                    diagnosticData = null;
-                }
-                catch (UnsupportedEncodingException e)
+                synchronized (s_uploadQueueLock)
                 {
-                    MyLog.d("diagnosticData.getBytes failed", e);
-                    // unrecoverable
-                    return;
+                    enqueueUpload(appContext, diagnosticPackage);
                 }
+                drainUploadQueue(appContext);
+            }
+        };
+
+        // The user's feedback must not be dropped when the I/O executor is saturated
+        if (!BackgroundExecutors.io().tryExecute(createTask))
+        {
+            BackgroundExecutors.newThread("feedback", android.os.Process.THREAD_PRIORITY_BACKGROUND, createTask).start();
+        }
+    }
+
+    /**
+     * Attempt to upload any queued diagnostic packages now, e.g., when the
+     * tunnel has connected.
+     * @param context
+     */
+    static public void resumeUploads(Context context)
+    {
+        File[] queued = getQueuedUploads(context.getApplicationContext());
+        if (queued.length > 0)
+        {
+            scheduleDrain(context.getApplicationContext(), 0);
+        }
+    }
 
-                // Retry uploading data up to 5 times
-                for (int i = 0; i < 5; i++)
+    static private File getUploadQueueDirectory(Context context)
+    {
+        return context.getDir(UPLOAD_QUEUE_DIRECTORY, Context.MODE_PRIVATE);
+    }
+
+    static private File[] getQueuedUploads(Context context)
+    {
+        File[] files = getUploadQueueDirectory(context).listFiles(new FilenameFilter()
+        {
+            @Override
+            public boolean accept(File dir, String filename)
+            {
+                return filename.endsWith(UPLOAD_QUEUE_FILE_SUFFIX);
+            }
+        });
+        if (files == null)
+        {
+            return new File[0];
+        }
+        // File names start with the creation time, so this is oldest first
+        Arrays.sort(files);
+        return files;
+    }
+
+    static private void enqueueUpload(Context context, File diagnosticPackage)
+    {
+        // The random part of the name is also the upload ID, so retrying an
+        // upload whose response was lost overwrites the same object.
+        byte[] uploadId = new byte[8];
+        new SecureRandom().nextBytes(uploadId);
+        String filename = String.format(Locale.US, "%016d", System.currentTimeMillis()) +
+                "_" + Hex.encodeToString(uploadId, Hex.UPPER_CASE) + UPLOAD_QUEUE_FILE_SUFFIX;
+
+        File queuedFile = new File(getUploadQueueDirectory(context), filename);
+        if (!diagnosticPackage.renameTo(queuedFile))
+        {
+            MyLog.g("Diagnostic enqueueUpload failed");
+            diagnosticPackage.delete();
+            return;
+        }
+
+        // Bound the disk space used by reports that can't be sent
+        File[] queued = getQueuedUploads(context);
+        for (int i = 0; i < queued.length - MAX_QUEUED_UPLOADS; i++)
+        {
+            queued[i].delete();
+        }
+    }
+
+    static private synchronized void scheduleDrain(final Context context, long delayMs)
+    {
+        long drainTime = SystemClock.elapsedRealtime() + delayMs;
+        if (s_scheduledDrain != null && !s_scheduledDrain.isDone())
+        {
+            if (s_scheduledDrainTime <= drainTime)
+            {
+                return;
+            }
+            s_scheduledDrain.cancel(false);
+        }
+        s_scheduledDrainTime = drainTime;
+        // The scheduled executor only hands the drain over to the I/O executor
+        s_scheduledDrain = BackgroundExecutors.scheduled().schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                BackgroundExecutors.io().execute(new Runnable()
                 {
-                    if (doFeedbackUpload(diagnosticDataBytes))
+                    @Override
+                    public void run()
                     {
-                        break;
+                        drainUploadQueue(context);
                     }
+                });
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
 
-                    // The upload request failed, so sleep and try again.
-                    try
-                    {
-                        MyLog.g("Diagnostic data send fail; sleeping");
-                        Thread.sleep(5 * 60 * 1000);
-                    }
-                    catch (InterruptedException e)
-                    {
-                        // Bail out of this thread if sleep is interrupted.
-                        return;
-                    }
-                }
+    static private boolean canUpload(Context context)
+    {
+        if (!Utils.hasNetworkConnectivity(context))
+        {
+            return false;
+        }
+
+        // Uploads won't succeed while VpnService routing is enabled but the
+        // tunnel is not connected.
+        // TODO: In that situation, use the tunnel-core UrlProxy/direct mode.
+        PsiphonData psiphonData = PsiphonData.getPsiphonData();
+        if (psiphonData.getCurrentTunnelManager() != null &&
+            psiphonData.getTunnelWholeDevice() &&
+            !psiphonData.getDataTransferStats().isConnected())
+        {
+            return false;
+        }
+
+        return true;
+    }
+
+    static private void drainUploadQueue(Context context)
+    {
+        synchronized (s_uploadQueueLock)
+        {
+            drainUploadQueueLocked(context);
+        }
+    }
+
+    static private void drainUploadQueueLocked(Context context)
+    {
+        File[] queued = getQueuedUploads(context);
+        if (queued.length == 0)
+        {
+            return;
+        }
+
+        if (!canUpload(context))
+        {
+            // Wait for resumeUploads, with a periodic check in case it doesn't come
+            scheduleDrain(context, retryDelay());
+            return;
+        }
+
+        for (File diagnosticPackage : queued)
+        {
+            String filename = diagnosticPackage.getName();
+            String uploadId = filename.substring(
+                    filename.indexOf('_') + 1,
+                    filename.length() - UPLOAD_QUEUE_FILE_SUFFIX.length());
+
+            if (!doFeedbackUpload(diagnosticPackage, uploadId))
+            {
+                s_uploadFailureCount++;
+                long delay = retryDelay();
+                MyLog.g("Diagnostic data send fail", "retryDelayMs", delay);
+                scheduleDrain(context, delay);
+                return;
             }
+
+            diagnosticPackage.delete();
+            s_uploadFailureCount = 0;
         }
+    }
 
-        FeedbackRequestThread thread = new FeedbackRequestThread(
-                                            context,
-                                            sendDiagnosticInfo,
-                                            email,
-                                            feedbackText,
-                                            surveyResponsesJson);
-        thread.start();
+    static private long retryDelay()
+    {
+        int exponent = Math.min(Math.max(s_uploadFailureCount - 1, 0), 16);
+        return Math.min(UPLOAD_RETRY_INITIAL_DELAY_MS << exponent, UPLOAD_RETRY_MAX_DELAY_MS);
     }
     
     public final static int FEEDBACK_UPLOAD_TIMEOUT_MS = 30000;
     
-    static private boolean doFeedbackUpload(byte[] feedbackData)
+    static private boolean doFeedbackUpload(File feedbackData, String uploadId)
     {
-        // NOTE: Won't succeed while VpnService routing is enabled but tunnel
-        // is not connected.
-        // TODO: In that situation, use the tunnel-core UrlProxy/direct mode.
-
-        SecureRandom rnd = new SecureRandom();
-        byte[] uploadId = new byte[8];
-        rnd.nextBytes(uploadId);
-
         StringBuilder url = new StringBuilder();
         url.append("https://");
         url.append(EmbeddedValues.FEEDBACK_DIAGNOSTIC_INFO_UPLOAD_SERVER);
         url.append(EmbeddedValues.FEEDBACK_DIAGNOSTIC_INFO_UPLOAD_PATH);
-        url.append(Utils.byteArrayToHexString(uploadId));
+        url.append(uploadId);
 
         HttpsURLConnection httpsConn = null;
+        ScheduledFuture<?> timeout = null;
         boolean success = false;
         try
         {
             httpsConn = (HttpsURLConnection) new URL(url.toString()).openConnection();
 
-            // URLConnection timeouts are insufficient may be unreliable, so run a timeout
-            // thread to ensure HTTPS connection is terminated after 30 seconds if it
+            // URLConnection timeouts are insufficient may be unreliable, so schedule a
+            // timeout to ensure HTTPS connection is terminated after 30 seconds if it
             // has not already completed.
             // E.g., http://stackoverflow.com/questions/11329277/why-timeout-value-is-not-respected-by-android-httpurlconnection
             final HttpsURLConnection finalHttpsConn = httpsConn;
-            new Thread(new Runnable()
+            timeout = BackgroundExecutors.scheduled().schedule(new Runnable()
             {
                 public void run()
                 {
-                    try
-                    {
-                        Thread.sleep(FEEDBACK_UPLOAD_TIMEOUT_MS);
-                    }
-                    catch (InterruptedException e)
-                    {
-                    }
                     finalHttpsConn.disconnect();
                 }
-            }).start();
+            }, FEEDBACK_UPLOAD_TIMEOUT_MS, TimeUnit.MILLISECONDS);
             
             httpsConn.setDoOutput(true);
             httpsConn.setRequestMethod("PUT");
             // Note: assumes this is only a single header
             String[] headerPieces = EmbeddedValues.FEEDBACK_DIAGNOSTIC_INFO_UPLOAD_SERVER_HEADERS.split(": ");
             httpsConn.setRequestProperty(headerPieces[0], headerPieces[1]);
-            httpsConn.setFixedLengthStreamingMode(feedbackData.length);
+            // The upload server requires a Content-Length, so stream the file in
+            // fixed-length mode rather than with chunked transfer encoding.
+            httpsConn.setFixedLengthStreamingMode((int)feedbackData.length());
 
             httpsConn.connect();
-            httpsConn.getOutputStream().write(feedbackData);
+            copyFile(feedbackData, httpsConn.getOutputStream());
             
             // getInputStream() checks response status code
             httpsConn.getInputStream();
@@ -418,14 +720,18 @@ public class Diagnostics
         }
         catch (ProtocolException e)
         {
-            MyLog.g("Diagnostic doFeedbackUpload failed: %s", e.getMessage());
+            MyLog.g("Diagnostic doFeedbackUpload failed", "error", e.getMessage());
         }
         catch (IOException e)
         {
-            MyLog.g("Diagnostic doFeedbackUpload failed: %s", e.getMessage());
+            MyLog.g("Diagnostic doFeedbackUpload failed", "error", e.getMessage());
         }
         finally
         {
+            if (timeout != null)
+            {
+                timeout.cancel(false);
+            }
             if (httpsConn != null)
             {
                 httpsConn.disconnect();
@@ -434,4 +740,23 @@ public class Diagnostics
 
         return success;
     }
+
+    static private void copyFile(File file, OutputStream out) throws IOException
+    {
+        InputStream in = new FileInputStream(file);
+        try
+        {
+            byte[] buffer = new byte[DIAGNOSTIC_BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) != -1)
+            {
+                out.write(buffer, 0, n);
+            }
+            out.flush();
+        }
+        finally
+        {
+            in.close();
+        }
+    }
 }
@@ -21,6 +21,9 @@ package com.psiphon3.psiphonlibrary;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -426,6 +429,28 @@ public abstract class MainBase {
             PsiphonData.getPsiphonData().setProxyDomain(proxyDomainPreference);
         }
 
+        @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+        private List<String> getVpnBypassApplicationsPreference() {
+            // The preference is only offered on Android 5.0+, where apps can be excluded from the VPN
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+                return new ArrayList<String>();
+            }
+            List<String> vpnBypassApplications = new ArrayList<String>(PreferenceManager.getDefaultSharedPreferences(this).getStringSet(
+                    getString(R.string.vpnBypassApplicationsPreference), new HashSet<String>()));
+            Collections.sort(vpnBypassApplications);
+            return vpnBypassApplications;
+        }
+
+        private void updateVpnSettingsFromPreferences() {
+            PsiphonData.getPsiphonData().setVpnBypassApplications(getVpnBypassApplicationsPreference());
+        }
+
+        private boolean isVpnSettingsRestartRequired() {
+            // The bypass list is applied when the VPN is established
+            return PsiphonData.getPsiphonData().getTunnelWholeDevice()
+                    && !getVpnBypassApplicationsPreference().equals(PsiphonData.getPsiphonData().getVpnBypassApplications());
+        }
+
         @SuppressLint("SetJavaScriptEnabled")
         @Override
         protected void onCreate(Bundle savedInstanceState) {
@@ -563,6 +588,7 @@ public abstract class MainBase {
             PsiphonData.getPsiphonData().setTunnelWholeDevice(m_canWholeDevice && tunnelWholeDevicePreference);
 
             updateProxySettingsFromPreferences();
+            updateVpnSettingsFromPreferences();
 
             // Note that this must come after the above lines, or else the
             // activity
@@ -625,6 +651,7 @@ public abstract class MainBase {
         protected void onResume() {
             super.onResume();
             updateProxySettingsFromPreferences();
+            updateVpnSettingsFromPreferences();
             
             // From: http://steve.odyfamily.com/?p=12
             m_updateHeaderTimer = new Timer();
@@ -1125,13 +1152,15 @@ public abstract class MainBase {
                 // But, it should be called before stopping the tunnel, since the tunnel
                 // gets asyncronously restarted, and we want it to be restarted with
                 // the new settings.
-                if (isProxySettingsRestartRequired() && isServiceRunning()) {
+                if ((isProxySettingsRestartRequired() || isVpnSettingsRestartRequired()) && isServiceRunning()) {
                     updateProxySettingsFromPreferences();
+                    updateVpnSettingsFromPreferences();
                     m_restartTunnel = true;
                     stopTunnelService();
                     // The tunnel will get restarted in m_updateServiceStateTimer
                 } else {
                     updateProxySettingsFromPreferences();
+                    updateVpnSettingsFromPreferences();
                 }
             }
         }
@@ -19,11 +19,17 @@
 
 package com.psiphon3.psiphonlibrary;
 
+import android.Manifest;
+import android.annotation.TargetApi;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.os.Build;
 import android.os.Bundle;
 import android.preference.CheckBoxPreference;
 import android.preference.EditTextPreference;
+import android.preference.MultiSelectListPreference;
 import android.preference.Preference;
 import android.preference.Preference.OnPreferenceClickListener;
 import android.preference.PreferenceActivity;
@@ -31,6 +37,11 @@ import android.preference.PreferenceCategory;
 import android.preference.PreferenceScreen;
 import android.text.InputType;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
 public class MoreOptionsPreferenceActivity extends PreferenceActivity implements OnSharedPreferenceChangeListener,
         OnPreferenceClickListener {
     CheckBoxPreference mUseProxy;
@@ -69,6 +80,11 @@ public class MoreOptionsPreferenceActivity extends PreferenceActivity implements
         mProxyDomain = (EditTextPreference) preferences
                 .findPreference(getString(R.string.useProxyDomainPreference));
 
+        // Excluding apps from the VPN requires Android 5.0
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            addVpnBypassApplicationsPreference(preferences);
+        }
+
         mUseSystemProxy.setOnPreferenceClickListener(this);
         mUseCustomProxy.setOnPreferenceClickListener(this);
         
@@ -77,6 +93,71 @@ public class MoreOptionsPreferenceActivity extends PreferenceActivity implements
         updatePreferencesScreen();
     }
 
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void addVpnBypassApplicationsPreference(PreferenceScreen preferences) {
+        PreferenceCategory category = new PreferenceCategory(this);
+        category.setKey(getString(R.string.vpnSettingsCategoryKey));
+        category.setTitle(R.string.vpn_settings_category_title);
+        preferences.addPreference(category);
+
+        final MultiSelectListPreference bypassApplications = new MultiSelectListPreference(this);
+        bypassApplications.setKey(getString(R.string.vpnBypassApplicationsPreference));
+        bypassApplications.setTitle(R.string.vpn_bypass_applications_title);
+        bypassApplications.setDialogTitle(R.string.vpn_bypass_applications_title);
+        bypassApplications.setSummary(R.string.vpn_bypass_applications_summary);
+        // Enabled once its entries are loaded
+        bypassApplications.setEnabled(false);
+        category.addPreference(bypassApplications);
+
+        // Listing the apps loads each one's label and checks its permissions, which
+        // takes seconds with many apps installed, so it's not done on the UI thread
+        final PackageManager packageManager = getPackageManager();
+        final String ownPackageName = getPackageName();
+        Runnable loadTask = new Runnable() {
+            @Override
+            public void run() {
+                // Each entry is {label, package name}, for apps that can use the network
+                List<String[]> applications = new ArrayList<String[]>();
+                for (ApplicationInfo application : packageManager.getInstalledApplications(0)) {
+                    if (!application.packageName.equals(ownPackageName) &&
+                            packageManager.checkPermission(Manifest.permission.INTERNET, application.packageName)
+                                    == PackageManager.PERMISSION_GRANTED) {
+                        applications.add(new String[] {
+                                application.loadLabel(packageManager).toString(), application.packageName});
+                    }
+                }
+                Collections.sort(applications, new Comparator<String[]>() {
+                    @Override
+                    public int compare(String[] lhs, String[] rhs) {
+                        return lhs[0].compareToIgnoreCase(rhs[0]);
+                    }
+                });
+
+                final CharSequence[] entries = new CharSequence[applications.size()];
+                final CharSequence[] entryValues = new CharSequence[applications.size()];
+                for (int i = 0; i < applications.size(); i++) {
+                    entries[i] = applications.get(i)[0];
+                    entryValues[i] = applications.get(i)[1];
+                }
+
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isFinishing()) {
+                            return;
+                        }
+                        bypassApplications.setEntries(entries);
+                        bypassApplications.setEntryValues(entryValues);
+                        bypassApplications.setEnabled(true);
+                    }
+                });
+            }
+        };
+        if (!BackgroundExecutors.io().tryExecute(loadTask)) {
+            BackgroundExecutors.newThread("applications", android.os.Process.THREAD_PRIORITY_BACKGROUND, loadTask).start();
+        }
+    }
+
     private void disableCustomProxySettings() {
         mProxyHost.setEnabled(false);
         mProxyPort.setEnabled(false);
@@ -22,12 +22,15 @@ package com.psiphon3.psiphonlibrary;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 
 import org.apache.http.auth.Credentials;
 import org.apache.http.auth.NTCredentials;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.content.Context;
@@ -82,6 +85,9 @@ public class PsiphonData
     private DataTransferStats m_dataTransferStats;
     private boolean m_displayDataTransferStats;
     private boolean m_downloadUpgrades;
+    private int m_vpnInterfaceMTU;
+    private boolean m_autoTuneVpnInterfaceMTU;
+    private List<String> m_vpnBypassApplications;
     private String m_egressRegion;
     private String m_clientRegion;
     
@@ -105,6 +111,9 @@ public class PsiphonData
         m_dataTransferStats = new DataTransferStats();
         m_displayDataTransferStats = false;
         m_downloadUpgrades = false;
+        m_vpnInterfaceMTU = 0;
+        m_autoTuneVpnInterfaceMTU = false;
+        m_vpnBypassApplications = new ArrayList<String>();
         m_egressRegion = PsiphonConstants.REGION_CODE_ANY;
     }
 
@@ -535,6 +544,44 @@ public class PsiphonData
         return m_downloadUpgrades;
     }
 
+    /**
+     * @param vpnInterfaceMTU The VPN interface MTU to use in whole device mode,
+     *        or 0 to use the default or auto-tuned value.
+     */
+    public synchronized void setVpnInterfaceMTU(int vpnInterfaceMTU)
+    {
+        m_vpnInterfaceMTU = vpnInterfaceMTU;
+    }
+
+    public synchronized int getVpnInterfaceMTU()
+    {
+        return m_vpnInterfaceMTU;
+    }
+
+    public synchronized void setAutoTuneVpnInterfaceMTU(boolean autoTuneVpnInterfaceMTU)
+    {
+        m_autoTuneVpnInterfaceMTU = autoTuneVpnInterfaceMTU;
+    }
+
+    public synchronized boolean getAutoTuneVpnInterfaceMTU()
+    {
+        return m_autoTuneVpnInterfaceMTU;
+    }
+
+    /**
+     * @param vpnBypassApplications Package names of apps excluded from the VPN
+     *        in whole device mode.
+     */
+    public synchronized void setVpnBypassApplications(Collection<String> vpnBypassApplications)
+    {
+        m_vpnBypassApplications = new ArrayList<String>(vpnBypassApplications);
+    }
+
+    public synchronized List<String> getVpnBypassApplications()
+    {
+        return new ArrayList<String>(m_vpnBypassApplications);
+    }
+
     public synchronized void setDisplayDataTransferStats(boolean displayDataTransferStats)
     {
         m_displayDataTransferStats = displayDataTransferStats;
@@ -890,13 +937,26 @@ public class PsiphonData
     
     static public class DiagnosticEntry extends Object
     {
-        private Date timestamp;
+        // A single field logged with a typed MyLog.g overload is stored in
+        // the entry itself, without a boxed value or a name/value array.
+        static final int FIELD_NONE = 0;
+        static final int FIELD_STRING = 1;
+        static final int FIELD_LONG = 2;
+        static final int FIELD_BOOLEAN = 3;
+
+        private long timestamp;
         private String msg;
+        private Object[] nameValuePairs;
         private JSONObject data;
+        private int fieldType = FIELD_NONE;
+        private String fieldName;
+        private String fieldStringValue;
+        private long fieldLongValue;
+        private int suppressedCount;
 
         public Date timestamp()
         {
-            return timestamp;
+            return new Date(timestamp);
         }
         
         public String msg()
@@ -904,23 +964,137 @@ public class PsiphonData
             return msg;
         }
         
+        /**
+         * @return The name/value pairs passed to MyLog.g, or null if the
+         *         entry was logged with a JSONObject. Values are rendered
+         *         only when the diagnostic data is exported.
+         */
+        public Object[] nameValuePairs()
+        {
+            switch (fieldType)
+            {
+            case FIELD_STRING:
+                return new Object[] {fieldName, fieldStringValue};
+            case FIELD_LONG:
+                return new Object[] {fieldName, Long.valueOf(fieldLongValue)};
+            case FIELD_BOOLEAN:
+                return new Object[] {fieldName, Boolean.valueOf(fieldLongValue != 0)};
+            default:
+                return nameValuePairs;
+            }
+        }
+
+        int fieldType()
+        {
+            return fieldType;
+        }
+
+        String fieldName()
+        {
+            return fieldName;
+        }
+
+        String fieldStringValue()
+        {
+            return fieldStringValue;
+        }
+
+        long fieldLongValue()
+        {
+            return fieldLongValue;
+        }
+
         public JSONObject data()
         {
+            Object[] nameValuePairs = nameValuePairs();
+            if (data == null && nameValuePairs != null)
+            {
+                JSONObject rendered = new JSONObject();
+                try
+                {
+                    for (int i = 0; i + 1 < nameValuePairs.length; i += 2)
+                    {
+                        rendered.put(nameValuePairs[i].toString(), nameValuePairs[i+1]);
+                    }
+                }
+                catch (JSONException e)
+                {
+                    throw new RuntimeException(e);
+                }
+                return rendered;
+            }
             return data;
         }
+
+        /**
+         * @return The number of entries with the same msg that were dropped
+         *         by rate limiting since the previous recorded entry.
+         */
+        public int suppressedCount()
+        {
+            return suppressedCount;
+        }
     }
-        
-    static private List<DiagnosticEntry> m_diagnosticHistory = new ArrayList<DiagnosticEntry>();
+
+    // Bound the memory used by a long running tunnel; the oldest entries are dropped.
+    static private final int MAX_DIAGNOSTIC_HISTORY = 5000;
+
+    static private LinkedList<DiagnosticEntry> m_diagnosticHistory = new LinkedList<DiagnosticEntry>();
 
     static public void addDiagnosticEntry(Date timestamp, String msg, JSONObject data)
+    {
+        addDiagnosticEntry(timestamp.getTime(), msg, null, data, 0);
+    }
+
+    static void addDiagnosticEntry(
+            long timestamp,
+            String msg,
+            Object[] nameValuePairs,
+            JSONObject data,
+            int suppressedCount)
     {
         DiagnosticEntry entry = new DiagnosticEntry();
         entry.timestamp = timestamp;
         entry.msg = msg;
+        entry.nameValuePairs = nameValuePairs;
         entry.data = data;
+        entry.suppressedCount = suppressedCount;
+        addDiagnosticEntry(entry);
+    }
+
+    /**
+     * Add an entry with a single field. fieldType is one of the
+     * DiagnosticEntry FIELD_ values; a boolean is stored as a long, 0 or 1.
+     */
+    static void addDiagnosticEntry(
+            long timestamp,
+            String msg,
+            int fieldType,
+            String fieldName,
+            String fieldStringValue,
+            long fieldLongValue,
+            int suppressedCount)
+    {
+        DiagnosticEntry entry = new DiagnosticEntry();
+        entry.timestamp = timestamp;
+        entry.msg = msg;
+        entry.fieldType = fieldType;
+        entry.fieldName = fieldName;
+        entry.fieldStringValue = fieldStringValue;
+        entry.fieldLongValue = fieldLongValue;
+        entry.suppressedCount = suppressedCount;
+        addDiagnosticEntry(entry);
+    }
+
+    static private void addDiagnosticEntry(DiagnosticEntry entry)
+    {
         synchronized(m_diagnosticHistory) 
         {
-            m_diagnosticHistory.add(entry);
+            if (m_diagnosticHistory.size() >= MAX_DIAGNOSTIC_HISTORY)
+            {
+                m_diagnosticHistory.removeFirst();
+            }
+            m_diagnosticHistory.addLast(entry);
         }
     }
     
@@ -72,6 +72,8 @@ public class TunnelManager implements PsiphonTunnel.HostService {
         m_isReconnect = new AtomicBoolean(false);
         m_isStopping = new AtomicBoolean(false);
         m_tunnel = PsiphonTunnel.newPsiphonTunnel(this);
+        m_tunnel.setTun2SocksLogLevel(PsiphonConstants.DEBUG ?
+                PsiphonTunnel.TUN2SOCKS_LOG_LEVEL_INFO : PsiphonTunnel.TUN2SOCKS_LOG_LEVEL_WARNING);
     }
 
     // Implementation of android.app.Service.onStartCommand
@@ -81,12 +83,15 @@ public class TunnelManager implements PsiphonTunnel.HostService {
             MyLog.v(R.string.client_version, MyLog.Sensitivity.NOT_SENSITIVE, EmbeddedValues.CLIENT_VERSION);
             m_firstStart = false;
             m_tunnelThreadStopSignal = new CountDownLatch(1);
-            m_tunnelThread = new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        runTunnel();
-                    }
-            });
+            // Runs for the lifetime of the service, so it has its own thread rather
+            // than holding one of the shared executors' threads
+            m_tunnelThread = BackgroundExecutors.newThread("tunnel", android.os.Process.THREAD_PRIORITY_DEFAULT,
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            runTunnel();
+                        }
+                    });
             m_tunnelThread.start();
         }
         return android.app.Service.START_NOT_STICKY;
@@ -269,11 +274,11 @@ public class TunnelManager implements PsiphonTunnel.HostService {
         } catch (FileNotFoundException e) {
             // pass
         } catch (IOException e) {
-            MyLog.g("prepareServerEntries failed: %s", e.getMessage());
+            MyLog.g("prepareServerEntries failed", "error", e.getMessage());
         } catch (JSONException e) {
-            MyLog.g("prepareServerEntries failed: %s", e.getMessage());
+            MyLog.g("prepareServerEntries failed", "error", e.getMessage());
         } catch (OutOfMemoryError e) {
-            MyLog.g("prepareServerEntries failed: %s", e.getMessage());
+            MyLog.g("prepareServerEntries failed", "error", e.getMessage());
 
             // Comment from legacy code:
             // Some mature client installs have so many server entries they cannot load them without
@@ -432,6 +437,13 @@ public class TunnelManager implements PsiphonTunnel.HostService {
 
             json.put("UpstreamProxyUrl", PsiphonData.getPsiphonData().getUpstreamProxyUrl(m_parentService));            
             
+            // Not used by tunnel-core; PsiphonTunnel reads these when establishing the VPN
+            if (PsiphonData.getPsiphonData().getVpnInterfaceMTU() > 0) {
+                json.put("VpnInterfaceMTU", PsiphonData.getPsiphonData().getVpnInterfaceMTU());
+            }
+            json.put("VpnInterfaceMTUAutoTune", PsiphonData.getPsiphonData().getAutoTuneVpnInterfaceMTU());
+            json.put("VpnBypassApplications", new JSONArray(PsiphonData.getPsiphonData().getVpnBypassApplications()));
+
             String egressRegion = PsiphonData.getPsiphonData().getEgressRegion();
             MyLog.g("EgressRegion", "regionCode", egressRegion);
             json.put("EgressRegion", egressRegion);
@@ -443,6 +455,12 @@ public class TunnelManager implements PsiphonTunnel.HostService {
         }
     }
 
+    static {
+        // All tunnel-core notices and tun2socks logs arrive as "diagnostic"
+        // entries, so allow for the bursts while connecting.
+        MyLog.setDiagnosticPolicy("diagnostic", 1, 600);
+    }
+
     @Override
     public void onDiagnosticMessage(String message) {
         MyLog.g("diagnostic", "msg", message);
@@ -524,6 +542,9 @@ public class TunnelManager implements PsiphonTunnel.HostService {
 
         // Any subsequent onConnecting after this first onConnect will be a reconnect.
         m_isReconnect.set(true);
+
+        // Feedback uploads are held while VPN routing is up and the tunnel isn't connected
+        Diagnostics.resumeUploads(m_parentService);
     }
 
     @Override
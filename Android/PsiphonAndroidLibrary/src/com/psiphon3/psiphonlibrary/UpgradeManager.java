@@ -20,14 +20,23 @@
 package com.psiphon3.psiphonlibrary;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Locale;
 import java.util.zip.GZIPInputStream;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import com.psiphon3.psiphonlibrary.AuthenticatedDataPackage.AuthenticatedDataPackageException;
 import com.psiphon3.psiphonlibrary.Utils.MyLog;
 
@@ -38,7 +47,6 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.net.Uri;
 
@@ -47,6 +55,37 @@ import android.net.Uri;
  */
 public interface UpgradeManager
 {
+    /**
+     * Receives progress updates while an upgrade package is being extracted.
+     * Called on the extracting thread.
+     */
+    public interface ExtractProgressListener
+    {
+        public void onProgress(long bytesRead, long totalBytes);
+    }
+
+    /**
+     * Outcome of extracting a downloaded upgrade package.
+     */
+    public enum ExtractResult
+    {
+        /**
+         * The package was authenticated and the verified upgrade file written.
+         */
+        SUCCESS,
+
+        /**
+         * The package itself is corrupt, truncated or fails authentication.
+         */
+        PACKAGE_INVALID,
+
+        /**
+         * The package could not be extracted due to a local condition, such as
+         * insufficient free space for the extracted file. The package may be fine.
+         */
+        LOCAL_ERROR
+    }
+
     /**
      * To be used by other UpgradeManager classes only.
      */
@@ -73,16 +112,7 @@ public interface UpgradeManager
         
         public boolean exists()
         {
-            try
-            {
-                this.context.openFileInput(getFilename());
-            } 
-            catch (FileNotFoundException e)
-            {
-                return false;
-            }
-            
-            return true;
+            return new File(getFullPath()).isFile();
         }
         
         public boolean delete()
@@ -176,6 +206,118 @@ public interface UpgradeManager
             // Making the APK world readable so Installer component can access it
             return true;
         }
+
+        private String getMetadataFilename()
+        {
+            return getFilename() + ".metadata";
+        }
+
+        @Override
+        public boolean delete()
+        {
+            super.context.deleteFile(getMetadataFilename());
+            return super.delete();
+        }
+
+        /**
+         * Returns the versionCode of the verified APK, or -1 if it can't be determined.
+         * Parsing the APK is expensive and this is checked on every tunnel start, so the
+         * result is cached in a small metadata file, keyed by the APK's size and modification
+         * time. While the APK is unchanged, this is a stat and a small read.
+         */
+        public int getVersionCode()
+        {
+            File file = new File(getFullPath());
+            long size = file.length();
+            long lastModified = file.lastModified();
+
+            JSONObject metadata = readMetadata();
+            if (metadata != null &&
+                metadata.optLong("size", -1) == size &&
+                metadata.optLong("lastModified", -1) == lastModified &&
+                metadata.has("versionCode"))
+            {
+                return metadata.optInt("versionCode", -1);
+            }
+
+            PackageInfo packageInfo = super.context.getPackageManager().getPackageArchiveInfo(getFullPath(), 0);
+            if (packageInfo == null)
+            {
+                return -1;
+            }
+
+            try
+            {
+                metadata = new JSONObject();
+                metadata.put("size", size);
+                metadata.put("lastModified", lastModified);
+                metadata.put("versionCode", packageInfo.versionCode);
+                writeMetadata(metadata);
+            }
+            catch (JSONException e)
+            {
+                // Not cached; the next check will parse the APK again
+            }
+            catch (IOException e)
+            {
+                // Not cached; the next check will parse the APK again
+            }
+
+            return packageInfo.versionCode;
+        }
+
+        private JSONObject readMetadata()
+        {
+            FileInputStream in = null;
+            try
+            {
+                in = super.context.openFileInput(getMetadataFilename());
+                ByteArrayOutputStream data = new ByteArrayOutputStream();
+                byte[] buffer = new byte[512];
+                int n;
+                while ((n = in.read(buffer)) != -1)
+                {
+                    data.write(buffer, 0, n);
+                }
+                return new JSONObject(data.toString("UTF-8"));
+            }
+            catch (FileNotFoundException e)
+            {
+                return null;
+            }
+            catch (IOException e)
+            {
+                return null;
+            }
+            catch (JSONException e)
+            {
+                return null;
+            }
+            finally
+            {
+                if (in != null)
+                {
+                    try { in.close(); } catch (IOException e) {}
+                }
+            }
+        }
+
+        private void writeMetadata(JSONObject metadata) throws IOException
+        {
+            FileOutputStream out = null;
+            try
+            {
+                out = super.context.openFileOutput(getMetadataFilename(), 0);
+                out.write(metadata.toString().getBytes("UTF-8"));
+            }
+            finally
+            {
+                if (out != null)
+                {
+                    try { out.close(); } catch (IOException e) {}
+                }
+            }
+        }
     }    
 
     static class UnverifiedUpgradeFile extends UpgradeFile
@@ -214,14 +356,169 @@ public interface UpgradeManager
             return false;
         }
 
-        private InputStream openUnzipStream() throws IOException, FileNotFoundException
+        // The upgrade package is a 10-20MB gzipped, Base64-encoded APK. The default
+        // GZIPInputStream inflater buffer is 512 bytes and the default file output is
+        // unbuffered, which results in many small reads, writes and signature updates.
+        private static final int EXTRACT_BUFFER_SIZE = 64*1024;
+
+        // Minimum number of compressed bytes between progress callbacks
+        private static final int EXTRACT_PROGRESS_INTERVAL = 256*1024;
+
+        private static class ProgressInputStream extends FilterInputStream
+        {
+            private final long totalBytes;
+            private final ExtractProgressListener listener;
+            private long bytesRead = 0;
+            private long lastReported = 0;
+
+            public ProgressInputStream(InputStream in, long totalBytes, ExtractProgressListener listener)
+            {
+                super(in);
+                this.totalBytes = totalBytes;
+                this.listener = listener;
+            }
+
+            public long getBytesRead()
+            {
+                return this.bytesRead;
+            }
+
+            @Override
+            public int read() throws IOException
+            {
+                int b = super.read();
+                if (b != -1)
+                {
+                    advance(1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException
+            {
+                int n = super.read(buffer, offset, count);
+                if (n > 0)
+                {
+                    advance(n);
+                }
+                return n;
+            }
+
+            @Override
+            public long skip(long count) throws IOException
+            {
+                long n = super.skip(count);
+                if (n > 0)
+                {
+                    advance(n);
+                }
+                return n;
+            }
+
+            @Override
+            public boolean markSupported()
+            {
+                return false;
+            }
+
+            private void advance(long n)
+            {
+                this.bytesRead += n;
+                if (this.listener != null &&
+                    (this.bytesRead - this.lastReported >= EXTRACT_PROGRESS_INTERVAL ||
+                     this.bytesRead >= this.totalBytes))
+                {
+                    this.lastReported = this.bytesRead;
+                    this.listener.onProgress(this.bytesRead, this.totalBytes);
+                }
+            }
+        }
+
+        // Records whether a write to the extraction destination failed, which
+        // AuthenticatedDataPackage would otherwise report as an authentication failure.
+        private static class WriteFailureOutputStream extends FilterOutputStream
         {
-            return new GZIPInputStream(new BufferedInputStream(super.context.openFileInput(getFilename())));
+            private boolean writeFailed = false;
+
+            public WriteFailureOutputStream(OutputStream out)
+            {
+                super(out);
+            }
+
+            public boolean writeFailed()
+            {
+                return this.writeFailed;
+            }
+
+            @Override
+            public void write(int b) throws IOException
+            {
+                try
+                {
+                    this.out.write(b);
+                }
+                catch (IOException e)
+                {
+                    this.writeFailed = true;
+                    throw e;
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException
+            {
+                try
+                {
+                    this.out.write(b, off, len);
+                }
+                catch (IOException e)
+                {
+                    this.writeFailed = true;
+                    throw e;
+                }
+            }
+
+            @Override
+            public void flush() throws IOException
+            {
+                try
+                {
+                    this.out.flush();
+                }
+                catch (IOException e)
+                {
+                    this.writeFailed = true;
+                    throw e;
+                }
+            }
+
+            @Override
+            public void close() throws IOException
+            {
+                try
+                {
+                    this.out.close();
+                }
+                catch (IOException e)
+                {
+                    this.writeFailed = true;
+                    throw e;
+                }
+            }
         }
 
         public boolean extractAndVerify()
         {
+            return extract(null) == ExtractResult.SUCCESS;
+        }
+
+        public ExtractResult extract(ExtractProgressListener progressListener)
+        {
+            ProgressInputStream fileStream = null;
             InputStream unzipStream = null;
+            WriteFailureOutputStream dataDestination = null;
+            long startTime = System.currentTimeMillis();
 
             try
             {
@@ -230,33 +527,70 @@ public interface UpgradeManager
                 // additional signature check mitigates against a malicious MiM which supplies
                 // a malicious, unsigned, upgrade payload which our intent would start to install.
                 
-                unzipStream = openUnzipStream();
+                fileStream = new ProgressInputStream(
+                        super.context.openFileInput(getFilename()),
+                        getSize(),
+                        progressListener);
+
+                unzipStream = new GZIPInputStream(
+                        new BufferedInputStream(fileStream, EXTRACT_BUFFER_SIZE),
+                        EXTRACT_BUFFER_SIZE);
                 
                 UnverifiedUpgradeFile unverifiedFile = new UnverifiedUpgradeFile(super.context);
-                OutputStream dataDestination = unverifiedFile.createForWriting();
+                try
+                {
+                    dataDestination = new WriteFailureOutputStream(
+                            new BufferedOutputStream(
+                                unverifiedFile.createForWriting(),
+                                EXTRACT_BUFFER_SIZE));
+                }
+                catch (FileNotFoundException e)
+                {
+                    MyLog.w(R.string.UpgradeManager_UpgradeFileWriteFailed, MyLog.Sensitivity.NOT_SENSITIVE, e);
+                    return ExtractResult.LOCAL_ERROR;
+                }
                 
+                // NOTE: extractAndVerifyData closes dataDestination, which flushes the buffer
                 AuthenticatedDataPackage.extractAndVerifyData(
                         EmbeddedValues.UPGRADE_SIGNATURE_PUBLIC_KEY,
                         unzipStream,
                         true, // "data" is Base64 (and is a large value to be streamed)
                         dataDestination);
 
-                return unverifiedFile.rename(new VerifiedUpgradeFile(super.context).getFilename());
+                long elapsedTime = Math.max(1, System.currentTimeMillis() - startTime);
+                long extractedBytes = unverifiedFile.getSize();
+                MyLog.g("UpgradeExtracted",
+                        "packageBytes", fileStream.getBytesRead(),
+                        "extractedBytes", extractedBytes,
+                        "milliseconds", elapsedTime,
+                        "MBps", String.format(Locale.US, "%.2f", (extractedBytes / 1048576.0) / (elapsedTime / 1000.0)));
+
+                if (!unverifiedFile.rename(new VerifiedUpgradeFile(super.context).getFilename()))
+                {
+                    return ExtractResult.LOCAL_ERROR;
+                }
+                return ExtractResult.SUCCESS;
             }
             catch (FileNotFoundException e)
             {
                 MyLog.w(R.string.UpgradeManager_UpgradeFileNotFound, MyLog.Sensitivity.NOT_SENSITIVE, e);
-                return false;
+                return ExtractResult.LOCAL_ERROR;
             }
             catch (IOException e)
             {
+                // GZIPInputStream throws for a corrupt or truncated package
                 MyLog.w(R.string.UpgradeManager_UpgradeFileReadFailed, MyLog.Sensitivity.NOT_SENSITIVE, e);
-                return false;
+                return ExtractResult.PACKAGE_INVALID;
             }
             catch (AuthenticatedDataPackageException e)
             {
+                if (dataDestination != null && dataDestination.writeFailed())
+                {
+                    MyLog.w(R.string.UpgradeManager_UpgradeFileWriteFailed, MyLog.Sensitivity.NOT_SENSITIVE, e);
+                    return ExtractResult.LOCAL_ERROR;
+                }
                 MyLog.w(R.string.UpgradeManager_UpgradeFileAuthenticateFailed, MyLog.Sensitivity.NOT_SENSITIVE, e);
-                return false;
+                return ExtractResult.PACKAGE_INVALID;
             }
             finally
             {
@@ -264,6 +598,10 @@ public interface UpgradeManager
                 {
                     try { unzipStream.close(); } catch (IOException e) {}
                 }
+                else if (fileStream != null)
+                {
+                    try { fileStream.close(); } catch (IOException e) {}
+                }
             }
         }
     }
@@ -311,18 +649,28 @@ public interface UpgradeManager
             
             if (downloadedFile.exists())
             {
-                boolean success  = downloadedFile.extractAndVerify();
+                ExtractResult result = downloadedFile.extract(null);
 
                 // If the extract and verify succeeds, delete it since it's no longer
                 // required and we don't want to re-install it.
                 // If the file isn't working and we think we have the complete file,
                 // there may be corrupt bytes. So delete it and next time we'll start over.
-                // NOTE: this means if the failure was due to not enough free space
-                // to write the extracted file... we still re-download.
+                // If the failure was due to a local condition, such as not enough free
+                // space to write the extracted file, keep the package and retry the
+                // extraction next time instead of re-downloading it over the tunnel.
+                // TODO: A corrupt package is re-downloaded in full. Re-fetching only the bad
+                // chunks needs a signed per-chunk SHA-256 manifest from the publisher and
+                // chunk re-fetch in tunnel-core, which writes the downloaded file.
+
+                if (result == ExtractResult.LOCAL_ERROR)
+                {
+                    new UnverifiedUpgradeFile(context).delete();
+                    return null;
+                }
 
                 downloadedFile.delete();
                 
-                if (!success)
+                if (result != ExtractResult.SUCCESS)
                 {
                     return null;
                 }
@@ -338,12 +686,9 @@ public interface UpgradeManager
             
             // Is it a higher version than the current app?
             
-            final PackageManager pm = context.getPackageManager();
-            
-            // Info about the potential upgrade file
-            PackageInfo upgradePackageInfo = pm.getPackageArchiveInfo(file.getFullPath(), 0);
+            int upgradeVersionCode = file.getVersionCode();
 
-            if (upgradePackageInfo == null)
+            if (upgradeVersionCode == -1)
             {
                 // There's probably something wrong with the upgrade file.
                 file.delete();
@@ -368,7 +713,7 @@ public interface UpgradeManager
             }
             
             // Does the upgrade package have a higher version?
-            if (upgradePackageInfo.versionCode <= currentPackageInfo.versionCode)
+            if (upgradeVersionCode <= currentPackageInfo.versionCode)
             {
                 file.delete();
                 return null;
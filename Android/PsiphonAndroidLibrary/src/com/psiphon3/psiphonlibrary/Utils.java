@@ -1,6 +1,9 @@
 package com.psiphon3.psiphonlibrary;
 
 import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.lang.ref.WeakReference;
 import java.net.URLEncoder;
@@ -11,6 +14,7 @@ import java.security.SecureRandom;
 import java.security.spec.X509EncodedKeySpec;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.IllegalFormatException;
 import java.util.Locale;
 import java.util.Map;
@@ -19,14 +23,16 @@ import java.util.TimeZone;
 import java.util.concurrent.TimeUnit;
 
 import javax.crypto.Cipher;
-import javax.crypto.KeyGenerator;
+import javax.crypto.CipherOutputStream;
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
-import org.json.JSONException;
 import org.json.JSONObject;
 
+import com.psiphon3.psiphonlibrary.codec.Base64;
+
 import de.schildbach.wallet.util.LinuxSecureRandom;
 import android.annotation.TargetApi;
 import android.app.Activity;
@@ -38,6 +44,7 @@ import android.content.pm.PackageManager.NameNotFoundException;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 
 
@@ -90,176 +97,6 @@ public class Utils
         return min + (int)(Math.random() * ((max - min) + 1));
     }
     
-    // from:
-    // http://stackoverflow.com/questions/140131/convert-a-string-representation-of-a-hex-dump-to-a-byte-array-using-java
-    public static byte[] hexStringToByteArray(String s) {
-        int len = s.length();
-        if (len % 2 != 0) {
-            throw new IllegalArgumentException("len % 2 != 0");
-        }
-        byte[] data = new byte[len / 2];
-        for (int i = 0; i < len; i += 2) {
-            data[i / 2] = (byte) ((Character.digit(s.charAt(i), 16) << 4) + Character
-                    .digit(s.charAt(i + 1), 16));
-        }
-        return data;
-    }
-
-    // from:
-    // http://stackoverflow.com/questions/332079/in-java-how-do-i-convert-a-byte-array-to-a-string-of-hex-digits-while-keeping-l
-    public static String byteArrayToHexString(byte[] bytes) 
-    {
-        char[] hexArray = {'0','1','2','3','4','5','6','7','8','9','A','B','C','D','E','F'};
-        char[] hexChars = new char[bytes.length * 2];
-        int v;
-        for ( int j = 0; j < bytes.length; j++ ) 
-        {
-            v = bytes[j] & 0xFF;
-            hexChars[j*2] = hexArray[v/16];
-            hexChars[j*2 + 1] = hexArray[v%16];
-        }
-        return new String(hexChars);
-    }
-
-    /***************************************************************
-     * Copyright (c) 1998, 1999 Nate Sammons <nate@protomatter.com> This library
-     * is free software; you can redistribute it and/or modify it under the
-     * terms of the GNU Library General Public License as published by the Free
-     * Software Foundation; either version 2 of the License, or (at your option)
-     * any later version.
-     * 
-     * This library is distributed in the hope that it will be useful, but
-     * WITHOUT ANY WARRANTY; without even the implied warranty of
-     * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library
-     * General Public License for more details.
-     * 
-     * You should have received a copy of the GNU Library General Public License
-     * along with this library; if not, write to the Free Software Foundation,
-     * Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
-     * 
-     * Contact support@protomatter.com with your questions, comments, gripes,
-     * praise, etc...
-     ***************************************************************/
-
-    /***************************************************************
-     * - moved to the net.matuschek.util tree by Daniel Matuschek - replaced
-     * deprecated getBytes() method in method decode - added String
-     * encode(String) method to encode a String to base64
-     ***************************************************************/
-
-    /**
-     * Base64 encoder/decoder. Does not stream, so be careful with using large
-     * amounts of data
-     * 
-     * @author Nate Sammons
-     * @author Daniel Matuschek
-     * @version $Id: Base64.java,v 1.4 2001/04/17 10:09:27 matuschd Exp $
-     */
-    public static class Base64 {
-
-        private Base64() {
-            super();
-        }
-
-        /**
-         * Encode some data and return a String.
-         */
-        public final static String encode(byte[] d) {
-            if (d == null)
-                return null;
-            byte data[] = new byte[d.length + 2];
-            System.arraycopy(d, 0, data, 0, d.length);
-            byte dest[] = new byte[(data.length / 3) * 4];
-
-            // 3-byte to 4-byte conversion
-            for (int sidx = 0, didx = 0; sidx < d.length; sidx += 3, didx += 4) {
-                dest[didx] = (byte) ((data[sidx] >>> 2) & 077);
-                dest[didx + 1] = (byte) ((data[sidx + 1] >>> 4) & 017 | (data[sidx] << 4) & 077);
-                dest[didx + 2] = (byte) ((data[sidx + 2] >>> 6) & 003 | (data[sidx + 1] << 2) & 077);
-                dest[didx + 3] = (byte) (data[sidx + 2] & 077);
-            }
-
-            // 0-63 to ascii printable conversion
-            for (int idx = 0; idx < dest.length; idx++) {
-                if (dest[idx] < 26)
-                    dest[idx] = (byte) (dest[idx] + 'A');
-                else if (dest[idx] < 52)
-                    dest[idx] = (byte) (dest[idx] + 'a' - 26);
-                else if (dest[idx] < 62)
-                    dest[idx] = (byte) (dest[idx] + '0' - 52);
-                else if (dest[idx] < 63)
-                    dest[idx] = (byte) '+';
-                else
-                    dest[idx] = (byte) '/';
-            }
-
-            // add padding
-            for (int idx = dest.length - 1; idx > (d.length * 4) / 3; idx--) {
-                dest[idx] = (byte) '=';
-            }
-            return new String(dest);
-        }
-
-        /**
-         * Encode a String using Base64 using the default platform encoding
-         **/
-        public final static String encode(String s) {
-            return encode(s.getBytes());
-        }
-
-        /**
-         * Decode data and return bytes.
-         */
-        public final static byte[] decode(String str) {
-            if (str == null)
-                return null;
-            byte data[] = str.getBytes();
-            return decode(data);
-        }
-
-        /**
-         * Decode data and return bytes. Assumes that the data passed in is
-         * ASCII text.
-         */
-        public final static byte[] decode(byte[] data) {
-            int tail = data.length;
-            while (data[tail - 1] == '=')
-                tail--;
-            byte dest[] = new byte[tail - data.length / 4];
-
-            // ascii printable to 0-63 conversion
-            for (int idx = 0; idx < data.length; idx++) {
-                if (data[idx] == '=')
-                    data[idx] = 0;
-                else if (data[idx] == '/')
-                    data[idx] = 63;
-                else if (data[idx] == '+')
-                    data[idx] = 62;
-                else if (data[idx] >= '0' && data[idx] <= '9')
-                    data[idx] = (byte) (data[idx] - ('0' - 52));
-                else if (data[idx] >= 'a' && data[idx] <= 'z')
-                    data[idx] = (byte) (data[idx] - ('a' - 26));
-                else if (data[idx] >= 'A' && data[idx] <= 'Z')
-                    data[idx] = (byte) (data[idx] - 'A');
-            }
-
-            // 4-byte to 3-byte conversion
-            int sidx, didx;
-            for (sidx = 0, didx = 0; didx < dest.length - 2; sidx += 4, didx += 3) {
-                dest[didx] = (byte) (((data[sidx] << 2) & 255) | ((data[sidx + 1] >>> 4) & 3));
-                dest[didx + 1] = (byte) (((data[sidx + 1] << 4) & 255) | ((data[sidx + 2] >>> 2) & 017));
-                dest[didx + 2] = (byte) (((data[sidx + 2] << 6) & 255) | (data[sidx + 3] & 077));
-            }
-            if (didx < dest.length) {
-                dest[didx] = (byte) (((data[sidx] << 2) & 255) | ((data[sidx + 1] >>> 4) & 3));
-            }
-            if (++didx < dest.length) {
-                dest[didx] = (byte) (((data[sidx + 1] << 4) & 255) | ((data[sidx + 2] >>> 2) & 017));
-            }
-            return dest;
-        }
-    }
-    
     /**
      * URL-encodes a string. This is largely redundant with URLEncoder.encode,
      * but it tries to avoid using the deprecated URLEncoder.encode(String) while not
@@ -366,31 +203,166 @@ public class Utils
         }
 
         /**
-         * Log a diagnostic entry. This is the same as a debug ({@link #d(String)}) entry,
-         * except it will also be included in the feedback diagnostic attachment.
-         * @param msg The message to log.
+         * Log a diagnostic entry. Diagnostic entries are included in the
+         * feedback diagnostic attachment; they are not added to the status
+         * history. Entries are subject to the sampling and rate limits set
+         * with {@link #setDiagnosticPolicy(String, int, int)}.
+         * @param msg The message to log. This is also the message type that
+         *            sampling and rate limits apply to.
          */
         static public void g(String msg, JSONObject data)
         {
-            PsiphonData.addDiagnosticEntry(new Date(), msg, data);
-            // We're not logging the `data` at all. In the future we may want to.
-            MyLog.d(msg);
+            recordDiagnostic(msg, null, data);
         }
 
+        /**
+         * Log a diagnostic entry with name/value pair data. The values are
+         * stored as-is and only rendered to JSON when diagnostic data is
+         * exported, so they should be immutable (String, Number, Boolean).
+         */
         static public void g(String msg, Object... nameValuePairs)
         {
             assert(nameValuePairs.length%2 == 0);
-            JSONObject diagnosticData = new JSONObject();
-            try 
+            recordDiagnostic(msg, nameValuePairs, null);
+        }
+
+        /**
+         * Log a diagnostic entry with a single field. The typed overloads
+         * store the value in the entry itself, without allocating a
+         * name/value array or boxing the value.
+         */
+        static public void g(String msg, String name, String value)
+        {
+            recordDiagnostic(msg, PsiphonData.DiagnosticEntry.FIELD_STRING, name, value, 0);
+        }
+
+        static public void g(String msg, String name, long value)
+        {
+            recordDiagnostic(msg, PsiphonData.DiagnosticEntry.FIELD_LONG, name, null, value);
+        }
+
+        static public void g(String msg, String name, boolean value)
+        {
+            recordDiagnostic(msg, PsiphonData.DiagnosticEntry.FIELD_BOOLEAN, name, null, value ? 1 : 0);
+        }
+
+        // Default limit for each diagnostic message type; a burst of up to
+        // this many entries is allowed, refilling at this rate.
+        static private final int DEFAULT_DIAGNOSTIC_MAX_PER_MINUTE = 120;
+
+        static private class DiagnosticPolicy
+        {
+            private final int sampleOneIn;
+            private final int maxPerMinute;
+            private int sampleCount = 0;
+            private double tokens;
+            private long lastRefillTime;
+            private int suppressedCount = 0;
+
+            DiagnosticPolicy(int sampleOneIn, int maxPerMinute)
             {
-                for (int i = 0; i < nameValuePairs.length/2; i++)
-                diagnosticData.put(nameValuePairs[i*2].toString(), nameValuePairs[i*2+1]);
-            } 
-            catch (JSONException e) 
+                this.sampleOneIn = Math.max(sampleOneIn, 1);
+                this.maxPerMinute = maxPerMinute;
+                this.tokens = maxPerMinute;
+                this.lastRefillTime = SystemClock.elapsedRealtime();
+            }
+
+            /**
+             * @return -1 when the entry should not be recorded; otherwise
+             *         the number of entries dropped by the rate limit since
+             *         the last recorded entry.
+             */
+            synchronized int admit()
+            {
+                if (this.sampleCount++ % this.sampleOneIn != 0)
+                {
+                    return -1;
+                }
+
+                if (this.maxPerMinute > 0)
+                {
+                    long now = SystemClock.elapsedRealtime();
+                    this.tokens = Math.min(
+                            this.maxPerMinute,
+                            this.tokens + (now - this.lastRefillTime) * this.maxPerMinute / 60000.0);
+                    this.lastRefillTime = now;
+                    if (this.tokens < 1)
+                    {
+                        this.suppressedCount++;
+                        return -1;
+                    }
+                    this.tokens -= 1;
+                }
+
+                int suppressed = this.suppressedCount;
+                this.suppressedCount = 0;
+                return suppressed;
+            }
+        }
+
+        static private final Map<String, DiagnosticPolicy> diagnosticPolicies = new HashMap<String, DiagnosticPolicy>();
+
+        /**
+         * Set the sampling and rate limit for a diagnostic message type.
+         * @param msg The diagnostic message, as passed to g().
+         * @param sampleOneIn Record only one in this many entries.
+         * @param maxPerMinute The maximum rate of recorded entries, or 0 for no limit.
+         */
+        static public void setDiagnosticPolicy(String msg, int sampleOneIn, int maxPerMinute)
+        {
+            synchronized (diagnosticPolicies)
+            {
+                diagnosticPolicies.put(msg, new DiagnosticPolicy(sampleOneIn, maxPerMinute));
+            }
+        }
+
+        static private DiagnosticPolicy getDiagnosticPolicy(String msg)
+        {
+            synchronized (diagnosticPolicies)
+            {
+                DiagnosticPolicy policy = diagnosticPolicies.get(msg);
+                if (policy == null)
+                {
+                    policy = new DiagnosticPolicy(1, DEFAULT_DIAGNOSTIC_MAX_PER_MINUTE);
+                    diagnosticPolicies.put(msg, policy);
+                }
+                return policy;
+            }
+        }
+
+        static private void recordDiagnostic(String msg, Object[] nameValuePairs, JSONObject data)
+        {
+            int suppressedCount = getDiagnosticPolicy(msg).admit();
+            if (suppressedCount < 0)
+            {
+                return;
+            }
+
+            PsiphonData.addDiagnosticEntry(System.currentTimeMillis(), msg, nameValuePairs, data, suppressedCount);
+            logDiagnostic(msg);
+        }
+
+        static private void recordDiagnostic(String msg, int fieldType, String name, String stringValue, long longValue)
+        {
+            int suppressedCount = getDiagnosticPolicy(msg).admit();
+            if (suppressedCount < 0)
+            {
+                return;
+            }
+
+            PsiphonData.addDiagnosticEntry(
+                    System.currentTimeMillis(), msg, fieldType, name, stringValue, longValue, suppressedCount);
+            logDiagnostic(msg);
+        }
+
+        static private void logDiagnostic(String msg)
+        {
+            // Log to LogCat only if we're in debug mode.
+            // We're not logging the data at all. In the future we may want to.
+            if (PsiphonConstants.DEBUG)
             {
-                throw new RuntimeException(e);
+                Log.d(PsiphonConstants.TAG, msg);
             }
-            MyLog.g(msg, diagnosticData);
         }
         
         static public void e(int stringResID, Sensitivity sensitivity, Object... formatArgs)
@@ -623,6 +595,14 @@ public class Utils
         return getISO8601String(new Date());
     }
 
+    public static boolean hasNetworkConnectivity(Context context)
+    {
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager)context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        return networkInfo != null && networkInfo.isConnected();
+    }
+
     public static String getNetworkTypeName(Context context)
     {
         ConnectivityManager connectivityManager =
@@ -685,69 +665,234 @@ public class Utils
     public static RSAEncryptOutput encryptWithRSA(byte[] data, String rsaPublicKey)
         throws GeneralSecurityException, UnsupportedEncodingException {
 
-        byte[] contentCiphertext = null;
-        byte[] iv = null;
-        byte[] wrappedEncryptionKey = null;
-        byte[] contentMac = null;
-        byte[] wrappedMacKey = null;
-
-        int KEY_LENGTH = 128;
-
-        //
-        // Encrypt the cleartext content
-        //
-
-        KeyGenerator encryptionKeygen = KeyGenerator.getInstance("AES");
-        encryptionKeygen.init(KEY_LENGTH);
-        SecretKey encryptionKey = encryptionKeygen.generateKey();
-
-        SecureRandom rng = new SecureRandom();
-        iv = new byte[16];
-        rng.nextBytes(iv);
-        IvParameterSpec ivParamSpec = new IvParameterSpec(iv);
-
-        // TODO: should be PCKS7Padding?
-        // http://stackoverflow.com/questions/20770072/aes-cbc-pkcs5padding-vs-aes-cbc-pkcs7padding-with-256-key-size-performance-java/20770158#20770158
-        Cipher aesCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-        aesCipher.init(Cipher.ENCRYPT_MODE, encryptionKey, ivParamSpec);
-
-        contentCiphertext = aesCipher.doFinal(data);
-
-        // Get the IV. (I don't know if it can be different from the
-        // one generated above, but retrieving it here seems safest.)
-        iv = aesCipher.getIV();
-
-        //
-        // Create a MAC (encrypt-then-MAC).
-        //
-
-        KeyGenerator macKeygen = KeyGenerator.getInstance("AES");
-        macKeygen.init(KEY_LENGTH);
-        SecretKey macKey = macKeygen.generateKey();
-        Mac mac = Mac.getInstance("HmacSHA256");
-        mac.init(macKey);
-        // Include the IV in the MAC'd data, as per http://tools.ietf.org/html/draft-mcgrew-aead-aes-cbc-hmac-sha2-01
-        mac.update(iv);
-        contentMac = mac.doFinal(contentCiphertext);
-
-        //
-        // Ready the public key that we'll use to share keys
-        //
-
-        byte[] publicKeyBytes = Base64.decode(rsaPublicKey);
-        X509EncodedKeySpec spec = new X509EncodedKeySpec(publicKeyBytes);
-        KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-        PublicKey publicKey = keyFactory.generatePublic(spec);
-        Cipher rsaCipher = Cipher.getInstance("RSA/ECB/OAEPWithSHA1AndMGF1Padding");
-        rsaCipher.init(Cipher.WRAP_MODE, publicKey);
-
-        //
-        // Wrap the symmetric keys
-        //
-
-        wrappedEncryptionKey = rsaCipher.wrap(encryptionKey);
-        wrappedMacKey = rsaCipher.wrap(macKey);
-        
-        return new RSAEncryptOutput(contentCiphertext, iv, wrappedEncryptionKey, contentMac, wrappedMacKey);
+        // CBC with PKCS5 padding pads the content up to the next whole block,
+        // so the ciphertext is written straight into an array of its final size
+        // rather than copied out of a ByteArrayOutputStream.
+        byte[] ciphertext = new byte[(data.length / 16 + 1) * 16];
+        ArrayOutputStream ciphertextOut = new ArrayOutputStream(ciphertext);
+        RSAEncryptOutputStream encryptStream = new RSAEncryptOutputStream(ciphertextOut, rsaPublicKey);
+        try {
+            encryptStream.write(data);
+            encryptStream.close();
+        } catch (IOException e) {
+            // Not expected when writing to an array of the ciphertext size
+            throw new GeneralSecurityException(e);
+        }
+        if (ciphertextOut.mCount != ciphertext.length) {
+            throw new GeneralSecurityException("unexpected ciphertext length");
+        }
+        RSAEncryptOutput output = encryptStream.getOutput();
+
+        return new RSAEncryptOutput(
+                ciphertext, output.mIv, output.mWrappedEncryptionKey,
+                output.mContentMac, output.mWrappedMacKey);
+    }
+
+    private static class ArrayOutputStream extends OutputStream {
+        private final byte[] mBuffer;
+        private int mCount = 0;
+
+        public ArrayOutputStream(byte[] buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (mCount == mBuffer.length) {
+                throw new IOException("array full");
+            }
+            mBuffer[mCount++] = (byte)b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > mBuffer.length - mCount) {
+                throw new IOException("array full");
+            }
+            System.arraycopy(b, off, mBuffer, mCount, len);
+            mCount += len;
+        }
+    }
+
+    // Parsing the embedded public key is relatively expensive and the same few
+    // keys are used for the life of the process, so parsed keys are cached.
+    private static final Map<String, PublicKey> s_rsaPublicKeyCache = new HashMap<String, PublicKey>();
+
+    private static PublicKey getRSAPublicKey(String rsaPublicKey) throws GeneralSecurityException {
+        synchronized (s_rsaPublicKeyCache) {
+            PublicKey publicKey = s_rsaPublicKeyCache.get(rsaPublicKey);
+            if (publicKey == null) {
+                byte[] publicKeyBytes = Base64.decode(rsaPublicKey);
+                X509EncodedKeySpec spec = new X509EncodedKeySpec(publicKeyBytes);
+                KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+                publicKey = keyFactory.generatePublic(spec);
+                s_rsaPublicKeyCache.put(rsaPublicKey, publicKey);
+            }
+            return publicKey;
+        }
+    }
+
+    // Cipher and Mac instances are not thread safe but are reusable after
+    // re-init, so each thread keeps one of each. A stream takes the thread's
+    // instance for its lifetime and returns it on close; a stream opened while
+    // another is still open on the same thread gets new instances.
+    private static final ThreadLocal<Cipher> s_aesCipher = new ThreadLocal<Cipher>();
+    private static final ThreadLocal<Mac> s_hmac = new ThreadLocal<Mac>();
+    private static final ThreadLocal<Cipher> s_rsaCipher = new ThreadLocal<Cipher>();
+
+    private static Cipher takeCipher(ThreadLocal<Cipher> cache, String transformation)
+            throws GeneralSecurityException {
+        Cipher cipher = cache.get();
+        if (cipher == null) {
+            return Cipher.getInstance(transformation);
+        }
+        cache.set(null);
+        return cipher;
+    }
+
+    private static Mac takeMac(ThreadLocal<Mac> cache, String algorithm)
+            throws GeneralSecurityException {
+        Mac mac = cache.get();
+        if (mac == null) {
+            return Mac.getInstance(algorithm);
+        }
+        cache.set(null);
+        return mac;
+    }
+
+    /**
+     * Streaming form of encryptWithRSA. Plaintext written to this stream is
+     * encrypted and MAC'd incrementally, and the ciphertext is written to the
+     * underlying stream, so memory use is constant regardless of content size.
+     * close() completes the encryption and the MAC but does not close the
+     * underlying stream. After close(), getOutput() returns the encryption
+     * elements; its mContentCiphertext is null, as the ciphertext has already
+     * been written out.
+     */
+    public static class RSAEncryptOutputStream extends OutputStream {
+
+        private static final int KEY_LENGTH_BYTES = 16;
+
+        // Cipher.update returns a new array the size of its input, so large
+        // writes are encrypted in pieces of at most this size.
+        private static final int MAX_UPDATE_LENGTH = 64 * 1024;
+
+        private static class MacOutputStream extends FilterOutputStream {
+            private final Mac mMac;
+
+            public MacOutputStream(OutputStream out, Mac mac) {
+                super(out);
+                mMac = mac;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                mMac.update((byte)b);
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                mMac.update(b, off, len);
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                // The caller owns the underlying stream
+                flush();
+            }
+        }
+
+        private final Cipher mAesCipher;
+        private final OutputStream mCipherOut;
+        private final Mac mMac;
+        private final byte[] mIv;
+        private final byte[] mWrappedEncryptionKey;
+        private final byte[] mWrappedMacKey;
+        private byte[] mContentMac = null;
+
+        public RSAEncryptOutputStream(OutputStream ciphertextOut, String rsaPublicKey)
+                throws GeneralSecurityException {
+
+            // Random bytes are used directly as AES keys, as KeyGenerator("AES")
+            // would do. The SecureRandom is created here, not held in a static
+            // initialized with the class, so that it comes from the provider
+            // installed by initializeSecureRandom().
+            SecureRandom rng = new SecureRandom();
+            byte[] encryptionKeyBytes = new byte[KEY_LENGTH_BYTES];
+            rng.nextBytes(encryptionKeyBytes);
+            SecretKey encryptionKey = new SecretKeySpec(encryptionKeyBytes, "AES");
+            byte[] macKeyBytes = new byte[KEY_LENGTH_BYTES];
+            rng.nextBytes(macKeyBytes);
+            SecretKey macKey = new SecretKeySpec(macKeyBytes, "AES");
+            byte[] iv = new byte[16];
+            rng.nextBytes(iv);
+
+            // TODO: should be PCKS7Padding?
+            // http://stackoverflow.com/questions/20770072/aes-cbc-pkcs5padding-vs-aes-cbc-pkcs7padding-with-256-key-size-performance-java/20770158#20770158
+            mAesCipher = takeCipher(s_aesCipher, "AES/CBC/PKCS5Padding");
+            mAesCipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
+            // Get the IV. (I don't know if it can be different from the
+            // one generated above, but retrieving it here seems safest.)
+            mIv = mAesCipher.getIV();
+
+            // Create a MAC (encrypt-then-MAC).
+            mMac = takeMac(s_hmac, "HmacSHA256");
+            mMac.init(macKey);
+            // Include the IV in the MAC'd data, as per http://tools.ietf.org/html/draft-mcgrew-aead-aes-cbc-hmac-sha2-01
+            mMac.update(mIv);
+
+            // Wrap the symmetric keys with the public key
+            Cipher rsaCipher = takeCipher(s_rsaCipher, "RSA/ECB/OAEPWithSHA1AndMGF1Padding");
+            rsaCipher.init(Cipher.WRAP_MODE, getRSAPublicKey(rsaPublicKey));
+            mWrappedEncryptionKey = rsaCipher.wrap(encryptionKey);
+            mWrappedMacKey = rsaCipher.wrap(macKey);
+            s_rsaCipher.set(rsaCipher);
+
+            mCipherOut = new CipherOutputStream(new MacOutputStream(ciphertextOut, mMac), mAesCipher);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mCipherOut.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int updateLength = Math.min(len, MAX_UPDATE_LENGTH);
+                mCipherOut.write(b, off, updateLength);
+                off += updateLength;
+                len -= updateLength;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            mCipherOut.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mContentMac != null) {
+                return;
+            }
+            // Writes the final cipher block through the MAC
+            mCipherOut.close();
+            mContentMac = mMac.doFinal();
+
+            // doFinal has reset both instances, so they may be reused by
+            // the next stream on this thread
+            s_aesCipher.set(mAesCipher);
+            s_hmac.set(mMac);
+        }
+
+        public RSAEncryptOutput getOutput() {
+            if (mContentMac == null) {
+                throw new IllegalStateException("RSAEncryptOutputStream not closed");
+            }
+            return new RSAEncryptOutput(null, mIv, mWrappedEncryptionKey, mContentMac, mWrappedMacKey);
+        }
     }
 }
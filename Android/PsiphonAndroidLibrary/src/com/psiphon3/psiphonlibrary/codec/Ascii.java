@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2015, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package com.psiphon3.psiphonlibrary.codec;
+
+import java.util.Arrays;
+
+/**
+ * Conversions between Strings and the ASCII bytes used by the codecs.
+ */
+class Ascii
+{
+    static final byte INVALID = -1;
+    static final byte WHITESPACE = -2;
+    static final byte PADDING = -3;
+
+    private Ascii()
+    {
+    }
+
+    /**
+     * Creates a decoding table mapping each byte value to its digit value in
+     * alphabet, or to INVALID or WHITESPACE.
+     */
+    static byte[] decodingTable(String alphabet, boolean caseInsensitive)
+    {
+        byte[] table = new byte[256];
+        Arrays.fill(table, INVALID);
+        for (int i = 0; i < alphabet.length(); i++)
+        {
+            char c = alphabet.charAt(i);
+            table[c] = (byte)i;
+            if (caseInsensitive)
+            {
+                table[Character.toLowerCase(c)] = (byte)i;
+                table[Character.toUpperCase(c)] = (byte)i;
+            }
+        }
+        table[' '] = WHITESPACE;
+        table['\t'] = WHITESPACE;
+        table['\r'] = WHITESPACE;
+        table['\n'] = WHITESPACE;
+        return table;
+    }
+
+    static byte[] encodingTable(String alphabet)
+    {
+        byte[] table = new byte[alphabet.length()];
+        for (int i = 0; i < table.length; i++)
+        {
+            table[i] = (byte)alphabet.charAt(i);
+        }
+        return table;
+    }
+
+    /**
+     * Returns the bytes of s. Characters outside of ASCII are mapped to a
+     * byte that no codec accepts, rather than truncated to their low byte.
+     */
+    static byte[] toBytes(String s)
+    {
+        byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            char c = s.charAt(i);
+            bytes[i] = (byte)(c < 0x80 ? c : 0xFF);
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns bytes, or a copy of its first length bytes if it's longer.
+     * (Arrays.copyOf requires API level 9.)
+     */
+    static byte[] truncate(byte[] bytes, int length)
+    {
+        if (length == bytes.length)
+        {
+            return bytes;
+        }
+        byte[] copy = new byte[length];
+        System.arraycopy(bytes, 0, copy, 0, length);
+        return copy;
+    }
+
+    @SuppressWarnings("deprecation")
+    static String toString(byte[] bytes, int offset, int length)
+    {
+        // The hibyte constructor copies the ASCII bytes directly, without the
+        // charset lookup and decoder of String(byte[], String)
+        return new String(bytes, 0, offset, length);
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2015, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package com.psiphon3.psiphonlibrary.codec;
+
+/**
+ * RFC 4648 Base32 encoding and decoding.
+ *
+ * As with Base64, the methods that take a destination array write into the
+ * caller's buffer. Decoding is case insensitive, ignores whitespace, accepts
+ * missing padding, and throws IllegalArgumentException on any other invalid
+ * input.
+ */
+public final class Base32
+{
+    public static final int DEFAULT = 0;
+
+    /**
+     * Omit the trailing '=' padding when encoding.
+     */
+    public static final int NO_PADDING = 1;
+
+    /**
+     * Encode with lower case letters.
+     */
+    public static final int LOWER_CASE = 2;
+
+    private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567";
+    private static final byte[] UPPER_CASE_TABLE = Ascii.encodingTable(ALPHABET);
+    private static final byte[] LOWER_CASE_TABLE = Ascii.encodingTable(ALPHABET.toLowerCase());
+    private static final byte[] DECODING_TABLE = Ascii.decodingTable(ALPHABET, true);
+    static
+    {
+        DECODING_TABLE['='] = Ascii.PADDING;
+    }
+
+    // Number of encoded characters for a final group of 0 to 4 bytes
+    private static final int[] TAIL_ENCODED_LENGTH = {0, 2, 4, 5, 7};
+
+    // Number of decoded bytes for a final group of 0 to 7 characters, or -1
+    // where no input can produce that many characters
+    private static final int[] TAIL_DECODED_LENGTH = {0, -1, 1, -1, 2, 3, -1, 4};
+
+    private Base32()
+    {
+    }
+
+    public static int encodedLength(int length, int flags)
+    {
+        int tail = length % 5;
+        int tailLength = 0;
+        if (tail > 0)
+        {
+            tailLength = (flags & NO_PADDING) != 0 ? TAIL_ENCODED_LENGTH[tail] : 8;
+        }
+        return length / 5 * 8 + tailLength;
+    }
+
+    /**
+     * @return An upper bound on the decoded size of length encoded bytes;
+     *         exact for unpadded input without whitespace.
+     */
+    public static int maxDecodedLength(int length)
+    {
+        return length / 8 * 5 + (length % 8) * 5 / 8;
+    }
+
+    public static int encode(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset, int flags)
+    {
+        byte[] table = (flags & LOWER_CASE) != 0 ? LOWER_CASE_TABLE : UPPER_CASE_TABLE;
+        int s = srcOffset;
+        int d = dstOffset;
+        int end = srcOffset + length - length % 5;
+        while (s < end)
+        {
+            long bits = 0;
+            for (int i = 0; i < 5; i++)
+            {
+                bits = bits << 8 | (src[s + i] & 0xFF);
+            }
+            s += 5;
+            for (int i = 7; i >= 0; i--)
+            {
+                dst[d + i] = table[(int)(bits & 0x1F)];
+                bits >>>= 5;
+            }
+            d += 8;
+        }
+
+        int tail = length % 5;
+        if (tail > 0)
+        {
+            long bits = 0;
+            for (int i = 0; i < 5; i++)
+            {
+                bits = bits << 8 | (i < tail ? (src[s + i] & 0xFF) : 0);
+            }
+            int tailLength = TAIL_ENCODED_LENGTH[tail];
+            for (int i = 0; i < tailLength; i++)
+            {
+                dst[d++] = table[(int)((bits >>> (35 - 5 * i)) & 0x1F)];
+            }
+            if ((flags & NO_PADDING) == 0)
+            {
+                for (int i = tailLength; i < 8; i++)
+                {
+                    dst[d++] = '=';
+                }
+            }
+        }
+
+        return d - dstOffset;
+    }
+
+    public static byte[] encode(byte[] data, int flags)
+    {
+        byte[] encoded = new byte[encodedLength(data.length, flags)];
+        encode(data, 0, data.length, encoded, 0, flags);
+        return encoded;
+    }
+
+    public static String encodeToString(byte[] data, int flags)
+    {
+        byte[] encoded = encode(data, flags);
+        return Ascii.toString(encoded, 0, encoded.length);
+    }
+
+    public static int decode(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset)
+    {
+        int d = dstOffset;
+        long bits = 0;
+        int count = 0;
+        int padding = 0;
+        for (int i = srcOffset; i < srcOffset + length; i++)
+        {
+            int value = DECODING_TABLE[src[i] & 0xFF];
+            if (value >= 0)
+            {
+                if (padding > 0)
+                {
+                    throw new IllegalArgumentException("base32 data after padding");
+                }
+                bits = bits << 5 | value;
+                if (++count == 8)
+                {
+                    for (int j = 4; j >= 0; j--)
+                    {
+                        dst[d + j] = (byte)bits;
+                        bits >>>= 8;
+                    }
+                    d += 5;
+                    bits = 0;
+                    count = 0;
+                }
+            }
+            else if (value == Ascii.PADDING)
+            {
+                padding++;
+                if (count == 0 || count + padding > 8)
+                {
+                    throw new IllegalArgumentException("invalid base32 padding");
+                }
+            }
+            else if (value != Ascii.WHITESPACE)
+            {
+                throw new IllegalArgumentException("invalid base32 character");
+            }
+        }
+
+        int tailLength = TAIL_DECODED_LENGTH[count];
+        if (tailLength < 0 || (padding > 0 && count + padding != 8))
+        {
+            throw new IllegalArgumentException("invalid base32 data length");
+        }
+        if (tailLength > 0)
+        {
+            // Drop the unused low bits of the final character
+            bits >>>= (count * 5) % 8;
+            for (int j = tailLength - 1; j >= 0; j--)
+            {
+                dst[d + j] = (byte)bits;
+                bits >>>= 8;
+            }
+            d += tailLength;
+        }
+
+        return d - dstOffset;
+    }
+
+    public static byte[] decode(byte[] data)
+    {
+        int length = data.length;
+        while (length > 0 && data[length - 1] == '=')
+        {
+            length--;
+        }
+        byte[] decoded = new byte[maxDecodedLength(length)];
+        int decodedLength = decode(data, 0, data.length, decoded, 0);
+        return Ascii.truncate(decoded, decodedLength);
+    }
+
+    public static byte[] decode(String data)
+    {
+        return decode(Ascii.toBytes(data));
+    }
+}
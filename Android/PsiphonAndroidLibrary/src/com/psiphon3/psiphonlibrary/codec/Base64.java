@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2015, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package com.psiphon3.psiphonlibrary.codec;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * RFC 4648 Base64 encoding and decoding.
+ *
+ * The encode/decode methods that take a destination array write into the
+ * caller's buffer and return the number of bytes written, so repeated use
+ * needs no allocation; use encodedLength() and maxDecodedLength() to size the
+ * buffer. Decoding ignores whitespace, accepts missing padding, and throws
+ * IllegalArgumentException on any other invalid input.
+ */
+public final class Base64
+{
+    public static final int DEFAULT = 0;
+
+    /**
+     * Omit the trailing '=' padding when encoding.
+     */
+    public static final int NO_PADDING = 1;
+
+    private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+    private static final byte[] ENCODING_TABLE = Ascii.encodingTable(ALPHABET);
+    private static final byte[] DECODING_TABLE = Ascii.decodingTable(ALPHABET, false);
+    static
+    {
+        DECODING_TABLE['='] = Ascii.PADDING;
+    }
+
+    private Base64()
+    {
+    }
+
+    public static int encodedLength(int length, int flags)
+    {
+        int tail = length % 3;
+        int tailLength = 0;
+        if (tail > 0)
+        {
+            tailLength = (flags & NO_PADDING) != 0 ? tail + 1 : 4;
+        }
+        return length / 3 * 4 + tailLength;
+    }
+
+    /**
+     * @return An upper bound on the decoded size of length encoded bytes;
+     *         exact for unpadded input without whitespace.
+     */
+    public static int maxDecodedLength(int length)
+    {
+        return length / 4 * 3 + (length % 4) * 3 / 4;
+    }
+
+    public static int encode(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset, int flags)
+    {
+        int s = srcOffset;
+        int d = dstOffset;
+        int end = srcOffset + length - length % 3;
+        while (s < end)
+        {
+            int bits = (src[s] & 0xFF) << 16 | (src[s + 1] & 0xFF) << 8 | (src[s + 2] & 0xFF);
+            s += 3;
+            dst[d] = ENCODING_TABLE[bits >>> 18];
+            dst[d + 1] = ENCODING_TABLE[(bits >>> 12) & 0x3F];
+            dst[d + 2] = ENCODING_TABLE[(bits >>> 6) & 0x3F];
+            dst[d + 3] = ENCODING_TABLE[bits & 0x3F];
+            d += 4;
+        }
+
+        int tail = length % 3;
+        if (tail > 0)
+        {
+            int bits = (src[s] & 0xFF) << 16;
+            if (tail == 2)
+            {
+                bits |= (src[s + 1] & 0xFF) << 8;
+            }
+            dst[d++] = ENCODING_TABLE[bits >>> 18];
+            dst[d++] = ENCODING_TABLE[(bits >>> 12) & 0x3F];
+            if (tail == 2)
+            {
+                dst[d++] = ENCODING_TABLE[(bits >>> 6) & 0x3F];
+            }
+            if ((flags & NO_PADDING) == 0)
+            {
+                dst[d++] = '=';
+                if (tail == 1)
+                {
+                    dst[d++] = '=';
+                }
+            }
+        }
+
+        return d - dstOffset;
+    }
+
+    public static byte[] encode(byte[] data, int flags)
+    {
+        byte[] encoded = new byte[encodedLength(data.length, flags)];
+        encode(data, 0, data.length, encoded, 0, flags);
+        return encoded;
+    }
+
+    public static String encodeToString(byte[] data, int flags)
+    {
+        byte[] encoded = encode(data, flags);
+        return Ascii.toString(encoded, 0, encoded.length);
+    }
+
+    public static int decode(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset)
+    {
+        int d = dstOffset;
+        int bits = 0;
+        int count = 0;
+        int padding = 0;
+        for (int i = srcOffset; i < srcOffset + length; i++)
+        {
+            int value = DECODING_TABLE[src[i] & 0xFF];
+            if (value >= 0)
+            {
+                if (padding > 0)
+                {
+                    throw new IllegalArgumentException("base64 data after padding");
+                }
+                bits = bits << 6 | value;
+                if (++count == 4)
+                {
+                    dst[d] = (byte)(bits >> 16);
+                    dst[d + 1] = (byte)(bits >> 8);
+                    dst[d + 2] = (byte)bits;
+                    d += 3;
+                    bits = 0;
+                    count = 0;
+                }
+            }
+            else if (value == Ascii.PADDING)
+            {
+                padding++;
+                if (count < 2 || count + padding > 4)
+                {
+                    throw new IllegalArgumentException("invalid base64 padding");
+                }
+            }
+            else if (value != Ascii.WHITESPACE)
+            {
+                throw new IllegalArgumentException("invalid base64 character");
+            }
+        }
+
+        if (padding > 0 && count + padding != 4)
+        {
+            throw new IllegalArgumentException("invalid base64 padding");
+        }
+        switch (count)
+        {
+        case 1:
+            throw new IllegalArgumentException("truncated base64 data");
+        case 2:
+            dst[d++] = (byte)(bits >> 4);
+            break;
+        case 3:
+            dst[d++] = (byte)(bits >> 10);
+            dst[d++] = (byte)(bits >> 2);
+            break;
+        }
+
+        return d - dstOffset;
+    }
+
+    public static byte[] decode(byte[] data)
+    {
+        int length = data.length;
+        while (length > 0 && data[length - 1] == '=')
+        {
+            length--;
+        }
+        byte[] decoded = new byte[maxDecodedLength(length)];
+        int decodedLength = decode(data, 0, data.length, decoded, 0);
+        return Ascii.truncate(decoded, decodedLength);
+    }
+
+    public static byte[] decode(String data)
+    {
+        return decode(Ascii.toBytes(data));
+    }
+
+    /**
+     * Base64 encodes everything written to it and writes the encoded data to
+     * the underlying stream. close() writes the final, padded group.
+     */
+    public static class EncoderOutputStream extends FilterOutputStream
+    {
+        private static final int CHUNK_SIZE = 3*1024;
+
+        private final int flags;
+        private final byte[] pending = new byte[3];
+        private int pendingLength = 0;
+        private final byte[] buffer = new byte[encodedLength(CHUNK_SIZE, DEFAULT)];
+        private boolean closed = false;
+
+        public EncoderOutputStream(OutputStream out, int flags)
+        {
+            super(out);
+            this.flags = flags;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            this.pending[this.pendingLength++] = (byte)b;
+            if (this.pendingLength == this.pending.length)
+            {
+                writeEncoded(this.pending, 0, this.pendingLength);
+                this.pendingLength = 0;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            while (this.pendingLength > 0 && len > 0)
+            {
+                write(b[off++]);
+                len--;
+            }
+            while (len >= 3)
+            {
+                int chunk = Math.min(len - len % 3, CHUNK_SIZE);
+                writeEncoded(b, off, chunk);
+                off += chunk;
+                len -= chunk;
+            }
+            while (len > 0)
+            {
+                write(b[off++]);
+                len--;
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (this.closed)
+            {
+                return;
+            }
+            this.closed = true;
+            try
+            {
+                if (this.pendingLength > 0)
+                {
+                    writeEncoded(this.pending, 0, this.pendingLength);
+                    this.pendingLength = 0;
+                }
+            }
+            finally
+            {
+                super.close();
+            }
+        }
+
+        private void writeEncoded(byte[] b, int off, int len) throws IOException
+        {
+            int encodedLength = encode(b, off, len, this.buffer, 0, this.flags);
+            this.out.write(this.buffer, 0, encodedLength);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2015, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package com.psiphon3.psiphonlibrary.codec;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Hexadecimal encoding and decoding.
+ *
+ * As with Base64, the methods that take a destination array write into the
+ * caller's buffer. Decoding is case insensitive, ignores whitespace, and
+ * throws IllegalArgumentException on any other invalid input. decode() may
+ * write to all maxDecodedLength() bytes of the destination, even when the
+ * input has whitespace and decodes to fewer.
+ */
+public final class Hex
+{
+    /**
+     * Encode with lower case digits.
+     */
+    public static final int DEFAULT = 0;
+
+    /**
+     * Encode with upper case digits.
+     */
+    public static final int UPPER_CASE = 1;
+
+    private static final byte[] LOWER_CASE_TABLE = Ascii.encodingTable("0123456789abcdef");
+    private static final byte[] UPPER_CASE_TABLE = Ascii.encodingTable("0123456789ABCDEF");
+    private static final byte[] DECODING_TABLE = Ascii.decodingTable("0123456789abcdef", true);
+
+    private Hex()
+    {
+    }
+
+    public static int encodedLength(int length)
+    {
+        return length * 2;
+    }
+
+    public static int maxDecodedLength(int length)
+    {
+        return length / 2;
+    }
+
+    public static int encode(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset, int flags)
+    {
+        byte[] table = (flags & UPPER_CASE) != 0 ? UPPER_CASE_TABLE : LOWER_CASE_TABLE;
+        int d = dstOffset;
+        for (int i = srcOffset; i < srcOffset + length; i++)
+        {
+            int v = src[i] & 0xFF;
+            dst[d] = table[v >>> 4];
+            dst[d + 1] = table[v & 0x0F];
+            d += 2;
+        }
+        return d - dstOffset;
+    }
+
+    public static byte[] encode(byte[] data, int flags)
+    {
+        byte[] encoded = new byte[encodedLength(data.length)];
+        encode(data, 0, data.length, encoded, 0, flags);
+        return encoded;
+    }
+
+    public static String encodeToString(byte[] data, int flags)
+    {
+        byte[] encoded = encode(data, flags);
+        return Ascii.toString(encoded, 0, encoded.length);
+    }
+
+    public static int decode(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset)
+    {
+        // Pairs of digits, without whitespace, are the common case. Validity is
+        // checked once at the end; otherwise the input is decoded again below,
+        // overwriting the output.
+        int digits = 0;
+        for (int d = dstOffset, i = srcOffset; d < dstOffset + length / 2; d++, i += 2)
+        {
+            int high = DECODING_TABLE[src[i] & 0xFF];
+            int low = DECODING_TABLE[src[i + 1] & 0xFF];
+            digits |= high | low;
+            dst[d] = (byte)(high << 4 | low);
+        }
+        if (digits >= 0 && (length & 1) == 0)
+        {
+            return length / 2;
+        }
+
+        int d = dstOffset;
+        int high = -1;
+        for (int i = srcOffset; i < srcOffset + length; i++)
+        {
+            int value = DECODING_TABLE[src[i] & 0xFF];
+            if (value >= 0)
+            {
+                if (high < 0)
+                {
+                    high = value;
+                }
+                else
+                {
+                    dst[d++] = (byte)(high << 4 | value);
+                    high = -1;
+                }
+            }
+            else if (value != Ascii.WHITESPACE)
+            {
+                throw new IllegalArgumentException("invalid hex character");
+            }
+        }
+        if (high >= 0)
+        {
+            throw new IllegalArgumentException("odd number of hex digits");
+        }
+        return d - dstOffset;
+    }
+
+    public static byte[] decode(byte[] data)
+    {
+        byte[] decoded = new byte[maxDecodedLength(data.length)];
+        int decodedLength = decode(data, 0, data.length, decoded, 0);
+        return Ascii.truncate(decoded, decodedLength);
+    }
+
+    public static byte[] decode(String data)
+    {
+        // Decode pairs of digits straight from the String. Validity is checked
+        // once at the end, falling back to the ASCII bytes when there is
+        // whitespace or invalid input.
+        int length = data.length();
+        byte[] decoded = new byte[maxDecodedLength(length)];
+        int chars = 0;
+        int digits = 0;
+        for (int d = 0, i = 0; d < decoded.length; d++, i += 2)
+        {
+            char c1 = data.charAt(i);
+            char c2 = data.charAt(i + 1);
+            int high = DECODING_TABLE[c1 & 0xFF];
+            int low = DECODING_TABLE[c2 & 0xFF];
+            chars |= c1 | c2;
+            digits |= high | low;
+            decoded[d] = (byte)(high << 4 | low);
+        }
+        if (chars < 0x80 && digits >= 0 && (length & 1) == 0)
+        {
+            return decoded;
+        }
+        return decode(Ascii.toBytes(data));
+    }
+
+    /**
+     * Hex encodes everything written to it and writes the encoded data to
+     * the underlying stream.
+     */
+    public static class EncoderOutputStream extends FilterOutputStream
+    {
+        private static final int CHUNK_SIZE = 2*1024;
+
+        private final int flags;
+        private final byte[] buffer = new byte[encodedLength(CHUNK_SIZE)];
+
+        public EncoderOutputStream(OutputStream out, int flags)
+        {
+            super(out);
+            this.flags = flags;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            byte[] table = (this.flags & UPPER_CASE) != 0 ? UPPER_CASE_TABLE : LOWER_CASE_TABLE;
+            this.out.write(table[(b >>> 4) & 0x0F]);
+            this.out.write(table[b & 0x0F]);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            while (len > 0)
+            {
+                int chunk = Math.min(len, CHUNK_SIZE);
+                int encodedLength = encode(b, off, chunk, this.buffer, 0, this.flags);
+                this.out.write(this.buffer, 0, encodedLength);
+                off += chunk;
+                len -= chunk;
+            }
+        }
+    }
+}
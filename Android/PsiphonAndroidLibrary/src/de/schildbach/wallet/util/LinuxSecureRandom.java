@@ -16,7 +16,6 @@
 
 package de.schildbach.wallet.util;
 
-import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -24,12 +23,18 @@ import java.io.IOException;
 import java.security.Provider;
 import java.security.SecureRandomSpi;
 import java.security.Security;
+import java.util.Arrays;
 
 /**
  * A SecureRandom implementation that is able to override the standard JVM provided implementation, and which simply
  * serves random numbers by reading /dev/urandom. That is, it delegates to the kernel on UNIX systems and is unusable on
  * other platforms. Attempts to manually set the seed are ignored. There is no difference between seed bytes and
  * non-seed bytes, they are all from the same source.
+ *
+ * Small requests are served from a per-thread buffer that is refilled from /dev/urandom, so generating an IV or key
+ * doesn't cost a read syscall and threads don't contend on the file descriptor. Each buffered byte is handed out at
+ * most once and is zeroed as it's handed out, so the buffer never holds random bytes that have already been used.
+ * Requests at least as large as the buffer, and seeds, are read directly from /dev/urandom.
  */
 public class LinuxSecureRandom extends SecureRandomSpi
 {
@@ -68,12 +73,26 @@ public class LinuxSecureRandom extends SecureRandomSpi
         }
     }
 
-    private final DataInputStream dis;
+    private static final int BUFFER_SIZE = 1024;
+
+    private static class RandomBuffer
+    {
+        final byte[] bytes = new byte[BUFFER_SIZE];
+        // Start empty; the first request fills the buffer
+        int position = BUFFER_SIZE;
+    }
+
+    private static final ThreadLocal<RandomBuffer> buffers = new ThreadLocal<RandomBuffer>()
+    {
+        @Override
+        protected RandomBuffer initialValue()
+        {
+            return new RandomBuffer();
+        }
+    };
 
     public LinuxSecureRandom()
     {
-        // DataInputStream is not thread safe, so each random object has its own.
-        dis = new DataInputStream(urandom);
     }
 
     @Override
@@ -85,21 +104,59 @@ public class LinuxSecureRandom extends SecureRandomSpi
     @Override
     protected void engineNextBytes(byte[] bytes)
     {
-        try
+        if (bytes.length >= BUFFER_SIZE)
         {
-            dis.readFully(bytes); // This will block until all the bytes can be read.
+            readUrandom(bytes, 0, bytes.length);
+            return;
         }
-        catch (IOException e)
+
+        RandomBuffer buffer = buffers.get();
+        int offset = 0;
+        while (offset < bytes.length)
         {
-            throw new RuntimeException(e); // Fatal error. Do not attempt to recover from this.
+            if (buffer.position == BUFFER_SIZE)
+            {
+                readUrandom(buffer.bytes, 0, BUFFER_SIZE);
+                // Only mark the buffer full once the read has completed
+                buffer.position = 0;
+            }
+            int count = Math.min(bytes.length - offset, BUFFER_SIZE - buffer.position);
+            System.arraycopy(buffer.bytes, buffer.position, bytes, offset, count);
+            Arrays.fill(buffer.bytes, buffer.position, buffer.position + count, (byte)0);
+            buffer.position += count;
+            offset += count;
         }
     }
 
     @Override
     protected byte[] engineGenerateSeed(int i)
     {
+        // Seeds always come straight from the kernel
         byte[] bits = new byte[i];
-        engineNextBytes(bits);
+        readUrandom(bits, 0, i);
         return bits;
     }
+
+    private static void readUrandom(byte[] bytes, int offset, int length)
+    {
+        try
+        {
+            // FileInputStream.read is a plain read() on the descriptor, which is safe to call from multiple threads.
+            // This will block until all the bytes can be read.
+            while (length > 0)
+            {
+                int count = urandom.read(bytes, offset, length);
+                if (count < 0)
+                {
+                    throw new IOException("unexpected end of /dev/urandom");
+                }
+                offset += count;
+                length -= count;
+            }
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e); // Fatal error. Do not attempt to recover from this.
+        }
+    }
 }
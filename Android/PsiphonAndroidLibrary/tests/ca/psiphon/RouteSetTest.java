@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2015, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+// Compares RouteSet against a brute-force reference which keeps the set as a
+// list of address intervals. RouteSet doesn't depend on Android, so this runs
+// on a desktop JVM:
+//
+//   javac -d /tmp/routeset src/ca/psiphon/RouteSet.java tests/ca/psiphon/RouteSetTest.java
+//   java -cp /tmp/routeset ca.psiphon.RouteSetTest
+//
+// (from Android/PsiphonAndroidLibrary). Prints "OK" or throws on the first
+// mismatch.
+public class RouteSetTest {
+
+    private static final int ITERATIONS = 2000;
+
+    public static void main(String[] args) {
+        checkEdgeCases();
+
+        Random random = new Random(args.length > 0 ? Long.parseLong(args[0]) : 0);
+        for (int i = 0; i < ITERATIONS; i++) {
+            checkRandomSet(random);
+        }
+
+        System.out.println("OK");
+    }
+
+    private static void checkEdgeCases() {
+        RouteSet empty = new RouteSet();
+        check(empty.getRoutes().isEmpty(), "empty set has routes");
+        check(routesToString(empty.getComplementRoutes()).equals("[0.0.0.0/0]"), "empty set complement");
+
+        RouteSet full = new RouteSet();
+        full.add("0.0.0.0/0");
+        check(routesToString(full.getRoutes()).equals("[0.0.0.0/0]"), "full set routes");
+        check(full.getComplementRoutes().isEmpty(), "full set has complement routes");
+        check(full.contains(RouteSet.parseAddress("255.255.255.255")), "full set contains");
+
+        RouteSet halves = new RouteSet();
+        halves.add("0.0.0.0/1");
+        halves.add("128.0.0.0/1");
+        check(routesToString(halves.getRoutes()).equals("[0.0.0.0/0]"), "merged halves routes");
+        check(halves.getComplementRoutes().isEmpty(), "merged halves have complement routes");
+
+        RouteSet hosts = new RouteSet();
+        hosts.add("10.0.0.1");
+        hosts.add("10.0.0.0/32");
+        check(routesToString(hosts.getRoutes()).equals("[10.0.0.0/31]"), "merged hosts routes");
+    }
+
+    private static void checkRandomSet(Random random) {
+        RouteSet routeSet = new RouteSet();
+        List<long[]> reference = new ArrayList<long[]>();
+
+        // Short prefixes within a few /8s, so that prefixes overlap and merge
+        int count = random.nextInt(40);
+        for (int i = 0; i < count; i++) {
+            int prefixLength = 1 + random.nextInt(32);
+            int address = (random.nextInt(4) << 24) | random.nextInt(1 << 24);
+            if (random.nextInt(8) == 0) {
+                address = random.nextInt();
+            }
+            int mask = prefixLength == 0 ? 0 : -1 << (32 - prefixLength);
+            routeSet.add(RouteSet.formatAddress(address) + "/" + Integer.toString(prefixLength));
+            long start = (address & mask) & 0xFFFFFFFFL;
+            reference.add(new long[] {start, start + (1L << (32 - prefixLength)) - 1});
+        }
+
+        List<long[]> set = merge(reference);
+        List<long[]> complement = complement(set);
+
+        check(toIntervals(routeSet.getRoutes()).equals(intervalsToString(set)), "routes don't cover the set");
+        check(toIntervals(routeSet.getComplementRoutes()).equals(intervalsToString(complement)),
+                "complement routes don't cover the complement");
+        check(routeSet.getRoutes().size() == minimalPrefixCount(set), "routes aren't minimal");
+        check(routeSet.getComplementRoutes().size() == minimalPrefixCount(complement),
+                "complement routes aren't minimal");
+
+        for (long[] interval : set) {
+            check(routeSet.contains((int) interval[0]) && routeSet.contains((int) interval[1]),
+                    "set address not contained");
+        }
+        for (long[] interval : complement) {
+            check(!routeSet.contains((int) interval[0]) && !routeSet.contains((int) interval[1]),
+                    "complement address contained");
+        }
+    }
+
+    private static List<long[]> merge(List<long[]> intervals) {
+        List<long[]> sorted = new ArrayList<long[]>(intervals);
+        Collections.sort(sorted, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return a[0] < b[0] ? -1 : (a[0] > b[0] ? 1 : 0);
+            }
+        });
+        List<long[]> merged = new ArrayList<long[]>();
+        for (long[] interval : sorted) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && interval[0] <= last[1] + 1) {
+                last[1] = Math.max(last[1], interval[1]);
+            } else {
+                merged.add(new long[] {interval[0], interval[1]});
+            }
+        }
+        return merged;
+    }
+
+    private static List<long[]> complement(List<long[]> set) {
+        List<long[]> complement = new ArrayList<long[]>();
+        long next = 0;
+        for (long[] interval : set) {
+            if (interval[0] > next) {
+                complement.add(new long[] {next, interval[0] - 1});
+            }
+            next = interval[1] + 1;
+        }
+        if (next <= 0xFFFFFFFFL) {
+            complement.add(new long[] {next, 0xFFFFFFFFL});
+        }
+        return complement;
+    }
+
+    // Greedily splitting each interval into the largest aligned prefixes gives
+    // the minimal number of prefixes covering the intervals.
+    private static int minimalPrefixCount(List<long[]> intervals) {
+        int count = 0;
+        for (long[] interval : intervals) {
+            long start = interval[0];
+            while (start <= interval[1]) {
+                int size = 32;
+                while (size > 0 &&
+                        ((start & ((1L << size) - 1)) != 0 || start + (1L << size) - 1 > interval[1])) {
+                    size--;
+                }
+                start += 1L << size;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static String toIntervals(List<RouteSet.Route> routes) {
+        List<long[]> intervals = new ArrayList<long[]>();
+        for (RouteSet.Route route : routes) {
+            long start = RouteSet.parseAddress(route.mAddress) & 0xFFFFFFFFL;
+            intervals.add(new long[] {start, start + (1L << (32 - route.mPrefixLength)) - 1});
+        }
+        return intervalsToString(merge(intervals));
+    }
+
+    private static String intervalsToString(List<long[]> intervals) {
+        StringBuilder builder = new StringBuilder();
+        for (long[] interval : intervals) {
+            builder.append(Long.toString(interval[0])).append('-').append(Long.toString(interval[1])).append(' ');
+        }
+        return builder.toString();
+    }
+
+    private static String routesToString(List<RouteSet.Route> routes) {
+        return routes.toString();
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
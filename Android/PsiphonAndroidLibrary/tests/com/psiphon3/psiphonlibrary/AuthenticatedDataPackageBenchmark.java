@@ -0,0 +1,331 @@
+/*
+ * Copyright (c) 2015, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3.psiphonlibrary;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import android.util.Base64;
+
+// Measures the extraction of a 16 MB upgrade package, as UpgradeManager does
+// it: a gzipped authenticated data package whose Base64 "data" value is the
+// APK, streamed through AuthenticatedDataPackage into a file. Compares the
+// 64 KB inflater and file buffers UpgradeManager uses with the previous
+// 512 byte inflater buffer and unbuffered file, and reports the gunzip alone
+// for reference. Needs Android classes which run on a desktop JVM, such as
+// Robolectric's android-all jar, rather than the SDK's android.jar stubs (see
+// DesktopClassLoader); from Android/PsiphonAndroidLibrary, after a build has
+// written bin/classes:
+//
+//   javac -cp bin/classes:<android-all.jar> -d /tmp/bench tests/com/psiphon3/psiphonlibrary/AuthenticatedDataPackageBenchmark.java
+//   java -Xmx1g -cp /tmp/bench:bin/classes:libs/jackson-core-2.2.0.jar:<android-all.jar> com.psiphon3.psiphonlibrary.AuthenticatedDataPackageBenchmark
+//
+// Checks that the APK is extracted intact and its signature verified, then
+// prints the best time and MB/s of extracted APK for each.
+public class AuthenticatedDataPackageBenchmark
+{
+    private static final int APK_SIZE = 16 * 1024 * 1024;
+    private static final int ITERATIONS = 5;
+    private static final int EXTRACT_BUFFER_SIZE = 64 * 1024;
+
+    private interface Extractor
+    {
+        String name();
+        void extract(File packageFile, File apkFile, String publicKey) throws Exception;
+    }
+
+    // android.util.Base64 in android-all calls the System.arraycopy(byte[], ...)
+    // overload of Android's libcore, which a desktop JVM doesn't have. This loads
+    // it, and the library classes which use it, with that call rewritten to the
+    // JDK's System.arraycopy(Object, ...).
+    private static class DesktopClassLoader extends ClassLoader
+    {
+        private static final byte[] LIBCORE_ARRAYCOPY = utf8Constant("([BI[BII)V");
+        private static final byte[] JDK_ARRAYCOPY = utf8Constant("(Ljava/lang/Object;ILjava/lang/Object;II)V");
+
+        DesktopClassLoader(ClassLoader parent)
+        {
+            super(parent);
+        }
+
+        @Override
+        protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException
+        {
+            if (!name.startsWith("android.util.Base64") && !name.startsWith("com.psiphon3.psiphonlibrary."))
+            {
+                return super.loadClass(name, resolve);
+            }
+            Class<?> loaded = findLoadedClass(name);
+            if (loaded == null)
+            {
+                InputStream in = getParent().getResourceAsStream(name.replace('.', '/') + ".class");
+                if (in == null)
+                {
+                    throw new ClassNotFoundException(name);
+                }
+                byte[] bytes;
+                try
+                {
+                    bytes = replace(readAll(in), LIBCORE_ARRAYCOPY, JDK_ARRAYCOPY);
+                }
+                catch (IOException e)
+                {
+                    throw new ClassNotFoundException(name, e);
+                }
+                loaded = defineClass(name, bytes, 0, bytes.length);
+            }
+            if (resolve)
+            {
+                resolveClass(loaded);
+            }
+            return loaded;
+        }
+
+        // A CONSTANT_Utf8 class file entry: tag, length and modified UTF-8 bytes.
+        private static byte[] utf8Constant(String value)
+        {
+            byte[] bytes = new byte[3 + value.length()];
+            bytes[0] = 1;
+            bytes[1] = (byte) (value.length() >> 8);
+            bytes[2] = (byte) value.length();
+            for (int i = 0; i < value.length(); i++)
+            {
+                bytes[3 + i] = (byte) value.charAt(i);
+            }
+            return bytes;
+        }
+
+        private static byte[] replace(byte[] bytes, byte[] target, byte[] replacement)
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length);
+            int start = 0;
+            for (int i = 0; i + target.length <= bytes.length; i++)
+            {
+                if (bytes[i] == target[0] &&
+                        Arrays.equals(Arrays.copyOfRange(bytes, i, i + target.length), target))
+                {
+                    out.write(bytes, start, i - start);
+                    out.write(replacement, 0, replacement.length);
+                    start = i + target.length;
+                    i = start - 1;
+                }
+            }
+            out.write(bytes, start, bytes.length - start);
+            return out.toByteArray();
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        // Run again in a DesktopClassLoader; its classes aren't the class path's
+        ClassLoader classLoader = AuthenticatedDataPackageBenchmark.class.getClassLoader();
+        if (!classLoader.getClass().getName().equals(DesktopClassLoader.class.getName()))
+        {
+            ClassLoader loader = new DesktopClassLoader(classLoader);
+            loader.loadClass(AuthenticatedDataPackageBenchmark.class.getName())
+                    .getMethod("main", String[].class)
+                    .invoke(null, (Object) args);
+            return;
+        }
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+        String publicKey = Base64.encodeToString(keyPair.getPublic().getEncoded(), Base64.NO_WRAP);
+
+        byte[] apk = newApk();
+        File packageFile = File.createTempFile("upgrade", ".gz");
+        packageFile.deleteOnExit();
+        File apkFile = File.createTempFile("upgrade", ".apk");
+        apkFile.deleteOnExit();
+        writePackage(packageFile, apk, keyPair, publicKey);
+
+        Extractor[] extractors = {
+            new Extractor()
+            {
+                public String name() { return "gunzip only"; }
+                public void extract(File packageFile, File apkFile, String key) throws Exception
+                {
+                    InputStream in = new GZIPInputStream(
+                            new BufferedInputStream(new FileInputStream(packageFile), EXTRACT_BUFFER_SIZE),
+                            EXTRACT_BUFFER_SIZE);
+                    byte[] buffer = new byte[EXTRACT_BUFFER_SIZE];
+                    while (in.read(buffer) != -1)
+                    {
+                    }
+                    in.close();
+                }
+            },
+            new Extractor()
+            {
+                public String name() { return "512 B, unbuffered"; }
+                public void extract(File packageFile, File apkFile, String key) throws Exception
+                {
+                    AuthenticatedDataPackage.extractAndVerifyData(
+                            key,
+                            new GZIPInputStream(new BufferedInputStream(new FileInputStream(packageFile))),
+                            true,
+                            new FileOutputStream(apkFile));
+                }
+            },
+            new Extractor()
+            {
+                public String name() { return "64 KB buffers"; }
+                public void extract(File packageFile, File apkFile, String key) throws Exception
+                {
+                    AuthenticatedDataPackage.extractAndVerifyData(
+                            key,
+                            new GZIPInputStream(
+                                new BufferedInputStream(new FileInputStream(packageFile), EXTRACT_BUFFER_SIZE),
+                                EXTRACT_BUFFER_SIZE),
+                            true,
+                            new BufferedOutputStream(new FileOutputStream(apkFile), EXTRACT_BUFFER_SIZE));
+                }
+            }
+        };
+
+        for (int i = 1; i < extractors.length; i++)
+        {
+            extractors[i].extract(packageFile, apkFile, publicKey);
+            check(Arrays.equals(readFile(apkFile), apk), extractors[i].name() + ": extracted APK differs");
+        }
+        System.out.println("OK");
+
+        System.out.println(String.format("package %.1f MB gzipped, APK %.1f MB",
+                packageFile.length() / 1048576.0, APK_SIZE / 1048576.0));
+        for (Extractor extractor : extractors)
+        {
+            long bestNanos = Long.MAX_VALUE;
+            for (int i = 0; i < ITERATIONS; i++)
+            {
+                long start = System.nanoTime();
+                extractor.extract(packageFile, apkFile, publicKey);
+                bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+            }
+            System.out.println(String.format("%-18s %8.1f ms %8.1f MB/s",
+                    extractor.name(), bestNanos / 1e6, (APK_SIZE / 1048576.0) / (bestNanos / 1e9)));
+        }
+    }
+
+    // An APK is a zip: stored resources, which compress, among deflated entries,
+    // which don't.
+    private static byte[] newApk()
+    {
+        Random random = new Random(0);
+        byte[] apk = new byte[APK_SIZE];
+        byte[] block = new byte[4096];
+        for (int offset = 0; offset < apk.length; offset += block.length)
+        {
+            if (random.nextInt(3) == 0)
+            {
+                for (int i = 0; i < block.length; i++)
+                {
+                    block[i] = (byte) ('a' + random.nextInt(8));
+                }
+            }
+            else
+            {
+                random.nextBytes(block);
+            }
+            System.arraycopy(block, 0, apk, offset, Math.min(block.length, apk.length - offset));
+        }
+        return apk;
+    }
+
+    // The package format of psi_ops_server_entry_auth.py: the signature is
+    // over the Base64-encoded data, and the key digest over the Base64 key.
+    private static void writePackage(File packageFile, byte[] apk, KeyPair keyPair, String publicKey)
+            throws Exception
+    {
+        byte[] data = Base64.encode(apk, Base64.NO_WRAP);
+
+        Signature signer = Signature.getInstance("SHA256withRSA");
+        signer.initSign(keyPair.getPrivate());
+        signer.update(data);
+        String signature = Base64.encodeToString(signer.sign(), Base64.NO_WRAP);
+        String publicKeyDigest = Base64.encodeToString(
+                MessageDigest.getInstance("SHA256").digest(publicKey.getBytes()), Base64.NO_WRAP);
+
+        OutputStream out = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(packageFile)));
+        try
+        {
+            out.write("{\"data\":\"".getBytes("UTF-8"));
+            out.write(data);
+            out.write(("\",\"signingPublicKeyDigest\":\"" + publicKeyDigest +
+                    "\",\"signature\":\"" + signature + "\"}").getBytes("UTF-8"));
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException
+    {
+        byte[] data = new byte[(int) file.length()];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            raf.readFully(data);
+        }
+        finally
+        {
+            raf.close();
+        }
+        return data;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[EXTRACT_BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1)
+        {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static void check(boolean condition, String message)
+    {
+        if (!condition)
+        {
+            throw new AssertionError(message);
+        }
+    }
+}
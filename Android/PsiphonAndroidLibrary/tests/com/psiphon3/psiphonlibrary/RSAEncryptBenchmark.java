@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2015, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3.psiphonlibrary;
+
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+import com.psiphon3.psiphonlibrary.codec.Base64;
+
+// Compares Utils.encryptWithRSA and Utils.RSAEncryptOutputStream against the
+// previous one-shot implementation, kept below as encryptWithRSABaseline, on
+// 1 to 50 MB inputs. Each result is also decrypted and its MAC checked. Utils
+// only needs Android classes on the class path, not a device; from
+// Android/PsiphonAndroidLibrary, after a build has written bin/classes:
+//
+//   javac -cp bin/classes -d /tmp/bench tests/com/psiphon3/psiphonlibrary/RSAEncryptBenchmark.java
+//   java -Xmx1g -cp /tmp/bench:bin/classes:<android.jar> com.psiphon3.psiphonlibrary.RSAEncryptBenchmark
+//
+// Prints the best time, throughput and bytes allocated per call for each
+// implementation and size.
+public class RSAEncryptBenchmark
+{
+    private static final int[] SIZES_MB = {1, 10, 50};
+    private static final int ITERATIONS = 5;
+    private static final int STREAM_WRITE_SIZE = 64 * 1024;
+
+    private interface Encryptor
+    {
+        String name();
+        void encrypt(byte[] data, String publicKey) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+        String publicKey = Base64.encodeToString(keyPair.getPublic().getEncoded(), Base64.DEFAULT);
+
+        checkRoundTrip(publicKey, keyPair.getPrivate());
+
+        Encryptor[] encryptors = {
+            new Encryptor()
+            {
+                public String name() { return "baseline"; }
+                public void encrypt(byte[] data, String key) throws Exception
+                {
+                    encryptWithRSABaseline(data, key);
+                }
+            },
+            new Encryptor()
+            {
+                public String name() { return "encryptWithRSA"; }
+                public void encrypt(byte[] data, String key) throws Exception
+                {
+                    Utils.encryptWithRSA(data, key);
+                }
+            },
+            new Encryptor()
+            {
+                public String name() { return "stream"; }
+                public void encrypt(byte[] data, String key) throws Exception
+                {
+                    Utils.RSAEncryptOutputStream stream = new Utils.RSAEncryptOutputStream(new NullOutputStream(), key);
+                    for (int offset = 0; offset < data.length; offset += STREAM_WRITE_SIZE)
+                    {
+                        stream.write(data, offset, Math.min(STREAM_WRITE_SIZE, data.length - offset));
+                    }
+                    stream.close();
+                }
+            }
+        };
+
+        Random random = new Random(0);
+        for (int sizeMb : SIZES_MB)
+        {
+            byte[] data = new byte[sizeMb * 1024 * 1024];
+            random.nextBytes(data);
+            for (Encryptor encryptor : encryptors)
+            {
+                long bestNanos = Long.MAX_VALUE;
+                long allocatedBytes = 0;
+                for (int i = 0; i < ITERATIONS; i++)
+                {
+                    long allocatedBefore = threadAllocatedBytes();
+                    long start = System.nanoTime();
+                    encryptor.encrypt(data, publicKey);
+                    bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+                    allocatedBytes = threadAllocatedBytes() - allocatedBefore;
+                }
+                System.out.println(String.format("%3d MB %-15s %8.1f ms %8.1f MB/s %12d bytes allocated",
+                        sizeMb, encryptor.name(), bestNanos / 1e6, sizeMb / (bestNanos / 1e9), allocatedBytes));
+            }
+        }
+    }
+
+    private static void checkRoundTrip(String publicKey, PrivateKey privateKey) throws Exception
+    {
+        byte[] data = new byte[100000];
+        new Random(1).nextBytes(data);
+        Utils.RSAEncryptOutput output = Utils.encryptWithRSA(data, publicKey);
+
+        Cipher rsaCipher = Cipher.getInstance("RSA/ECB/OAEPWithSHA1AndMGF1Padding");
+        rsaCipher.init(Cipher.UNWRAP_MODE, privateKey);
+        SecretKey encryptionKey = (SecretKey)rsaCipher.unwrap(output.mWrappedEncryptionKey, "AES", Cipher.SECRET_KEY);
+        SecretKey macKey = (SecretKey)rsaCipher.unwrap(output.mWrappedMacKey, "AES", Cipher.SECRET_KEY);
+
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(macKey);
+        mac.update(output.mIv);
+        if (!Arrays.equals(mac.doFinal(output.mContentCiphertext), output.mContentMac))
+        {
+            throw new AssertionError("MAC mismatch");
+        }
+
+        Cipher aesCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        aesCipher.init(Cipher.DECRYPT_MODE, encryptionKey, new IvParameterSpec(output.mIv));
+        if (!Arrays.equals(aesCipher.doFinal(output.mContentCiphertext), data))
+        {
+            throw new AssertionError("plaintext mismatch");
+        }
+    }
+
+    // Utils.encryptWithRSA before it was rewritten over RSAEncryptOutputStream.
+    private static Utils.RSAEncryptOutput encryptWithRSABaseline(byte[] data, String rsaPublicKey) throws Exception
+    {
+        KeyGenerator encryptionKeygen = KeyGenerator.getInstance("AES");
+        encryptionKeygen.init(128);
+        SecretKey encryptionKey = encryptionKeygen.generateKey();
+
+        SecureRandom rng = new SecureRandom();
+        byte[] iv = new byte[16];
+        rng.nextBytes(iv);
+
+        Cipher aesCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        aesCipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
+        byte[] contentCiphertext = aesCipher.doFinal(data);
+        iv = aesCipher.getIV();
+
+        KeyGenerator macKeygen = KeyGenerator.getInstance("AES");
+        macKeygen.init(128);
+        SecretKey macKey = macKeygen.generateKey();
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(macKey);
+        mac.update(iv);
+        byte[] contentMac = mac.doFinal(contentCiphertext);
+
+        X509EncodedKeySpec spec = new X509EncodedKeySpec(Base64.decode(rsaPublicKey));
+        PublicKey publicKey = KeyFactory.getInstance("RSA").generatePublic(spec);
+        Cipher rsaCipher = Cipher.getInstance("RSA/ECB/OAEPWithSHA1AndMGF1Padding");
+        rsaCipher.init(Cipher.WRAP_MODE, publicKey);
+
+        return new Utils.RSAEncryptOutput(
+                contentCiphertext, iv, rsaCipher.wrap(encryptionKey), contentMac, rsaCipher.wrap(macKey));
+    }
+
+    private static long threadAllocatedBytes()
+    {
+        return ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+    }
+
+    private static class NullOutputStream extends OutputStream
+    {
+        @Override
+        public void write(int b)
+        {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+        }
+    }
+}
@@ -0,0 +1,399 @@
+/*
+ * Copyright (c) 2015, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3.psiphonlibrary.codec;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+// Compares the codec package with the codecs it replaced, kept below in
+// Baseline: Utils.Base64, Utils.byteArrayToHexString/hexStringToByteArray
+// and the Weave client's Base32. The codecs are plain Java; from
+// Android/PsiphonAndroidLibrary:
+//
+//   javac -d /tmp/codec src/com/psiphon3/psiphonlibrary/codec/*.java tests/com/psiphon3/psiphonlibrary/codec/CodecBenchmark.java
+//   java -cp /tmp/codec com.psiphon3.psiphonlibrary.codec.CodecBenchmark
+//
+// Checks that old and new produce the same output, then prints time and
+// bytes allocated per call for a key-sized and a bulk input. The "into"
+// rows encode or decode into a reused caller buffer.
+public class CodecBenchmark
+{
+    private static final int[] SIZES = {32, 64 * 1024};
+    private static final long TARGET_BYTES = 256L * 1024 * 1024;
+
+    private interface Operation
+    {
+        Object run();
+    }
+
+    public static void main(String[] args)
+    {
+        Random random = new Random(0);
+        checkCompatibility(random);
+
+        for (int size : SIZES)
+        {
+            final byte[] data = new byte[size];
+            random.nextBytes(data);
+
+            final String base64 = Base64.encodeToString(data, Base64.DEFAULT);
+            final byte[] base64Bytes = Base64.encode(data, Base64.DEFAULT);
+            final String hex = Hex.encodeToString(data, Hex.UPPER_CASE);
+            final byte[] hexBytes = Hex.encode(data, Hex.UPPER_CASE);
+            final String base32 = Base32.encodeToString(data, Base32.NO_PADDING);
+            final byte[] base32Bytes = Base32.encode(data, Base32.NO_PADDING);
+            final byte[] encodeBuffer = new byte[Hex.encodedLength(size)];
+            final byte[] decodeBuffer = new byte[size + 8];
+
+            System.out.println(size + " bytes:");
+
+            measure("base64 encode   old ", size, new Operation() {
+                public Object run() { return Baseline.base64Encode(data); }
+            });
+            measure("base64 encode   new ", size, new Operation() {
+                public Object run() { return Base64.encodeToString(data, Base64.DEFAULT); }
+            });
+            measure("base64 encode   into", size, new Operation() {
+                public Object run() { return Base64.encode(data, 0, data.length, encodeBuffer, 0, Base64.DEFAULT); }
+            });
+            measure("base64 decode   old ", size, new Operation() {
+                public Object run() { return Baseline.base64Decode(base64); }
+            });
+            measure("base64 decode   new ", size, new Operation() {
+                public Object run() { return Base64.decode(base64); }
+            });
+            measure("base64 decode   into", size, new Operation() {
+                public Object run() { return Base64.decode(base64Bytes, 0, base64Bytes.length, decodeBuffer, 0); }
+            });
+
+            measure("hex encode      old ", size, new Operation() {
+                public Object run() { return Baseline.byteArrayToHexString(data); }
+            });
+            measure("hex encode      new ", size, new Operation() {
+                public Object run() { return Hex.encodeToString(data, Hex.UPPER_CASE); }
+            });
+            measure("hex encode      into", size, new Operation() {
+                public Object run() { return Hex.encode(data, 0, data.length, encodeBuffer, 0, Hex.UPPER_CASE); }
+            });
+            measure("hex decode      old ", size, new Operation() {
+                public Object run() { return Baseline.hexStringToByteArray(hex); }
+            });
+            measure("hex decode      new ", size, new Operation() {
+                public Object run() { return Hex.decode(hex); }
+            });
+            measure("hex decode      into", size, new Operation() {
+                public Object run() { return Hex.decode(hexBytes, 0, hexBytes.length, decodeBuffer, 0); }
+            });
+
+            measure("base32 encode   old ", size, new Operation() {
+                public Object run() { return Baseline.base32Encode(data); }
+            });
+            measure("base32 encode   new ", size, new Operation() {
+                public Object run() { return Base32.encodeToString(data, Base32.NO_PADDING); }
+            });
+            measure("base32 encode   into", size, new Operation() {
+                public Object run() { return Base32.encode(data, 0, data.length, encodeBuffer, 0, Base32.NO_PADDING); }
+            });
+            measure("base32 decode   old ", size, new Operation() {
+                public Object run() { return Baseline.base32Decode(base32); }
+            });
+            measure("base32 decode   new ", size, new Operation() {
+                public Object run() { return Base32.decode(base32); }
+            });
+            measure("base32 decode   into", size, new Operation() {
+                public Object run() { return Base32.decode(base32Bytes, 0, base32Bytes.length, decodeBuffer, 0); }
+            });
+        }
+    }
+
+    private static void checkCompatibility(Random random)
+    {
+        for (int size = 0; size < 100; size++)
+        {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+            check(Baseline.base64Encode(data).equals(Base64.encodeToString(data, Base64.DEFAULT)), "base64 encode");
+            check(Arrays.equals(Baseline.byteArrayToHexString(data).getBytes(), Hex.encode(data, Hex.UPPER_CASE)),
+                    "hex encode");
+            check(Arrays.equals(Baseline.hexStringToByteArray(Hex.encodeToString(data, Hex.DEFAULT)), data),
+                    "hex decode");
+            String base32 = Baseline.base32Encode(data);
+            check(base32.equals(Base32.encodeToString(data, Base32.NO_PADDING)), "base32 encode");
+            check(Arrays.equals(Base32.decode(base32), data), "base32 decode");
+            if (size > 0)
+            {
+                // The old decoders mishandle empty input
+                check(Arrays.equals(Baseline.base64Decode(Base64.encodeToString(data, Base64.DEFAULT)), data),
+                        "base64 decode");
+                check(Arrays.equals(Baseline.base32Decode(base32), data), "base32 decode");
+            }
+        }
+    }
+
+    private static void measure(String name, int size, Operation operation)
+    {
+        int iterations = (int)Math.max(10, TARGET_BYTES / size / 8);
+
+        // Warm up, then time the best of a few rounds
+        for (int i = 0; i < iterations; i++)
+        {
+            operation.run();
+        }
+        long bestNanos = Long.MAX_VALUE;
+        long allocatedBytes = 0;
+        for (int round = 0; round < 3; round++)
+        {
+            long allocatedBefore = threadAllocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+            {
+                operation.run();
+            }
+            bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+            allocatedBytes = threadAllocatedBytes() - allocatedBefore;
+        }
+        System.out.println(String.format("  %s %10.1f ns/call %8.1f MB/s %10d bytes/call",
+                name, (double)bestNanos / iterations, size * (double)iterations / (bestNanos / 1e9) / (1024 * 1024),
+                allocatedBytes / iterations));
+    }
+
+    private static long threadAllocatedBytes()
+    {
+        return ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+    }
+
+    private static void check(boolean condition, String message)
+    {
+        if (!condition)
+        {
+            throw new AssertionError(message);
+        }
+    }
+
+    // The replaced codecs, as they were.
+    private static class Baseline
+    {
+        static String base64Encode(byte[] d)
+        {
+            byte data[] = new byte[d.length + 2];
+            System.arraycopy(d, 0, data, 0, d.length);
+            byte dest[] = new byte[(data.length / 3) * 4];
+
+            for (int sidx = 0, didx = 0; sidx < d.length; sidx += 3, didx += 4)
+            {
+                dest[didx] = (byte) ((data[sidx] >>> 2) & 077);
+                dest[didx + 1] = (byte) ((data[sidx + 1] >>> 4) & 017 | (data[sidx] << 4) & 077);
+                dest[didx + 2] = (byte) ((data[sidx + 2] >>> 6) & 003 | (data[sidx + 1] << 2) & 077);
+                dest[didx + 3] = (byte) (data[sidx + 2] & 077);
+            }
+
+            for (int idx = 0; idx < dest.length; idx++)
+            {
+                if (dest[idx] < 26)
+                    dest[idx] = (byte) (dest[idx] + 'A');
+                else if (dest[idx] < 52)
+                    dest[idx] = (byte) (dest[idx] + 'a' - 26);
+                else if (dest[idx] < 62)
+                    dest[idx] = (byte) (dest[idx] + '0' - 52);
+                else if (dest[idx] < 63)
+                    dest[idx] = (byte) '+';
+                else
+                    dest[idx] = (byte) '/';
+            }
+
+            for (int idx = dest.length - 1; idx > (d.length * 4) / 3; idx--)
+            {
+                dest[idx] = (byte) '=';
+            }
+            return new String(dest);
+        }
+
+        static byte[] base64Decode(String str)
+        {
+            byte data[] = str.getBytes();
+            int tail = data.length;
+            while (data[tail - 1] == '=')
+                tail--;
+            byte dest[] = new byte[tail - data.length / 4];
+
+            for (int idx = 0; idx < data.length; idx++)
+            {
+                if (data[idx] == '=')
+                    data[idx] = 0;
+                else if (data[idx] == '/')
+                    data[idx] = 63;
+                else if (data[idx] == '+')
+                    data[idx] = 62;
+                else if (data[idx] >= '0' && data[idx] <= '9')
+                    data[idx] = (byte) (data[idx] - ('0' - 52));
+                else if (data[idx] >= 'a' && data[idx] <= 'z')
+                    data[idx] = (byte) (data[idx] - ('a' - 26));
+                else if (data[idx] >= 'A' && data[idx] <= 'Z')
+                    data[idx] = (byte) (data[idx] - 'A');
+            }
+
+            int sidx, didx;
+            for (sidx = 0, didx = 0; didx < dest.length - 2; sidx += 4, didx += 3)
+            {
+                dest[didx] = (byte) (((data[sidx] << 2) & 255) | ((data[sidx + 1] >>> 4) & 3));
+                dest[didx + 1] = (byte) (((data[sidx + 1] << 4) & 255) | ((data[sidx + 2] >>> 2) & 017));
+                dest[didx + 2] = (byte) (((data[sidx + 2] << 6) & 255) | (data[sidx + 3] & 077));
+            }
+            if (didx < dest.length)
+            {
+                dest[didx] = (byte) (((data[sidx] << 2) & 255) | ((data[sidx + 1] >>> 4) & 3));
+            }
+            if (++didx < dest.length)
+            {
+                dest[didx] = (byte) (((data[sidx + 1] << 4) & 255) | ((data[sidx + 2] >>> 2) & 017));
+            }
+            return dest;
+        }
+
+        static byte[] hexStringToByteArray(String s)
+        {
+            int len = s.length();
+            byte[] data = new byte[len / 2];
+            for (int i = 0; i < len; i += 2)
+            {
+                data[i / 2] = (byte) ((Character.digit(s.charAt(i), 16) << 4) + Character.digit(s.charAt(i + 1), 16));
+            }
+            return data;
+        }
+
+        static String byteArrayToHexString(byte[] bytes)
+        {
+            char[] hexArray = {'0','1','2','3','4','5','6','7','8','9','A','B','C','D','E','F'};
+            char[] hexChars = new char[bytes.length * 2];
+            int v;
+            for (int j = 0; j < bytes.length; j++)
+            {
+                v = bytes[j] & 0xFF;
+                hexChars[j*2] = hexArray[v/16];
+                hexChars[j*2 + 1] = hexArray[v%16];
+            }
+            return new String(hexChars);
+        }
+
+        private static final String BASE32_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567";
+        private static final int[] BASE32_LOOKUP =
+        {
+            0xFF,0xFF,0x1A,0x1B,0x1C,0x1D,0x1E,0x1F,
+            0xFF,0xFF,0xFF,0xFF,0xFF,0xFF,0xFF,0xFF,
+            0xFF,0x00,0x01,0x02,0x03,0x04,0x05,0x06,
+            0x07,0x08,0x09,0x0A,0x0B,0x0C,0x0D,0x0E,
+            0x0F,0x10,0x11,0x12,0x13,0x14,0x15,0x16,
+            0x17,0x18,0x19,0xFF,0xFF,0xFF,0xFF,0xFF,
+            0xFF,0x00,0x01,0x02,0x03,0x04,0x05,0x06,
+            0x07,0x08,0x09,0x0A,0x0B,0x0C,0x0D,0x0E,
+            0x0F,0x10,0x11,0x12,0x13,0x14,0x15,0x16,
+            0x17,0x18,0x19,0xFF,0xFF,0xFF,0xFF,0xFF
+        };
+
+        static String base32Encode(final byte[] bytes)
+        {
+            int i = 0, index = 0, digit = 0;
+            int currByte, nextByte;
+            StringBuffer base32 = new StringBuffer((bytes.length + 7) * 8 / 5);
+
+            while (i < bytes.length)
+            {
+                currByte = (bytes[i] >= 0) ? bytes[i] : (bytes[i] + 256);
+
+                if (index > 3)
+                {
+                    if ((i + 1) < bytes.length)
+                    {
+                        nextByte = (bytes[i + 1] >= 0) ? bytes[i + 1] : (bytes[i + 1] + 256);
+                    }
+                    else
+                    {
+                        nextByte = 0;
+                    }
+
+                    digit = currByte & (0xFF >> index);
+                    index = (index + 5) % 8;
+                    digit <<= index;
+                    digit |= nextByte >> (8 - index);
+                    i++;
+                }
+                else
+                {
+                    digit = (currByte >> (8 - (index + 5))) & 0x1F;
+                    index = (index + 5) % 8;
+                    if (index == 0)
+                        i++;
+                }
+                base32.append(BASE32_CHARS.charAt(digit));
+            }
+
+            return base32.toString();
+        }
+
+        static byte[] base32Decode(final String base32)
+        {
+            int i, index, lookup, offset, digit;
+            byte[] bytes = new byte[base32.length() * 5 / 8];
+
+            for (i = 0, index = 0, offset = 0; i < base32.length(); i++)
+            {
+                lookup = base32.charAt(i) - '0';
+                if (lookup < 0 || lookup >= BASE32_LOOKUP.length)
+                {
+                    continue;
+                }
+                digit = BASE32_LOOKUP[lookup];
+                if (digit == 0xFF)
+                {
+                    continue;
+                }
+
+                if (index <= 3)
+                {
+                    index = (index + 5) % 8;
+                    if (index == 0)
+                    {
+                        bytes[offset] |= digit;
+                        offset++;
+                        if (offset >= bytes.length)
+                            break;
+                    }
+                    else
+                    {
+                        bytes[offset] |= digit << (8 - index);
+                    }
+                }
+                else
+                {
+                    index = (index + 5) % 8;
+                    bytes[offset] |= (digit >>> index);
+                    offset++;
+                    if (offset >= bytes.length)
+                    {
+                        break;
+                    }
+                    bytes[offset] |= digit << (8 - index);
+                }
+            }
+            return bytes;
+        }
+    }
+}
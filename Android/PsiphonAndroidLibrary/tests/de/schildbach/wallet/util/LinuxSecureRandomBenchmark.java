@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2015, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package de.schildbach.wallet.util;
+
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.security.SecureRandomSpi;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+// Compares the buffered LinuxSecureRandom with the previous provider, kept
+// below as UnbufferedLinuxSecureRandom, which read every request from
+// /dev/urandom through a per-instance DataInputStream. Needs Linux; from
+// Android/PsiphonAndroidLibrary:
+//
+//   javac -d /tmp/securerandom src/de/schildbach/wallet/util/LinuxSecureRandom.java tests/de/schildbach/wallet/util/LinuxSecureRandomBenchmark.java
+//   java -cp /tmp/securerandom de.schildbach.wallet.util.LinuxSecureRandomBenchmark
+//
+// Prints requests per second for IV, key and larger request sizes, on one
+// thread and on several threads sharing the provider.
+public class LinuxSecureRandomBenchmark
+{
+    private static final int[] REQUEST_SIZES = {16, 32, 256, 4096};
+    private static final int[] THREAD_COUNTS = {1, 4};
+    private static final long RUN_MILLIS = 1000;
+
+    // The provider as it was before per-thread buffering.
+    private static class UnbufferedLinuxSecureRandom extends SecureRandomSpi
+    {
+        private static final long serialVersionUID = 1L;
+        private static final FileInputStream urandom;
+
+        static
+        {
+            try
+            {
+                urandom = new FileInputStream("/dev/urandom");
+            }
+            catch (IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private final DataInputStream dis = new DataInputStream(urandom);
+
+        @Override
+        protected void engineSetSeed(byte[] bytes)
+        {
+        }
+
+        @Override
+        protected void engineNextBytes(byte[] bytes)
+        {
+            try
+            {
+                dis.readFully(bytes);
+            }
+            catch (IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        protected byte[] engineGenerateSeed(int i)
+        {
+            byte[] bits = new byte[i];
+            engineNextBytes(bits);
+            return bits;
+        }
+    }
+
+    private static class SpiSecureRandom extends SecureRandom
+    {
+        private static final long serialVersionUID = 1L;
+
+        SpiSecureRandom(SecureRandomSpi spi)
+        {
+            super(spi, null);
+        }
+    }
+
+    private interface RandomFactory
+    {
+        SecureRandom newRandom();
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        checkOutput();
+
+        RandomFactory[] factories = {
+            new RandomFactory()
+            {
+                public SecureRandom newRandom()
+                {
+                    return new SpiSecureRandom(new UnbufferedLinuxSecureRandom());
+                }
+
+                public String toString()
+                {
+                    return "unbuffered";
+                }
+            },
+            new RandomFactory()
+            {
+                public SecureRandom newRandom()
+                {
+                    return new SpiSecureRandom(new LinuxSecureRandom());
+                }
+
+                public String toString()
+                {
+                    return "buffered";
+                }
+            }
+        };
+
+        // Warm up both providers before timing either
+        for (RandomFactory factory : factories)
+        {
+            run(factory, 16, 1);
+        }
+
+        for (int threadCount : THREAD_COUNTS)
+        {
+            for (int requestSize : REQUEST_SIZES)
+            {
+                for (RandomFactory factory : factories)
+                {
+                    double rate = run(factory, requestSize, threadCount);
+                    System.out.println(String.format("%d thread(s) %5d bytes %-10s %12.0f requests/s %8.1f MB/s",
+                            threadCount, requestSize, factory, rate, rate * requestSize / (1024 * 1024)));
+                }
+            }
+        }
+    }
+
+    // Buffered bytes must never be handed out twice, within a thread or
+    // across threads.
+    private static void checkOutput() throws Exception
+    {
+        final LinuxSecureRandom spi = new LinuxSecureRandom();
+        final byte[][] outputs = new byte[8][];
+        Thread[] threads = new Thread[outputs.length];
+        for (int i = 0; i < threads.length; i++)
+        {
+            final int index = i;
+            threads[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    SecureRandom random = new SpiSecureRandom(spi);
+                    byte[] output = new byte[4096];
+                    byte[] request = new byte[16];
+                    for (int offset = 0; offset < output.length; offset += request.length)
+                    {
+                        random.nextBytes(request);
+                        System.arraycopy(request, 0, output, offset, request.length);
+                    }
+                    outputs[index] = output;
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        Set<String> blocks = new HashSet<String>();
+        for (byte[] output : outputs)
+        {
+            for (int offset = 0; offset < output.length; offset += 16)
+            {
+                if (!blocks.add(Arrays.toString(Arrays.copyOfRange(output, offset, offset + 16))))
+                {
+                    throw new AssertionError("repeated random bytes");
+                }
+            }
+        }
+    }
+
+    private static double run(final RandomFactory factory, final int requestSize, int threadCount) throws Exception
+    {
+        final long[] counts = new long[threadCount];
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[threadCount];
+        final long[] deadline = new long[1];
+        for (int i = 0; i < threadCount; i++)
+        {
+            final int index = i;
+            threads[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    SecureRandom random = factory.newRandom();
+                    byte[] bytes = new byte[requestSize];
+                    try
+                    {
+                        start.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                    long count = 0;
+                    while (System.currentTimeMillis() < deadline[0])
+                    {
+                        for (int j = 0; j < 100; j++)
+                        {
+                            random.nextBytes(bytes);
+                        }
+                        count += 100;
+                    }
+                    counts[index] = count;
+                }
+            };
+            threads[i].start();
+        }
+        deadline[0] = System.currentTimeMillis() + RUN_MILLIS;
+        start.countDown();
+        long total = 0;
+        for (int i = 0; i < threadCount; i++)
+        {
+            threads[i].join();
+            total += counts[i];
+        }
+        return total * 1000.0 / RUN_MILLIS;
+    }
+}
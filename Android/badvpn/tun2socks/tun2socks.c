@@ -259,30 +259,154 @@ static void udpgw_client_handler_received (void *unused, BAddr local_addr, BAddr
 
 int g_tun_fd = -1;
 JNIEnv* g_env = 0;
+jclass g_log_class = 0;
+jmethodID g_log_method = 0;
 
 void PsiphonLog(const char *levelStr, const char *channelStr, const char *msgStr)
 {
-    if (!g_env)
+    if (!g_env || !g_log_method)
     {
         return;
     }
-    // Note: we could cache the class and method references if log is called frequently
+
+    // Lines below the log level passed to runTun2Socks are filtered out by
+    // BLog before reaching here, so they never cross JNI.
 
     jstring level = (*g_env)->NewStringUTF(g_env, levelStr);
     jstring channel = (*g_env)->NewStringUTF(g_env, channelStr);
     jstring msg = (*g_env)->NewStringUTF(g_env, msgStr);
 
-    jclass cls = (*g_env)->FindClass(g_env, "ca/psiphon/PsiphonTunnel");
-    jmethodID logMethod = (*g_env)->GetStaticMethodID(g_env, cls, "logTun2Socks", "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)V");
-    (*g_env)->CallStaticVoidMethod(g_env, cls, logMethod, level, channel, msg);
-
-    (*g_env)->DeleteLocalRef(g_env, cls);
+    (*g_env)->CallStaticVoidMethod(g_env, g_log_class, g_log_method, level, channel, msg);
 
     (*g_env)->DeleteLocalRef(g_env, level);
     (*g_env)->DeleteLocalRef(g_env, channel);
     (*g_env)->DeleteLocalRef(g_env, msg);
 }
 
+jmethodID g_dns_lookup_method = 0;
+jmethodID g_dns_response_method = 0;
+
+// Offers a DNS query from the device to PsiphonTunnel's cache. Returns 1 if the
+// query was answered from the cache or is held for an identical query already in
+// flight, in which case it must not be forwarded.
+int PsiphonDnsCacheLookup(BAddr local_addr, BAddr remote_addr, const uint8_t *data, int data_len)
+{
+    if (!g_env || !g_dns_lookup_method)
+    {
+        return 0;
+    }
+
+    jbyteArray query = (*g_env)->NewByteArray(g_env, data_len);
+    if (!query)
+    {
+        (*g_env)->ExceptionClear(g_env);
+        return 0;
+    }
+    (*g_env)->SetByteArrayRegion(g_env, query, 0, data_len, (const jbyte *)data);
+
+    jbyteArray response = (jbyteArray)(*g_env)->CallStaticObjectMethod(
+        g_env, g_log_class, g_dns_lookup_method, (jint)local_addr.ipv4.ip, (jint)local_addr.ipv4.port, query);
+
+    (*g_env)->DeleteLocalRef(g_env, query);
+
+    if ((*g_env)->ExceptionCheck(g_env))
+    {
+        (*g_env)->ExceptionClear(g_env);
+        return 0;
+    }
+
+    if (!response)
+    {
+        return 0;
+    }
+
+    jsize response_len = (*g_env)->GetArrayLength(g_env, response);
+    if (response_len > 0)
+    {
+        jbyte *response_data = (*g_env)->GetByteArrayElements(g_env, response, NULL);
+        if (response_data)
+        {
+            udpgw_client_handler_received(NULL, local_addr, remote_addr, (const uint8_t *)response_data, response_len);
+            (*g_env)->ReleaseByteArrayElements(g_env, response, response_data, JNI_ABORT);
+        }
+    }
+
+    (*g_env)->DeleteLocalRef(g_env, response);
+
+    return 1;
+}
+
+// Passes a DNS response from the tunnel to PsiphonTunnel's cache, which may
+// answer held queries through writeDnsResponse.
+void PsiphonDnsCacheStore(const uint8_t *data, int data_len)
+{
+    if (!g_env || !g_dns_response_method)
+    {
+        return;
+    }
+
+    jbyteArray response = (*g_env)->NewByteArray(g_env, data_len);
+    if (!response)
+    {
+        (*g_env)->ExceptionClear(g_env);
+        return;
+    }
+    (*g_env)->SetByteArrayRegion(g_env, response, 0, data_len, (const jbyte *)data);
+
+    (*g_env)->CallStaticVoidMethod(g_env, g_log_class, g_dns_response_method, response);
+
+    (*g_env)->DeleteLocalRef(g_env, response);
+
+    if ((*g_env)->ExceptionCheck(g_env))
+    {
+        (*g_env)->ExceptionClear(g_env);
+    }
+}
+
+static void psiphon_udpgw_client_handler_received(void *unused, BAddr local_addr, BAddr remote_addr, const uint8_t *data, int data_len)
+{
+    if (options.udpgw_transparent_dns &&
+        remote_addr.type == BADDR_TYPE_IPV4 &&
+        remote_addr.ipv4.ip == netif_ipaddr.ipv4 &&
+        remote_addr.ipv4.port == hton16(53))
+    {
+        PsiphonDnsCacheStore(data, data_len);
+    }
+
+    udpgw_client_handler_received(unused, local_addr, remote_addr, data, data_len);
+}
+
+JNIEXPORT void JNICALL Java_ca_psiphon_PsiphonTunnel_writeDnsResponse(
+    JNIEnv* env,
+    jclass cls,
+    jint clientAddress,
+    jint clientPort,
+    jbyteArray response)
+{
+    // Only called back from within PsiphonDnsCacheLookup/PsiphonDnsCacheStore,
+    // on the tun2socks thread
+    if (!g_env)
+    {
+        return;
+    }
+
+    BAddr local_addr;
+    BAddr remote_addr;
+    BAddr_InitIPv4(&local_addr, (uint32_t)clientAddress, (uint16_t)clientPort);
+    BAddr_InitIPv4(&remote_addr, netif_ipaddr.ipv4, hton16(53));
+
+    jsize response_len = (*env)->GetArrayLength(env, response);
+    jbyte *response_data = (*env)->GetByteArrayElements(env, response, NULL);
+    if (!response_data)
+    {
+        return;
+    }
+
+    udpgw_client_handler_received(NULL, local_addr, remote_addr, (const uint8_t *)response_data, response_len);
+
+    (*env)->ReleaseByteArrayElements(env, response, response_data, JNI_ABORT);
+}
+
 JNIEXPORT jint JNICALL Java_ca_psiphon_PsiphonTunnel_runTun2Socks(
     JNIEnv* env,
     jclass cls,
@@ -292,10 +416,18 @@ JNIEXPORT jint JNICALL Java_ca_psiphon_PsiphonTunnel_runTun2Socks(
     jstring vpnNetMask,
     jstring socksServerAddress,
     jstring udpgwServerAddress,
-    jint udpgwTransparentDNS)
+    jint udpgwTransparentDNS,
+    jint logLevel)
 {
     g_env = env;
 
+    // cls is PsiphonTunnel and remains valid until this call returns, which
+    // covers every log call made by run()
+    g_log_class = cls;
+    g_log_method = (*env)->GetStaticMethodID(env, cls, "logTun2Socks", "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)V");
+    g_dns_lookup_method = (*env)->GetStaticMethodID(env, cls, "lookupDnsCache", "(II[B)[B");
+    g_dns_response_method = (*env)->GetStaticMethodID(env, cls, "onDnsResponse", "([B)V");
+
     const char* vpnIpAddressStr = (*env)->GetStringUTFChars(env, vpnIpAddress, 0);
     const char* vpnNetMaskStr = (*env)->GetStringUTFChars(env, vpnNetMask, 0);
     const char* socksServerAddressStr = (*env)->GetStringUTFChars(env, socksServerAddress, 0);
@@ -311,7 +443,7 @@ JNIEXPORT jint JNICALL Java_ca_psiphon_PsiphonTunnel_runTun2Socks(
     options.tun_fd = vpnInterfaceFileDescriptor;
     options.tun_mtu = vpnInterfaceMTU;
     options.set_signal = 0;
-    options.loglevel = 2;
+    options.loglevel = logLevel;
 
     BLog_InitPsiphon();
 
@@ -323,6 +455,10 @@ JNIEXPORT jint JNICALL Java_ca_psiphon_PsiphonTunnel_runTun2Socks(
     (*env)->ReleaseStringUTFChars(env, udpgwServerAddress, udpgwServerAddressStr);
 
     g_env = 0;
+    g_log_class = 0;
+    g_log_method = 0;
+    g_dns_lookup_method = 0;
+    g_dns_response_method = 0;
 
     // TODO: return success/error
 
@@ -500,7 +636,12 @@ void run()
         // init udpgw client
         if (!SocksUdpGwClient_Init(&udpgw_client, udp_mtu, DEFAULT_UDPGW_MAX_CONNECTIONS, options.udpgw_connection_buffer_size, UDPGW_KEEPALIVE_TIME,
                                    socks_server_addr, socks_auth_info, socks_num_auth_info,
-                                   udpgw_remote_server_addr, UDPGW_RECONNECT_TIME, &ss, NULL, udpgw_client_handler_received
+                                   udpgw_remote_server_addr, UDPGW_RECONNECT_TIME, &ss, NULL,
+#ifdef PSIPHON
+                                   psiphon_udpgw_client_handler_received
+#else
+                                   udpgw_client_handler_received
+#endif
         )) {
             BLog(BLOG_ERROR, "SocksUdpGwClient_Init failed");
             goto fail4a;
@@ -1300,6 +1441,13 @@ int process_device_udp_packet (uint8_t *data, int data_len)
         goto fail;
     }
     
+#ifdef PSIPHON
+    // answer from the DNS cache, or hold for an identical query in flight
+    if (is_dns && PsiphonDnsCacheLookup(local_addr, remote_addr, data, data_len)) {
+        return 1;
+    }
+#endif
+    
     // submit packet to udpgw
     SocksUdpGwClient_SubmitPacket(&udpgw_client, local_addr, remote_addr, is_dns, data, data_len);
     
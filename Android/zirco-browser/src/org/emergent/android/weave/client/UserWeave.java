@@ -1,5 +1,7 @@
 package org.emergent.android.weave.client;
 
+import com.psiphon3.psiphonlibrary.codec.Base64;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
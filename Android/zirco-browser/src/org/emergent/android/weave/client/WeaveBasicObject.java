@@ -16,6 +16,8 @@
 
 package org.emergent.android.weave.client;
 
+import com.psiphon3.psiphonlibrary.codec.Base32;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -81,11 +83,31 @@ public class WeaveBasicObject {
   public JSONObject getEncryptedPayload(UserWeave weave, char[] secret)
       throws JSONException, IOException, GeneralSecurityException, WeaveException {
     WeaveEncryptedObject weo = new WeaveEncryptedObject(getPayload());
-    byte[] syncKey = Base32.decodeModified(new String(secret)); // todo don't convert to string
+    byte[] syncKey = decodeSyncKey(secret);
     BulkKeyCouplet bulkKeyPair = weave.getBulkKeyPair(syncKey);
     return weo.decryptObject(bulkKeyPair);
   }
 
+  /**
+   * Decodes a sync key as entered by the user. Sync keys use a modified
+   * Base32 alphabet with '8' for 'L' and '9' for 'O', and may be grouped
+   * with dashes; any other characters outside the alphabet are ignored.
+   */
+  private static byte[] decodeSyncKey(char[] secret) {
+    StringBuilder base32 = new StringBuilder(secret.length);
+    for (char c : secret) {
+      if (c == '8') {
+        c = 'L';
+      } else if (c == '9') {
+        c = 'O';
+      }
+      if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '2' && c <= '7')) {
+        base32.append(c);
+      }
+    }
+    return Base32.decode(base32.toString());
+  }
+
   public JSONObject getEncryptedPayload(Key bulkKey, Key hmacKey)
       throws JSONException, IOException, GeneralSecurityException, WeaveException {
     WeaveEncryptedObject weo = new WeaveEncryptedObject(getPayload());
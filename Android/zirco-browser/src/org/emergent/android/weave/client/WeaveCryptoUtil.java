@@ -1,5 +1,9 @@
 package org.emergent.android.weave.client;
 
+import com.psiphon3.psiphonlibrary.codec.Base32;
+import com.psiphon3.psiphonlibrary.codec.Base64;
+import com.psiphon3.psiphonlibrary.codec.Hex;
+
 import javax.crypto.Cipher;
 import javax.crypto.Mac;
 import javax.crypto.spec.IvParameterSpec;
@@ -47,8 +51,7 @@ class WeaveCryptoUtil {
 
       MessageDigest digest = MessageDigest.getInstance("SHA1");
       digest.update(WeaveUtil.toAsciiBytes(friendlyUsername.toLowerCase()));
-      byte[] baseEncodedBytes = Base32.encode(digest.digest());
-      return WeaveUtil.toAsciiString(baseEncodedBytes);
+      return Base32.encodeToString(digest.digest(), Base32.NO_PADDING | Base32.LOWER_CASE);
     } catch (GeneralSecurityException e) {
       throw new Error(e);
     }
@@ -129,7 +132,7 @@ class WeaveCryptoUtil {
 //    mac.init(new SecretKeySpec(Base64.encode(secKey.getEncoded()), "AES"));
     mac.init(secKey);
     byte[] hmacBytes = mac.doFinal(WeaveUtil.toAsciiBytes(ciphertext));
-    return WeaveUtil.toAsciiString(Hex.encode(hmacBytes));
+    return Hex.encodeToString(hmacBytes, Hex.DEFAULT);
   }
 
   private void checkMac(Key secKey, String ciphertext, String hmac) throws GeneralSecurityException {
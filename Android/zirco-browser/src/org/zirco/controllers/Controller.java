@@ -21,9 +21,15 @@ import java.util.List;
 import org.zirco.model.DbAdapter;
 import org.zirco.model.items.DownloadItem;
 import org.zirco.ui.components.CustomWebView;
+import org.zirco.utils.UrlPatternMatcher;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.os.Handler;
+import android.util.Log;
+
+import com.psiphon3.psiphonlibrary.BackgroundExecutors;
 
 /**
  * Controller implementation.
@@ -34,9 +40,13 @@ public final class Controller {
 
 	private List<CustomWebView> mWebViewList;
 	private List<DownloadItem> mDownloadList;
+	private boolean mDownloadListLoaded = false;
 	private List<String> mAdBlockWhiteList = null;
 	private List<String> mMobileViewUrlList = null;
 	private List<String> mDesktopViewUrlList = null;
+	private UrlPatternMatcher mAdBlockWhiteListMatcher = null;
+	private UrlPatternMatcher mMobileViewUrlMatcher = null;
+	private UrlPatternMatcher mDesktopViewUrlMatcher = null;
 	
 	/**
 	 * Holder for singleton implementation.
@@ -112,12 +122,78 @@ public final class Controller {
 		mDownloadList.add(item);
 	}
 	
+	/**
+	 * Load the downloads saved in database, once, and resume the unfinished ones,
+	 * e.g. interrupted by an application restart. The database is read on the
+	 * serial database executor; the downloads are added to the list and started
+	 * afterwards on the calling thread, which must be the UI thread.
+	 * @param context The current context.
+	 */
+	public synchronized void loadDownloadList(Context context) {
+		if (mDownloadListLoaded) {
+			return;
+		}
+		mDownloadListLoaded = true;
+		
+		final Context applicationContext = context.getApplicationContext();
+		final Handler handler = new Handler();
+		
+		BackgroundExecutors.serialDb().execute(new Runnable() {
+			@Override
+			public void run() {
+				final List<DownloadItem> saved = new ArrayList<DownloadItem>();
+				
+				try {
+					DbAdapter db = new DbAdapter(applicationContext);
+					db.open();
+					Cursor cursor = db.getDownloadsCursor();
+					if (cursor.moveToFirst()) {
+						do {
+							saved.add(new DownloadItem(applicationContext, cursor));
+						} while (cursor.moveToNext());
+					}
+					cursor.close();
+					db.close();
+				} catch (Exception e) {
+					e.printStackTrace();
+					Log.w("Controller", "Unable to load downloads: " + e.getMessage());
+				}
+				
+				if (!saved.isEmpty()) {
+					handler.post(new Runnable() {
+						@Override
+						public void run() {
+							onDownloadListLoaded(saved);
+						}
+					});
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Add the saved downloads before the ones started since, and resume the unfinished ones.
+	 * @param saved The downloads saved in database.
+	 */
+	private void onDownloadListLoaded(List<DownloadItem> saved) {
+		mDownloadList.addAll(0, saved);
+		
+		for (DownloadItem item : saved) {
+			if ((!item.isFinished()) &&
+					(!item.isAborted())) {
+				item.startDownload();
+			}
+		}
+	}
+	
 	public synchronized void clearCompletedDownloads() {
 		List<DownloadItem> newList = new ArrayList<DownloadItem>();
 		
 		for (DownloadItem item : mDownloadList) {
 			if (!item.isFinished()) {
 				newList.add(item);
+			} else {
+				item.delete();
 			}
 		}
 		
@@ -130,7 +206,7 @@ public final class Controller {
 	 * @param context The current context.
 	 * @return A list of String url.
 	 */	
-	public List<String> getAdBlockWhiteList(Context context) {
+	public synchronized List<String> getAdBlockWhiteList(Context context) {
 		if (mAdBlockWhiteList == null) {
 			DbAdapter db = new DbAdapter(context);
 			db.open();
@@ -143,16 +219,29 @@ public final class Controller {
 	/**
 	 * Reset the AdBlock white list, so that it will be reloaded.
 	 */
-	public void resetAdBlockWhiteList() {
+	public synchronized void resetAdBlockWhiteList() {
 		mAdBlockWhiteList = null;
-	}	
+		mAdBlockWhiteListMatcher = null;
+	}
+	
+	/**
+	 * Get a matcher for the white-listed url for the AdBlocker.
+	 * @param context The current context.
+	 * @return A matcher of the white list.
+	 */
+	public synchronized UrlPatternMatcher getAdBlockWhiteListMatcher(Context context) {
+		if (mAdBlockWhiteListMatcher == null) {
+			mAdBlockWhiteListMatcher = new UrlPatternMatcher(getAdBlockWhiteList(context));
+		}
+		return mAdBlockWhiteListMatcher;
+	}
 	
 	/**
 	 * Get the list of mobile view urls.
 	 * @param context The current context.
 	 * @return A list of String url.
 	 */
-	public List<String> getMobileViewUrlList(Context context) {
+	public synchronized List<String> getMobileViewUrlList(Context context) {
 		if (mMobileViewUrlList == null) {
 			DbAdapter db = new DbAdapter(context);
 			db.open();
@@ -165,15 +254,29 @@ public final class Controller {
 	/**
 	 * Reset the mobile view url list, so that it will be reloaded.
 	 */
-	public void resetMobileViewUrlList() {
+	public synchronized void resetMobileViewUrlList() {
 		mMobileViewUrlList = null;
+		mMobileViewUrlMatcher = null;
+	}
+	
+	/**
+	 * Get a matcher for the mobile view urls.
+	 * @param context The current context.
+	 * @return A matcher of the mobile view url list.
+	 */
+	public synchronized UrlPatternMatcher getMobileViewUrlMatcher(Context context) {
+		if (mMobileViewUrlMatcher == null) {
+			mMobileViewUrlMatcher = new UrlPatternMatcher(getMobileViewUrlList(context));
+		}
+		return mMobileViewUrlMatcher;
 	}
 
 	/**
      * Reset the desktop view url list, so that it will be reloaded.
      */
-    public void resetDesktopViewUrlList() {
+    public synchronized void resetDesktopViewUrlList() {
         mDesktopViewUrlList = null;
+        mDesktopViewUrlMatcher = null;
     }
     
     /**
@@ -181,7 +284,7 @@ public final class Controller {
      * @param context The current context.
      * @return A list of String url.
      */
-    public List<String> getDesktopViewUrlList(Context context) {
+    public synchronized List<String> getDesktopViewUrlList(Context context) {
         if (mDesktopViewUrlList == null) {
             DbAdapter db = new DbAdapter(context);
             db.open();
@@ -191,5 +294,17 @@ public final class Controller {
         return mDesktopViewUrlList;
     }
     
+    /**
+     * Get a matcher for the desktop view urls.
+     * @param context The current context.
+     * @return A matcher of the desktop view url list.
+     */
+    public synchronized UrlPatternMatcher getDesktopViewUrlMatcher(Context context) {
+        if (mDesktopViewUrlMatcher == null) {
+            mDesktopViewUrlMatcher = new UrlPatternMatcher(getDesktopViewUrlList(context));
+        }
+        return mDesktopViewUrlMatcher;
+    }
+    
 	
 }
@@ -32,6 +32,8 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.provider.Browser;
 import android.util.Log;
 
+import com.psiphon3.psiphonlibrary.BackgroundExecutors;
+
 /**
  * Implementation of the database adapter.
  */
@@ -42,9 +44,9 @@ public class DbAdapter {
 	private static final String DATABASE_NAME = "ZIRCO";
 	//private static final int DATABASE_VERSION = 6;
 	/* PSIPHON
-	 * bump the version to create DESKTOP_VIEW_URL table
+	 * bump the version to create DESKTOP_VIEW_URL table (7), then DOWNLOADS table (8)
 	 */
-	private static final int DATABASE_VERSION = 7;
+	private static final int DATABASE_VERSION = 8;
 	
 	/**
 	 * Adblock white list table.
@@ -82,6 +84,36 @@ public class DbAdapter {
         DESKTOP_VIEW_URL_ROWID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
         DESKTOP_VIEW_URL_URL + " TEXT NOT NULL);";
 
+    /**
+     * Downloads table.
+     */
+    public static final String DOWNLOADS_ROWID = "_id";
+    public static final String DOWNLOADS_URL = "url";
+    public static final String DOWNLOADS_FILE_NAME = "file_name";
+    public static final String DOWNLOADS_SIZE = "size";
+    public static final String DOWNLOADS_ETAG = "etag";
+    public static final String DOWNLOADS_LAST_MODIFIED = "last_modified";
+    public static final String DOWNLOADS_SEGMENTS = "segments";
+    public static final String DOWNLOADS_PROGRESS = "progress";
+    public static final String DOWNLOADS_FINISHED = "finished";
+    public static final String DOWNLOADS_ABORTED = "aborted";
+    public static final String DOWNLOADS_ERROR = "error";
+    
+    private static final String DOWNLOADS_DATABASE_TABLE = "DOWNLOADS";
+    
+    private static final String DOWNLOADS_DATABASE_CREATE = "CREATE TABLE " + DOWNLOADS_DATABASE_TABLE + " (" +
+        DOWNLOADS_ROWID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+        DOWNLOADS_URL + " TEXT NOT NULL, " +
+        DOWNLOADS_FILE_NAME + " TEXT NOT NULL, " +
+        DOWNLOADS_SIZE + " INTEGER NOT NULL DEFAULT -1, " +
+        DOWNLOADS_ETAG + " TEXT, " +
+        DOWNLOADS_LAST_MODIFIED + " TEXT, " +
+        DOWNLOADS_SEGMENTS + " TEXT, " +
+        DOWNLOADS_PROGRESS + " INTEGER NOT NULL DEFAULT 0, " +
+        DOWNLOADS_FINISHED + " INTEGER NOT NULL DEFAULT 0, " +
+        DOWNLOADS_ABORTED + " INTEGER NOT NULL DEFAULT 0, " +
+        DOWNLOADS_ERROR + " TEXT);";
+
     protected boolean mAdBlockListNeedPopulate = false;
     protected boolean mDesktopViewListNeedPopulate = false;
 	
@@ -376,6 +408,67 @@ public class DbAdapter {
         mDb.execSQL("DELETE FROM " + DESKTOP_VIEW_DATABASE_TABLE + ";");
     }
     
+    /*******************************************************************************************************************************************************    
+     * Downloads.
+     */
+    
+    /**
+     * Get a Cursor to the downloads, in the order they were started.
+     * @return A Cursor to the downloads.
+     */
+    public Cursor getDownloadsCursor() {
+        return mDb.query(DOWNLOADS_DATABASE_TABLE, null, null, null, null, null, DOWNLOADS_ROWID);
+    }
+    
+    /**
+     * Insert a new download.
+     * @param url The download url.
+     * @param fileName The file name on disk.
+     * @return The id of the download.
+     */
+    public long insertDownload(String url, String fileName) {
+        ContentValues initialValues = new ContentValues();
+        initialValues.put(DOWNLOADS_URL, url);
+        initialValues.put(DOWNLOADS_FILE_NAME, fileName);
+        
+        return mDb.insert(DOWNLOADS_DATABASE_TABLE, null, initialValues);
+    }
+    
+    /**
+     * Update the state of a download.
+     * @param id The id of the download.
+     * @param size The file size, or -1 if unknown.
+     * @param eTag The file ETag, or null.
+     * @param lastModified The file Last-Modified date, or null.
+     * @param segments The downloaded segments, or null if the download can't be resumed.
+     * @param progress The download progress.
+     * @param finished True if the download is finished.
+     * @param aborted True if the download is aborted.
+     * @param errorMessage The error message, or null.
+     */
+    public void updateDownload(long id, long size, String eTag, String lastModified, String segments,
+            int progress, boolean finished, boolean aborted, String errorMessage) {
+        ContentValues values = new ContentValues();
+        values.put(DOWNLOADS_SIZE, size);
+        values.put(DOWNLOADS_ETAG, eTag);
+        values.put(DOWNLOADS_LAST_MODIFIED, lastModified);
+        values.put(DOWNLOADS_SEGMENTS, segments);
+        values.put(DOWNLOADS_PROGRESS, progress);
+        values.put(DOWNLOADS_FINISHED, finished ? 1 : 0);
+        values.put(DOWNLOADS_ABORTED, aborted ? 1 : 0);
+        values.put(DOWNLOADS_ERROR, errorMessage);
+        
+        mDb.update(DOWNLOADS_DATABASE_TABLE, values, DOWNLOADS_ROWID + " = " + id, null);
+    }
+    
+    /**
+     * Delete a download.
+     * @param id The id of the download.
+     */
+    public void deleteDownload(long id) {
+        mDb.execSQL("DELETE FROM " + DOWNLOADS_DATABASE_TABLE + " WHERE " + DOWNLOADS_ROWID + " = " + id + ";");
+    }
+    
     private void populateDesktopViewDefault()
     {
         insertInDesktopViewUrlList("youtube.com");
@@ -415,6 +508,7 @@ public class DbAdapter {
 			mParent.mAdBlockListNeedPopulate = true;
             db.execSQL(DESKTOP_VIEW_DATABASE_CREATE);
 			mParent.mDesktopViewListNeedPopulate = true;
+			db.execSQL(DOWNLOADS_DATABASE_CREATE);
 		}		
 
 		@Override
@@ -437,6 +531,8 @@ public class DbAdapter {
 			case 6: 
 			    db.execSQL(DESKTOP_VIEW_DATABASE_CREATE);
 			    mParent.mDesktopViewListNeedPopulate = true;
+			case 7:
+			    db.execSQL(DOWNLOADS_DATABASE_CREATE);
 			default: break;
 			}
 		}
@@ -511,7 +607,7 @@ public class DbAdapter {
 
 					if (cursor != null) {
 						Log.i("DbAdapter", "Export of old bookmarks: Writing file.");
-						new Thread(new XmlHistoryBookmarksExporter(null, "auto-export.xml", cursor, null)).start();
+						BackgroundExecutors.io().execute(new XmlHistoryBookmarksExporter(null, "auto-export.xml", cursor, null));
 					}
 				}
 			} catch (Exception e) {
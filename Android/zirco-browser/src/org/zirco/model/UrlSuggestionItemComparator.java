@@ -28,7 +28,11 @@ public class UrlSuggestionItemComparator implements Comparator<UrlSuggestionItem
 	public int compare(UrlSuggestionItem object1, UrlSuggestionItem object2) {
 		Float value1 = new Float(object1.getNote());
 		Float value2 = new Float(object2.getNote());
-		return value2.compareTo(value1);
+		int result = value2.compareTo(value1);
+		if (result == 0) {
+			result = Float.compare(object2.getWeight(), object1.getWeight());
+		}
+		return result;
 	}
 
 }
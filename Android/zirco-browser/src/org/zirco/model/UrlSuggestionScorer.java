@@ -0,0 +1,207 @@
+/*
+ * Zirco Browser for Android
+ *
+ * Copyright (C) 2010 J. Devauchelle and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 3 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package org.zirco.model;
+
+/**
+ * Computes the note of url suggestions for a pattern.
+ *
+ * The note is the number of non-overlapping occurrences of the pattern in
+ * the title and in the url, weighted so that a match in title weight more
+ * than a match in url, and a match in bookmark weight more than a match in
+ * history. The pattern is lowercased once, and searched for as plain text
+ * with a precomputed Horspool shift table; titles and urls are expected to
+ * be lowercased already, e.g. cached by the caller.
+ */
+public final class UrlSuggestionScorer {
+
+	private static final float TITLE_COEFFICIENT = 2;
+	private static final float URL_COEFFICIENT = 1;
+
+	private static final float BOOKMARK_COEFFICIENT = 3;
+	private static final float WEAVE_COEFFICIENT = 1;
+	private static final float HISTORY_COEFFICIENT = 1;
+
+	private final String mLowerPattern;
+	private final int mLength;
+	private final char mLast;
+
+	/**
+	 * Shift after a mismatch, indexed by the low byte of the text character
+	 * aligned with the end of the pattern. Characters sharing a low byte
+	 * share the smallest shift, which is always safe.
+	 */
+	private final int[] mShifts = new int[256];
+
+	/**
+	 * Constructor.
+	 * @param pattern The pattern, in any case.
+	 */
+	public UrlSuggestionScorer(String pattern) {
+		mLowerPattern = pattern.toLowerCase();
+		mLength = mLowerPattern.length();
+		mLast = mLength > 0 ? mLowerPattern.charAt(mLength - 1) : 0;
+
+		for (int i = 0; i < mShifts.length; i++) {
+			mShifts[i] = Math.max(1, mLength);
+		}
+		for (int i = 0; i < mLength - 1; i++) {
+			mShifts[mLowerPattern.charAt(i) & 0xFF] = mLength - 1 - i;
+		}
+	}
+
+	/**
+	 * Get the lowercased pattern.
+	 * @return The lowercased pattern.
+	 */
+	public String getLowerPattern() {
+		return mLowerPattern;
+	}
+
+	/**
+	 * Count the non-overlapping occurrences of the pattern.
+	 * @param lowerText The lowercased text to search in.
+	 * @return The number of occurrences.
+	 */
+	public int countMatches(String lowerText) {
+		int textLength = lowerText.length();
+		if ((mLength == 0) ||
+				(textLength < mLength)) {
+			return 0;
+		}
+
+		int count = 0;
+		int i = 0;
+		int end = textLength - mLength;
+
+		while (i <= end) {
+			char c = lowerText.charAt(i + mLength - 1);
+			if ((c == mLast) &&
+					(lowerText.regionMatches(i, mLowerPattern, 0, mLength - 1))) {
+				count++;
+				i += mLength;
+			} else {
+				i += mShifts[c & 0xFF];
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Compute the note of an item.
+	 * @param lowerTitle The item's lowercased title.
+	 * @param lowerUrl The item's lowercased url.
+	 * @param type The item's type (1 -> history, 2 -> bookmark, 3 -> weave bookmark).
+	 * @return The note.
+	 */
+	public float computeNote(String lowerTitle, String lowerUrl, int type) {
+		float note = (countMatches(lowerTitle) * TITLE_COEFFICIENT) + (countMatches(lowerUrl) * URL_COEFFICIENT);
+
+		switch(type) {
+		case 1: note = note * HISTORY_COEFFICIENT; break;
+		case 2: note = note * BOOKMARK_COEFFICIENT; break;
+		case 3: note = note * WEAVE_COEFFICIENT; break;
+		default: break;
+		}
+
+		return note;
+	}
+
+	/**
+	 * Reorder scored candidates so that the best n come first, sorted by note then weight,
+	 * both descending, as UrlSuggestionItemComparator does. The order of the other candidates
+	 * is unspecified, and they are not sorted.
+	 * @param candidates The candidates, e.g. indexes in a list of items.
+	 * @param notes The candidates' notes, in the same order.
+	 * @param weights The candidates' weights, in the same order.
+	 * @param count The number of candidates in the arrays.
+	 * @param n The number of best candidates wanted.
+	 * @return The number of best candidates now at the start of the arrays, at most n.
+	 */
+	public static int selectBest(int[] candidates, float[] notes, float[] weights, int count, int n) {
+		int selected = Math.min(n, count);
+		if (selected <= 0) {
+			return 0;
+		}
+
+		// Three way quickselect, which copes with the many equal notes.
+		int k = selected - 1;
+		int left = 0;
+		int right = count - 1;
+		while (left < right) {
+			int middle = (left + right) >>> 1;
+			float pivotNote = notes[middle];
+			float pivotWeight = weights[middle];
+
+			int lower = left;
+			int upper = right;
+			int i = left;
+			while (i <= upper) {
+				int c = compare(notes[i], weights[i], pivotNote, pivotWeight);
+				if (c < 0) {
+					swap(candidates, notes, weights, lower++, i++);
+				} else if (c > 0) {
+					swap(candidates, notes, weights, i, upper--);
+				} else {
+					i++;
+				}
+			}
+
+			if (k < lower) {
+				right = lower - 1;
+			} else if (k > upper) {
+				left = upper + 1;
+			} else {
+				break;
+			}
+		}
+
+		// Insertion sort of the few selected candidates.
+		for (int i = 1; i < selected; i++) {
+			for (int j = i; (j > 0) && (compare(notes[j], weights[j], notes[j - 1], weights[j - 1]) < 0); j--) {
+				swap(candidates, notes, weights, j, j - 1);
+			}
+		}
+
+		return selected;
+	}
+
+	/**
+	 * Negative when the first candidate is better.
+	 */
+	private static int compare(float note1, float weight1, float note2, float weight2) {
+		int result = Float.compare(note2, note1);
+		if (result == 0) {
+			result = Float.compare(weight2, weight1);
+		}
+		return result;
+	}
+
+	private static void swap(int[] candidates, float[] notes, float[] weights, int i, int j) {
+		int candidate = candidates[i];
+		candidates[i] = candidates[j];
+		candidates[j] = candidate;
+
+		float note = notes[i];
+		notes[i] = notes[j];
+		notes[j] = note;
+
+		float weight = weights[i];
+		weights[i] = weights[j];
+		weights[j] = weight;
+	}
+
+}
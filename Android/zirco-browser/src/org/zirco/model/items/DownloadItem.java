@@ -21,6 +21,7 @@ import java.util.Random;
 import org.zirco.R;
 import org.zirco.events.EventConstants;
 import org.zirco.events.EventController;
+import org.zirco.model.DbAdapter;
 import org.zirco.ui.activities.DownloadsListActivity;
 import org.zirco.ui.runnables.DownloadRunnable;
 import org.zirco.utils.IOUtils;
@@ -30,6 +31,10 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.database.Cursor;
+import android.util.Log;
+
+import com.psiphon3.psiphonlibrary.BackgroundExecutors;
 
 /**
  * Represent a download item.
@@ -38,6 +43,11 @@ public class DownloadItem {
 	
 	private Context mContext;
 	
+	/**
+	 * Id in the database, or -1 until inserted. Only used on the serial database executor.
+	 */
+	private long mId = -1;
+	
 	private String mUrl;
 	private String mFileName;
 	
@@ -50,6 +60,14 @@ public class DownloadItem {
 	private boolean mIsFinished;
 	private boolean mIsAborted;
 	
+	/**
+	 * State needed to resume the download, see DownloadRunnable.
+	 */
+	private long mSize = -1;
+	private String mETag = null;
+	private String mLastModified = null;
+	private String mSegments = null;
+	
 	private NotificationManager mNotificationManager;
 	private Notification mNotification;
 	private int mNotificationId;
@@ -85,6 +103,27 @@ public class DownloadItem {
 		mNotificationManager = (NotificationManager) mContext.getSystemService(Context.NOTIFICATION_SERVICE);
 	}
 	
+	/**
+	 * Constructor for a download saved in database, e.g. before the application was restarted.
+	 * @param context The current context.
+	 * @param cursor A cursor to the download in the downloads table.
+	 */
+	public DownloadItem(Context context, Cursor cursor) {
+		this(context, cursor.getString(cursor.getColumnIndex(DbAdapter.DOWNLOADS_URL)));
+		
+		mId = cursor.getLong(cursor.getColumnIndex(DbAdapter.DOWNLOADS_ROWID));
+		mFileName = cursor.getString(cursor.getColumnIndex(DbAdapter.DOWNLOADS_FILE_NAME));
+		mProgress = cursor.getInt(cursor.getColumnIndex(DbAdapter.DOWNLOADS_PROGRESS));
+		mIsFinished = cursor.getInt(cursor.getColumnIndex(DbAdapter.DOWNLOADS_FINISHED)) != 0;
+		mIsAborted = cursor.getInt(cursor.getColumnIndex(DbAdapter.DOWNLOADS_ABORTED)) != 0;
+		mErrorMessage = cursor.getString(cursor.getColumnIndex(DbAdapter.DOWNLOADS_ERROR));
+		
+		mSize = cursor.getLong(cursor.getColumnIndex(DbAdapter.DOWNLOADS_SIZE));
+		mETag = cursor.getString(cursor.getColumnIndex(DbAdapter.DOWNLOADS_ETAG));
+		mLastModified = cursor.getString(cursor.getColumnIndex(DbAdapter.DOWNLOADS_LAST_MODIFIED));
+		mSegments = cursor.getString(cursor.getColumnIndex(DbAdapter.DOWNLOADS_SEGMENTS));
+	}
+	
 	/**
 	 * Gets the download url.
 	 * @return The download url.
@@ -129,12 +168,63 @@ public class DownloadItem {
 		return mErrorMessage;
 	}
 	
+	/**
+	 * Get the file size, as known when the resume state was last set.
+	 * @return The file size, or -1 if unknown.
+	 */
+	public synchronized long getSize() {
+		return mSize;
+	}
+	
+	/**
+	 * Get the file ETag, as known when the resume state was last set.
+	 * @return The ETag, or null.
+	 */
+	public synchronized String getETag() {
+		return mETag;
+	}
+	
+	/**
+	 * Get the file Last-Modified date, as known when the resume state was last set.
+	 * @return The Last-Modified date, or null.
+	 */
+	public synchronized String getLastModified() {
+		return mLastModified;
+	}
+	
+	/**
+	 * Get the downloaded segments, as known when the resume state was last set.
+	 * @return The segments, or null if the download can't be resumed.
+	 */
+	public synchronized String getSegments() {
+		return mSegments;
+	}
+	
+	/**
+	 * Set the state needed to resume the download, and save it.
+	 * @param size The file size, or -1 if unknown.
+	 * @param eTag The file ETag, or null.
+	 * @param lastModified The file Last-Modified date, or null.
+	 * @param segments The downloaded segments, or null if the download can't be resumed.
+	 */
+	public void setResumeState(long size, String eTag, String lastModified, String segments) {
+		synchronized (this) {
+			mSize = size;
+			mETag = eTag;
+			mLastModified = lastModified;
+			mSegments = segments;
+		}
+		save();
+	}
+	
 	/**
 	 * Trigger a start download event.
 	 */
 	public void onStart() {
 		createNotification();
 		
+		save();
+		
 		EventController.getInstance().fireDownloadEvent(EventConstants.EVT_DOWNLOAD_ON_START, this);
 	}
 	
@@ -147,6 +237,8 @@ public class DownloadItem {
 		
 		mIsFinished = true;
 		
+		save();
+		
 		updateNotificationOnEnd();
 		
 		EventController.getInstance().fireDownloadEvent(EventConstants.EVT_DOWNLOAD_ON_FINISHED, this);
@@ -170,7 +262,7 @@ public class DownloadItem {
 			mRunnable.abort();
 		}
 		mRunnable = new DownloadRunnable(this);
-		new Thread(mRunnable).start();
+		mRunnable.start();
 	}
 	
 	/**
@@ -199,6 +291,67 @@ public class DownloadItem {
 		return mIsAborted;
 	}
 	
+	/**
+	 * Save the state of this download in database, so that it can be resumed
+	 * after an application restart.
+	 */
+	private void save() {
+		final long size;
+		final String eTag;
+		final String lastModified;
+		final String segments;
+		synchronized (this) {
+			size = mSize;
+			eTag = mETag;
+			lastModified = mLastModified;
+			segments = mSegments;
+		}
+		final int progress = mProgress;
+		final boolean finished = mIsFinished;
+		final boolean aborted = mIsAborted;
+		final String errorMessage = mErrorMessage;
+		
+		BackgroundExecutors.serialDb().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					DbAdapter db = new DbAdapter(mContext);
+					db.open();
+					if (mId == -1) {
+						mId = db.insertDownload(mUrl, mFileName);
+					}
+					db.updateDownload(mId, size, eTag, lastModified, segments, progress, finished, aborted, errorMessage);
+					db.close();
+				} catch (Exception e) {
+					e.printStackTrace();
+					Log.w("DownloadItem", "Unable to save download: " + e.getMessage());
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Delete this download from database, e.g. when removed from the download list.
+	 */
+	public void delete() {
+		BackgroundExecutors.serialDb().execute(new Runnable() {
+			@Override
+			public void run() {
+				if (mId != -1) {
+					try {
+						DbAdapter db = new DbAdapter(mContext);
+						db.open();
+						db.deleteDownload(mId);
+						db.close();
+					} catch (Exception e) {
+						e.printStackTrace();
+						Log.w("DownloadItem", "Unable to delete download: " + e.getMessage());
+					}
+				}
+			}
+		});
+	}
+	
 	/**
 	 * Create the download notification.
 	 */
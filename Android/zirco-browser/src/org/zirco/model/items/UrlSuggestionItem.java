@@ -15,22 +15,18 @@
 
 package org.zirco.model.items;
 
+import org.zirco.model.UrlSuggestionScorer;
+
 /**
  * Store a suggestion item.
  */
 public class UrlSuggestionItem {
 
-	private static final float TITLE_COEFFICIENT = 2;
-	private static final float URL_COEFFICIENT = 1;
-	
-	private static final float BOOKMARK_COEFFICIENT = 3;
-	private static final float WEAVE_COEFFICIENT = 1;
-	private static final float HISTORY_COEFFICIENT = 1;
-	
 	private String mPattern;
 	private String mTitle;
 	private String mUrl;
 	private int mType;
+	private float mWeight;
 	
 	private float mNote;
 	private boolean mNoteComputed = false;
@@ -43,10 +39,37 @@ public class UrlSuggestionItem {
 	 * @param type The item's type (1 -> history, 2 -> bookmark).
 	 */
 	public UrlSuggestionItem(String pattern, String title, String url, int type) {
+		this(pattern, title, url, type, 0);
+	}
+	
+	/**
+	 * Constructor.
+	 * @param pattern The parent pattern.
+	 * @param title The item's title.
+	 * @param url The item's url.
+	 * @param type The item's type (1 -> history, 2 -> bookmark).
+	 * @param weight The item's weight, used to order items of equal note.
+	 */
+	public UrlSuggestionItem(String pattern, String title, String url, int type, float weight) {
 		mPattern = pattern;
 		mTitle = title;
 		mUrl = url;
 		mType = type;
+		mWeight = weight;
+	}
+	
+	/**
+	 * Constructor, for an item already scored.
+	 * @param title The item's title.
+	 * @param url The item's url.
+	 * @param type The item's type (1 -> history, 2 -> bookmark).
+	 * @param note The item's note.
+	 * @param weight The item's weight, used to order items of equal note.
+	 */
+	public UrlSuggestionItem(String title, String url, int type, float note, float weight) {
+		this(null, title, url, type, weight);
+		mNote = note;
+		mNoteComputed = true;
 	}
 	
 	/**
@@ -73,6 +96,14 @@ public class UrlSuggestionItem {
 		return mType;
 	}
 	
+	/**
+	 * Get the item's weight, e.g. how often and how recently it was visited.
+	 * @return The weight.
+	 */
+	public float getWeight() {
+		return mWeight;
+	}
+	
 	/**
 	 * Get the note of this item. Compute it if not already done.
 	 * @return The note.
@@ -87,33 +118,10 @@ public class UrlSuggestionItem {
 	
 	/**
 	 * Compute the note of the current item.
-	 * The principle is to count the number of occurence of the pattern in the title and in the url, and to do a weighted sum.
-	 * A match in title weight more than a match in url, and a match in bookmark weight more than a match in history.
+	 * @see UrlSuggestionScorer
 	 */
 	private void computeNote() {
-		String pattern = mPattern.toLowerCase();
-		
-		// Count the number of match in a string, did not find a cleaner way.
-		int titleMatchCount;
-		String title = mTitle.toLowerCase();
-		if (title.equals(pattern)) {
-			titleMatchCount = 1;
-		} else {
-			titleMatchCount = title.split(pattern).length - 1;
-		}
-		
-		String url = mUrl.toLowerCase();
-		int urlMatchCount = url.split("\\Q" + pattern + "\\E").length - 1;
-		
-		mNote = (titleMatchCount * TITLE_COEFFICIENT) + (urlMatchCount * URL_COEFFICIENT);
-		
-		switch(mType) {
-		case 1: mNote = mNote * HISTORY_COEFFICIENT; break;
-		case 2: mNote = mNote * BOOKMARK_COEFFICIENT; break;
-		case 3: mNote = mNote * WEAVE_COEFFICIENT; break;
-		default: break;
-		}
-		
+		mNote = new UrlSuggestionScorer(mPattern).computeNote(mTitle.toLowerCase(), mUrl.toLowerCase(), mType);
 	}
 	
 }
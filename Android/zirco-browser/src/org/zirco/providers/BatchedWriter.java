@@ -0,0 +1,149 @@
+/*
+ * Zirco Browser for Android
+ *
+ * Copyright (C) 2010 - 2011 J. Devauchelle and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 3 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package org.zirco.providers;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.psiphon3.psiphonlibrary.BackgroundExecutors;
+
+import android.content.Context;
+
+/**
+ * Write-behind buffer for the browser's database writes.
+ *
+ * Items are kept in memory, keyed so that a later item for the same key
+ * is merged into the pending one, and handed to write() in one batch a
+ * short while after the first one arrives, once MAX_PENDING keys are
+ * pending, or when flush() is called. Batches are written on the serial
+ * database executor.
+ *
+ * @param <K> The key type.
+ * @param <V> The pending item type.
+ */
+abstract class BatchedWriter<K, V> {
+
+	/**
+	 * Flush immediately once this many keys are pending.
+	 */
+	private static final int MAX_PENDING = 32;
+
+	private final long mFlushDelayMs;
+
+	private final Object mLock = new Object();
+	private Context mContext = null;
+	private Map<K, V> mPending = new LinkedHashMap<K, V>();
+	private boolean mFlushScheduled = false;
+
+	private final Runnable mFlushRunnable = new Runnable() {
+		@Override
+		public void run() {
+			if (!BackgroundExecutors.serialDb().tryExecute(mWriteRunnable)) {
+				// Let the next item schedule another flush.
+				synchronized (mLock) {
+					mFlushScheduled = false;
+				}
+			}
+		}
+	};
+
+	private final Runnable mWriteRunnable = new Runnable() {
+		@Override
+		public void run() {
+			writePending();
+		}
+	};
+
+	/**
+	 * Constructor.
+	 * @param flushDelayMs The delay from the first pending item to the flush.
+	 */
+	protected BatchedWriter(long flushDelayMs) {
+		mFlushDelayMs = flushDelayMs;
+	}
+
+	/**
+	 * Add an item to the pending batch. The key moves to the end of the
+	 * write order.
+	 * @param context The current context.
+	 * @param key The item key.
+	 * @param item The item.
+	 */
+	protected final void enqueue(Context context, K key, V item) {
+		synchronized (mLock) {
+			if (mContext == null) {
+				mContext = context.getApplicationContext();
+			}
+
+			V pending = mPending.remove(key);
+			mPending.put(key, pending == null ? item : merge(pending, item));
+
+			if (mPending.size() >= MAX_PENDING) {
+				flush();
+			} else if (!mFlushScheduled) {
+				mFlushScheduled = true;
+				BackgroundExecutors.scheduled().schedule(mFlushRunnable, mFlushDelayMs, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	/**
+	 * Merge a new item into the pending item for the same key. Called with
+	 * the queue locked. By default the new item replaces the pending one.
+	 * @param pending The pending item.
+	 * @param item The new item.
+	 * @return The item to write.
+	 */
+	protected V merge(V pending, V item) {
+		return item;
+	}
+
+	/**
+	 * Write the pending items now, e.g. when the browser is paused.
+	 */
+	public void flush() {
+		BackgroundExecutors.serialDb().execute(mWriteRunnable);
+	}
+
+	/**
+	 * Write the pending items. Must be called on the serial database executor.
+	 */
+	final void writePending() {
+		Map<K, V> pending;
+		Context context;
+
+		synchronized (mLock) {
+			if (mPending.isEmpty()) {
+				return;
+			}
+			pending = mPending;
+			mPending = new LinkedHashMap<K, V>();
+			mFlushScheduled = false;
+			context = mContext;
+		}
+
+		write(context, pending);
+	}
+
+	/**
+	 * Write a batch of items, on the serial database executor.
+	 * @param context The application context.
+	 * @param pending The items, in write order.
+	 */
+	protected abstract void write(Context context, Map<K, V> pending);
+
+}
@@ -15,30 +15,34 @@
 
 package org.zirco.providers;
 
-import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Collections;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
-import org.zirco.model.UrlSuggestionItemComparator;
 import org.zirco.model.adapters.UrlSuggestionCursorAdapter;
 import org.zirco.model.items.BookmarkItem;
 import org.zirco.model.items.HistoryItem;
 import org.zirco.model.items.UrlSuggestionItem;
 import org.zirco.model.items.WeaveBookmarkItem;
 import org.zirco.providers.WeaveColumns;
-import android.app.Activity;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.MatrixCursor;
-import android.graphics.Bitmap;
-import android.graphics.drawable.BitmapDrawable;
 import android.net.Uri;
 import android.os.Build;
+import android.os.RemoteException;
 import android.provider.Browser;
 import android.util.Log;
 
@@ -242,6 +246,8 @@ public class BookmarksProviderWrapper {
 						// never visited, it can be deleted.
 						contentResolver.delete(BOOKMARKS_URI, whereClause, null);
 					}
+					
+					UrlSuggestionIndex.getInstance().invalidate();
 				}
 			}
 			
@@ -300,6 +306,8 @@ public class BookmarksProviderWrapper {
 		} else {                        
 			contentResolver.insert(BOOKMARKS_URI, values);
 		}
+		
+		UrlSuggestionIndex.getInstance().invalidate();
 	}
 	
 	public static void toggleBookmark(ContentResolver contentResolver, long id, boolean bookmark) {
@@ -320,6 +328,8 @@ public class BookmarksProviderWrapper {
 			}
 			
 			contentResolver.update(BOOKMARKS_URI, values, whereClause, null);
+			
+			UrlSuggestionIndex.getInstance().invalidate();
 		}
 	}
 	
@@ -352,6 +362,8 @@ public class BookmarksProviderWrapper {
 					// The record is not a bookmark, we can delete it.
 					contentResolver.delete(BOOKMARKS_URI, whereClause, null);
 				}
+				
+				UrlSuggestionIndex.getInstance().invalidate();
 			}
 
 			cursor.close();
@@ -360,49 +372,117 @@ public class BookmarksProviderWrapper {
 
 	
 	/**
-	 * Update the history: visit count and last visited date.
+	 * A history/bookmarks row being updated by updateHistory().
+	 */
+	private static final class HistoryRow {
+		private final long mId;
+		private final boolean mBookmark;
+		private int mVisits;
+		private final ContentValues mValues = new ContentValues();
+		private boolean mChanged = false;
+
+		private HistoryRow(long id, boolean bookmark, int visits) {
+			mId = id;
+			mBookmark = bookmark;
+			mVisits = visits;
+		}
+	}
+	
+	/**
+	 * Update the history for a batch of visits, in a single transaction: visit count, last visited date and title.
 	 * @param contentResolver The content resolver.
-	 * @param title The title.
-	 * @param url The url.
-	 * @param originalUrl The original url 
+	 * @param visits The visits, at most one per url.
+	 * @throws RemoteException
+	 * @throws OperationApplicationException If the history cannot be updated; none of the visits are recorded.
 	 */
-	public static void updateHistory(ContentResolver contentResolver, String title, String url, String originalUrl) {
+	static void updateHistory(ContentResolver contentResolver, Collection<HistoryRecorder.Visit> visits) throws RemoteException, OperationApplicationException {
+		Set<String> urls = new LinkedHashSet<String>();
+		for (HistoryRecorder.Visit visit : visits) {
+			urls.add(visit.mUrl);
+			if (visit.mOriginalUrl != null) {
+				urls.add(visit.mOriginalUrl);
+			}
+		}
+		
+		if (urls.isEmpty()) {
+			return;
+		}
+		
+		StringBuilder whereClause = new StringBuilder(Browser.BookmarkColumns.URL + " IN (?");
+		for (int i = 1; i < urls.size(); i++) {
+			whereClause.append(", ?");
+		}
+		whereClause.append(")");
+		
 		String[] colums = new String[] { Browser.BookmarkColumns._ID, Browser.BookmarkColumns.URL, Browser.BookmarkColumns.BOOKMARK, Browser.BookmarkColumns.VISITS };
-		String whereClause = Browser.BookmarkColumns.URL + " = \"" + url + "\" OR " + Browser.BookmarkColumns.URL + " = \"" + originalUrl + "\"";
-
-		Cursor cursor = contentResolver.query(BOOKMARKS_URI, colums, whereClause, null, null);
-
+		
+		Map<String, HistoryRow> rows = new HashMap<String, HistoryRow>();
+		
+		Cursor cursor = contentResolver.query(BOOKMARKS_URI, colums, whereClause.toString(), urls.toArray(new String[urls.size()]), null);
 		if (cursor != null) {
-			if (cursor.moveToFirst()) {
-
-				long id = cursor.getLong(cursor.getColumnIndex(Browser.BookmarkColumns._ID));
-				int visits = cursor.getInt(cursor.getColumnIndex(Browser.BookmarkColumns.VISITS)) + 1;
-
-				ContentValues values = new ContentValues();
-
-				// If its not a bookmark, we can update the title. If we were doing it on bookmarks, we would override the title choosen by the user.
-				if (cursor.getInt(cursor.getColumnIndex(Browser.BookmarkColumns.BOOKMARK)) != 1) {
-					values.put(Browser.BookmarkColumns.TITLE, title);
+			int idIndex = cursor.getColumnIndex(Browser.BookmarkColumns._ID);
+			int urlIndex = cursor.getColumnIndex(Browser.BookmarkColumns.URL);
+			int bookmarkIndex = cursor.getColumnIndex(Browser.BookmarkColumns.BOOKMARK);
+			int visitsIndex = cursor.getColumnIndex(Browser.BookmarkColumns.VISITS);
+			
+			while (cursor.moveToNext()) {
+				String url = cursor.getString(urlIndex);
+				if (!rows.containsKey(url)) {
+					rows.put(url, new HistoryRow(cursor.getLong(idIndex), cursor.getInt(bookmarkIndex) == 1, cursor.getInt(visitsIndex)));
 				}
-
-				values.put(Browser.BookmarkColumns.DATE, new Date().getTime());
-				values.put(Browser.BookmarkColumns.VISITS, visits);
-
-				contentResolver.update(BOOKMARKS_URI, values, Browser.BookmarkColumns._ID + " = " + id, null);
-
-			} else {
-				ContentValues values = new ContentValues();
-				values.put(Browser.BookmarkColumns.TITLE, title);
-				values.put(Browser.BookmarkColumns.URL, url);
-				values.put(Browser.BookmarkColumns.DATE, new Date().getTime());
-				values.put(Browser.BookmarkColumns.VISITS, 1);
-				values.put(Browser.BookmarkColumns.BOOKMARK, 0);
-
-				contentResolver.insert(BOOKMARKS_URI, values);
-			}               
-
+			}
+			
 			cursor.close();
 		}
+		
+		List<HistoryRow> changedRows = new ArrayList<HistoryRow>();
+		
+		for (HistoryRecorder.Visit visit : visits) {
+			HistoryRow row = rows.get(visit.mUrl);
+			if ((row == null) &&
+					(visit.mOriginalUrl != null)) {
+				row = rows.get(visit.mOriginalUrl);
+			}
+			
+			if (row == null) {
+				// Later visits in the batch may be to the same page, by its original url.
+				row = new HistoryRow(-1, false, 0);
+				row.mValues.put(Browser.BookmarkColumns.URL, visit.mUrl);
+				row.mValues.put(Browser.BookmarkColumns.BOOKMARK, 0);
+				rows.put(visit.mUrl, row);
+			}
+			
+			row.mVisits += visit.mVisits;
+			
+			// If its not a bookmark, we can update the title. If we were doing it on bookmarks, we would override the title choosen by the user.
+			if (!row.mBookmark) {
+				row.mValues.put(Browser.BookmarkColumns.TITLE, visit.mTitle);
+			}
+			
+			row.mValues.put(Browser.BookmarkColumns.DATE, visit.mDate);
+			row.mValues.put(Browser.BookmarkColumns.VISITS, row.mVisits);
+			
+			if (!row.mChanged) {
+				row.mChanged = true;
+				changedRows.add(row);
+			}
+		}
+		
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+		for (HistoryRow row : changedRows) {
+			if (row.mId >= 0) {
+				operations.add(ContentProviderOperation.newUpdate(BOOKMARKS_URI)
+						.withValues(row.mValues)
+						.withSelection(Browser.BookmarkColumns._ID + " = " + row.mId, null)
+						.build());
+			} else {
+				operations.add(ContentProviderOperation.newInsert(BOOKMARKS_URI)
+						.withValues(row.mValues)
+						.build());
+			}
+		}
+		
+		applyBatch(contentResolver, operations);
 	}
 	
 	/**
@@ -429,7 +509,9 @@ public class BookmarksProviderWrapper {
 		String whereClause = "(" + Browser.BookmarkColumns.BOOKMARK + " = 0 OR " + Browser.BookmarkColumns.BOOKMARK + " IS NULL) AND " + Browser.BookmarkColumns.DATE + " < " + c.getTimeInMillis();
 		
 		try {
-			contentResolver.delete(BOOKMARKS_URI, whereClause, null);
+			if (contentResolver.delete(BOOKMARKS_URI, whereClause, null) > 0) {
+				UrlSuggestionIndex.getInstance().invalidate();
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 			Log.w("BookmarksProviderWrapper", "Unable to truncate history: " + e.getMessage());
@@ -437,41 +519,50 @@ public class BookmarksProviderWrapper {
 	}
     
 	/**
-	 * Update the favicon in history/bookmarks database.
-	 * @param currentActivity The current acitivity.
-	 * @param url The url.
-	 * @param originalUrl The original url.
-	 * @param favicon The favicon.
+	 * Build an operation updating the favicon of the history/bookmarks items
+	 * matching the page url or its original url.
+	 * @param url The page url.
+	 * @param originalUrl The page original url.
+	 * @param favicon The PNG encoded favicon.
+	 * @return The update operation.
 	 */
-	public static void updateFavicon(Activity currentActivity, String url, String originalUrl, Bitmap favicon) {
+	public static ContentProviderOperation newFaviconUpdateOperation(String url, String originalUrl, byte[] favicon) {
 		String whereClause;
+		String[] whereArgs;
 		
-		if (!url.equals(originalUrl)) {
-			whereClause = Browser.BookmarkColumns.URL + " = \"" + url + "\" OR " + Browser.BookmarkColumns.URL + " = \"" + originalUrl + "\"";
+		if ((originalUrl != null) &&
+				(!url.equals(originalUrl))) {
+			whereClause = Browser.BookmarkColumns.URL + " = ? OR " + Browser.BookmarkColumns.URL + " = ?";
+			whereArgs = new String[] { url, originalUrl };
 		} else {
-			whereClause = Browser.BookmarkColumns.URL + " = \"" + url + "\"";
+			whereClause = Browser.BookmarkColumns.URL + " = ?";
+			whereArgs = new String[] { url };
 		}
 
-		//BitmapDrawable icon = ApplicationUtils.getNormalizedFaviconForBookmarks(currentActivity, favicon);
-		BitmapDrawable icon = new BitmapDrawable(favicon);
-
-		ByteArrayOutputStream os = new ByteArrayOutputStream();         
-		icon.getBitmap().compress(Bitmap.CompressFormat.PNG, 100, os);
-
 		ContentValues values = new ContentValues();
-		values.put(Browser.BookmarkColumns.FAVICON, os.toByteArray());
+		values.put(Browser.BookmarkColumns.FAVICON, favicon);
 		
 		// Hack: Starting from Honeycomb, simple update of the favicon through an error, it need another field to update correctly...
 		if (Build.VERSION.SDK_INT >= 11) {
 			values.put(Browser.BookmarkColumns.URL, url);
 		}
 
-		try {
-			currentActivity.getContentResolver().update(BOOKMARKS_URI, values, whereClause, null);
-		} catch (Exception e) {
-			e.printStackTrace();
-			Log.w("BookmarksProviderWrapper", "Unable to update favicon: " + e.getMessage());
-		}
+		return ContentProviderOperation.newUpdate(BOOKMARKS_URI)
+				.withValues(values)
+				.withSelection(whereClause, whereArgs)
+				.build();
+	}
+	
+	/**
+	 * Apply a batch of operations on the history/bookmarks table, in a single transaction.
+	 * @param contentResolver The content resolver.
+	 * @param operations The operations.
+	 * @return The results of the operations.
+	 * @throws RemoteException
+	 * @throws OperationApplicationException If an operation fails; none are applied.
+	 */
+	public static ContentProviderResult[] applyBatch(ContentResolver contentResolver, ArrayList<ContentProviderOperation> operations) throws RemoteException, OperationApplicationException {
+		return contentResolver.applyBatch(BOOKMARKS_URI.getAuthority(), operations);
 	}
 	
 	/**
@@ -495,7 +586,9 @@ public class BookmarksProviderWrapper {
 			whereClause = Browser.BookmarkColumns.BOOKMARK + " = 1";
 		}
 		
-		contentResolver.delete(BOOKMARKS_URI, whereClause, null);		
+		contentResolver.delete(BOOKMARKS_URI, whereClause, null);
+		
+		UrlSuggestionIndex.getInstance().invalidate();
 	}
 	
 	/**
@@ -533,6 +626,8 @@ public class BookmarksProviderWrapper {
 		}
 		
 		contentResolver.insert(BOOKMARKS_URI, values);
+		
+		UrlSuggestionIndex.getInstance().invalidate();
 	}
 
 	
@@ -540,6 +635,15 @@ public class BookmarksProviderWrapper {
 	 * Weave bookmarks management.
 	 */
 	
+	/**
+	 * Get a Cursor on the weave bookmarks, without folders.
+	 * @param contentResolver The content resolver.
+	 * @return A Cursor.
+	 */
+	public static Cursor getAllWeaveBookmarks(ContentResolver contentResolver) {
+		return contentResolver.query(WeaveColumns.CONTENT_URI, null, WeaveColumns.WEAVE_BOOKMARKS_FOLDER + " = 0", null, null);
+	}
+	
 	public static Cursor getWeaveBookmarksByParentId(ContentResolver contentResolver, String parentId) {
 		String whereClause = WeaveColumns.WEAVE_BOOKMARKS_WEAVE_PARENT_ID + " = \"" + parentId + "\"";
 		String orderClause = WeaveColumns.WEAVE_BOOKMARKS_FOLDER + " DESC, " + WeaveColumns.WEAVE_BOOKMARKS_TITLE + " COLLATE NOCASE";
@@ -587,21 +691,24 @@ public class BookmarksProviderWrapper {
 	
 	public static void insertWeaveBookmark(ContentResolver contentResolver, ContentValues values) {
 		contentResolver.insert(WeaveColumns.CONTENT_URI, values);
+		UrlSuggestionIndex.getInstance().invalidate();
 	}
 	
 	public static void updateWeaveBookmark(ContentResolver contentResolver, long id, ContentValues values) {
 		String whereClause = WeaveColumns.WEAVE_BOOKMARKS_ID + " = " + id;
 		contentResolver.update(WeaveColumns.CONTENT_URI, values, whereClause, null);
-		
+		UrlSuggestionIndex.getInstance().invalidate();
 	}
 	
 	public static void deleteWeaveBookmarkByWeaveId(ContentResolver contentResolver, String weaveId) {
 		String whereClause = WeaveColumns.WEAVE_BOOKMARKS_WEAVE_ID + " = \"" + weaveId + "\"";
 		contentResolver.delete(WeaveColumns.CONTENT_URI, whereClause, null);
+		UrlSuggestionIndex.getInstance().invalidate();
 	}
 	
 	public static void clearWeaveBookmarks(ContentResolver contentResolver) {
 		contentResolver.delete(WeaveColumns.CONTENT_URI, null, null);
+		UrlSuggestionIndex.getInstance().invalidate();
 	}
 	
 	/**
@@ -612,12 +719,13 @@ public class BookmarksProviderWrapper {
      * Search on history and bookmarks, on title and url.
      * The result list is sorted based on each result note.
      * @see UrlSuggestionItem for how a note is computed.
-     * @param contentResolver The content resolver.
+     * @see UrlSuggestionIndex for how results are found.
+     * @param context The current context.
      * @param pattern The pattern to search for.
      * @param lookInWeaveBookmarks If true, suggestions will include bookmarks from weave.
-     * @return A cursor of suggections.
+     * @return A cursor of suggections, or null if the query was cancelled.
      */
-    public static Cursor getUrlSuggestions(ContentResolver contentResolver, String pattern, boolean lookInWeaveBookmarks) {
+    public static Cursor getUrlSuggestions(Context context, String pattern, boolean lookInWeaveBookmarks) {
     	MatrixCursor cursor = new MatrixCursor(new String[] {UrlSuggestionCursorAdapter.URL_SUGGESTION_ID,
     			UrlSuggestionCursorAdapter.URL_SUGGESTION_TITLE,
     			UrlSuggestionCursorAdapter.URL_SUGGESTION_URL,
@@ -626,63 +734,9 @@ public class BookmarksProviderWrapper {
     	if ((pattern != null) &&
     			(pattern.length() > 0)) {
     		
-    		String sqlPattern = "%" + pattern + "%";
-    		
-    		List<UrlSuggestionItem> results = new ArrayList<UrlSuggestionItem>();
-    		
-    		Cursor stockCursor = contentResolver.query(BOOKMARKS_URI,
-    				sHistoryBookmarksProjection,
-    				Browser.BookmarkColumns.TITLE + " LIKE '" + sqlPattern + "' OR " + Browser.BookmarkColumns.URL  + " LIKE '" + sqlPattern + "'",
-    				null,
-    				null);
-    		
-    		if (stockCursor != null) {
-    			if (stockCursor.moveToFirst()) {
-    				int titleId = stockCursor.getColumnIndex(Browser.BookmarkColumns.TITLE);
-    				int urlId = stockCursor.getColumnIndex(Browser.BookmarkColumns.URL);
-    				int bookmarkId = stockCursor.getColumnIndex(Browser.BookmarkColumns.BOOKMARK);
-    				
-    				do {
-    					boolean isFolder = stockCursor.getInt(bookmarkId) > 0 ? true : false;
-    					results.add(new UrlSuggestionItem(pattern,
-    							stockCursor.getString(titleId),
-    							stockCursor.getString(urlId),
-    							isFolder ? 2 : 1));
-    					
-    				} while (stockCursor.moveToNext());
-    			}
-    			
-    			stockCursor.close();
-    		}
-    		
-    		if (lookInWeaveBookmarks) {
-    			Cursor weaveCursor = contentResolver.query(WeaveColumns.CONTENT_URI,
-    					null,
-    					WeaveColumns.WEAVE_BOOKMARKS_FOLDER + " = 0 AND (" +  WeaveColumns.WEAVE_BOOKMARKS_TITLE + " LIKE '" + sqlPattern + "' OR " + WeaveColumns.WEAVE_BOOKMARKS_URL  + " LIKE '" + sqlPattern + "')",
-    					null, null);
-
-    			if (weaveCursor != null) {
-    				if (weaveCursor.moveToFirst()) {
-    					
-    					int weaveTitleId = weaveCursor.getColumnIndex(WeaveColumns.WEAVE_BOOKMARKS_TITLE);
-        				int weaveUrlId = weaveCursor.getColumnIndex(WeaveColumns.WEAVE_BOOKMARKS_URL);
-    					
-    					do {
-    						results.add(new UrlSuggestionItem(pattern,
-    								weaveCursor.getString(weaveTitleId),
-    								weaveCursor.getString(weaveUrlId),
-    								3));
-    					} while (weaveCursor.moveToNext());
-    				}
-
-    				weaveCursor.close();
-    			}
-    		}
-    		
-    		// Sort results.
-    		Collections.sort(results, new UrlSuggestionItemComparator());
-    		
-    		//Log.d("Results", Integer.toString(results.size()));
+    		// Results are already sorted, and limited to the best ones. A cancelled query
+    		// returns the last suggestions, which stay displayed until the newer query's.
+    		List<UrlSuggestionItem> results = UrlSuggestionIndex.getInstance().getSuggestions(context, pattern, lookInWeaveBookmarks);
     		
     		// Copy results to the output MatrixCursor.
     		int idCounter = -1;
@@ -0,0 +1,175 @@
+/*
+ * Zirco Browser for Android
+ *
+ * Copyright (C) 2010 - 2011 J. Devauchelle and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 3 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package org.zirco.providers;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+/**
+ * Write-behind queue for favicons received by the browser.
+ *
+ * Icons are kept in memory, keyed by page url so that only the latest icon
+ * of a page is written, and flushed a short while after the first one
+ * arrives. Icons are downscaled to the size they are displayed at, and an
+ * icon identical to the one last written for the same page is skipped.
+ * Each flush is written in a single transaction on the serial database
+ * executor.
+ */
+public final class FaviconWriteQueue extends BatchedWriter<String, FaviconWriteQueue.PendingIcon> {
+
+	private static final long FLUSH_DELAY_MS = 2000;
+
+	private static final int MAX_WRITTEN_HASHES = 256;
+
+	/**
+	 * An icon waiting to be written.
+	 */
+	static final class PendingIcon {
+		private final String mUrl;
+		private final String mOriginalUrl;
+		private final Bitmap mIcon;
+		private final int mSize;
+
+		private PendingIcon(String url, String originalUrl, Bitmap icon, int size) {
+			mUrl = url;
+			mOriginalUrl = originalUrl;
+			mIcon = icon;
+			mSize = size;
+		}
+	}
+
+	/**
+	 * Hash of the icon last written for each url. Only used on the serial database executor.
+	 */
+	private final Map<String, Integer> mWrittenHashes = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+			return size() > MAX_WRITTEN_HASHES;
+		}
+	};
+
+	/**
+	 * Holder for singleton implementation.
+	 */
+	private static final class FaviconWriteQueueHolder {
+		private static final FaviconWriteQueue INSTANCE = new FaviconWriteQueue();
+		/**
+		 * Private Constructor.
+		 */
+		private FaviconWriteQueueHolder() { }
+	}
+
+	/**
+	 * Get the unique instance of the FaviconWriteQueue.
+	 * @return The instance of the FaviconWriteQueue
+	 */
+	public static FaviconWriteQueue getInstance() {
+		return FaviconWriteQueueHolder.INSTANCE;
+	}
+
+	/**
+	 * Private Constructor.
+	 */
+	private FaviconWriteQueue() {
+		super(FLUSH_DELAY_MS);
+	}
+
+	/**
+	 * Queue a favicon to be written to the history/bookmarks database.
+	 * @param context The current context.
+	 * @param url The page url.
+	 * @param originalUrl The page original url.
+	 * @param icon The favicon.
+	 * @param size The size the favicon is displayed at, in pixels.
+	 */
+	public void enqueue(Context context, String url, String originalUrl, Bitmap icon, int size) {
+		if ((url == null) ||
+				(icon == null)) {
+			return;
+		}
+
+		// Only the latest icon of a page is written.
+		enqueue(context, url, new PendingIcon(url, originalUrl, icon, size));
+	}
+
+	@Override
+	protected void write(Context context, Map<String, PendingIcon> pending) {
+		// A page's icon usually arrives before its visit is written; write it
+		// first so that the icon has a history entry to update.
+		HistoryRecorder.getInstance().writePending();
+
+		List<String> urls = new ArrayList<String>();
+		List<Integer> hashes = new ArrayList<Integer>();
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+
+		for (PendingIcon item : pending.values()) {
+			Bitmap icon = item.mIcon;
+			if ((item.mSize > 0) &&
+					((icon.getWidth() > item.mSize) || (icon.getHeight() > item.mSize))) {
+				icon = Bitmap.createScaledBitmap(icon, item.mSize, item.mSize, true);
+			}
+
+			int[] pixels = new int[icon.getWidth() * icon.getHeight()];
+			icon.getPixels(pixels, 0, icon.getWidth(), 0, 0, icon.getWidth(), icon.getHeight());
+			int hash = 31 * Arrays.hashCode(pixels) + icon.getWidth();
+
+			Integer writtenHash = mWrittenHashes.get(item.mUrl);
+			if ((writtenHash != null) &&
+					(writtenHash.intValue() == hash)) {
+				continue;
+			}
+
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			icon.compress(Bitmap.CompressFormat.PNG, 100, os);
+
+			urls.add(item.mUrl);
+			hashes.add(hash);
+			operations.add(BookmarksProviderWrapper.newFaviconUpdateOperation(item.mUrl, item.mOriginalUrl, os.toByteArray()));
+		}
+
+		if (operations.isEmpty()) {
+			return;
+		}
+
+		try {
+			ContentProviderResult[] results = BookmarksProviderWrapper.applyBatch(context.getContentResolver(), operations);
+
+			for (int i = 0; i < results.length; i++) {
+				// A page with no history entry yet hasn't been written.
+				if ((results[i].count != null) &&
+						(results[i].count.intValue() > 0)) {
+					mWrittenHashes.put(urls.get(i), hashes.get(i));
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			Log.w("FaviconWriteQueue", "Unable to update favicons: " + e.getMessage());
+		}
+	}
+
+}
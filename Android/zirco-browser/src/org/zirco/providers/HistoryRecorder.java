@@ -0,0 +1,152 @@
+/*
+ * Zirco Browser for Android
+ *
+ * Copyright (C) 2010 - 2011 J. Devauchelle and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 3 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package org.zirco.providers;
+
+import java.util.Map;
+
+import org.zirco.utils.Constants;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * Write-behind recorder for the browsing history.
+ *
+ * Visits are kept in memory, repeated visits to the same url being merged,
+ * and written in a single transaction a few seconds after the first one,
+ * or when the browser is paused. Old history is truncated after a write
+ * at most once a day, or when the history size preference changes.
+ */
+public final class HistoryRecorder extends BatchedWriter<String, HistoryRecorder.Visit> {
+
+	private static final long FLUSH_DELAY_MS = 3000;
+
+	private static final long TRUNCATION_INTERVAL_MS = 24 * 60 * 60 * 1000;
+
+	/**
+	 * Visits to a url, waiting to be written.
+	 */
+	static final class Visit {
+		final String mUrl;
+		String mOriginalUrl;
+		String mTitle;
+		int mVisits = 1;
+		long mDate;
+
+		private Visit(String url, String originalUrl, String title, long date) {
+			mUrl = url;
+			mOriginalUrl = originalUrl;
+			mTitle = title;
+			mDate = date;
+		}
+	}
+
+	/**
+	 * Holder for singleton implementation.
+	 */
+	private static final class HistoryRecorderHolder {
+		private static final HistoryRecorder INSTANCE = new HistoryRecorder();
+		/**
+		 * Private Constructor.
+		 */
+		private HistoryRecorderHolder() { }
+	}
+
+	/**
+	 * Get the unique instance of the HistoryRecorder.
+	 * @return The instance of the HistoryRecorder
+	 */
+	public static HistoryRecorder getInstance() {
+		return HistoryRecorderHolder.INSTANCE;
+	}
+
+	/**
+	 * Private Constructor.
+	 */
+	private HistoryRecorder() {
+		super(FLUSH_DELAY_MS);
+	}
+
+	/**
+	 * Record a visit to a page.
+	 * @param context The current context.
+	 * @param title The page title.
+	 * @param url The page url.
+	 * @param originalUrl The page original url.
+	 */
+	public void record(Context context, String title, String url, String originalUrl) {
+		if ((url == null) ||
+				(url.length() == 0)) {
+			return;
+		}
+
+		if (url.startsWith(Constants.URL_GOOGLE_MOBILE_VIEW_NO_FORMAT)) {
+			url = url.substring(Constants.URL_GOOGLE_MOBILE_VIEW_NO_FORMAT.length());
+		}
+
+		enqueue(context, url, new Visit(url, originalUrl, title, System.currentTimeMillis()));
+	}
+
+	/**
+	 * Repeated visits to a url are written as one.
+	 */
+	@Override
+	protected Visit merge(Visit pending, Visit visit) {
+		pending.mOriginalUrl = visit.mOriginalUrl;
+		pending.mTitle = visit.mTitle;
+		pending.mVisits += visit.mVisits;
+		pending.mDate = visit.mDate;
+		return pending;
+	}
+
+	@Override
+	protected void write(Context context, Map<String, Visit> pending) {
+		try {
+			BookmarksProviderWrapper.updateHistory(context.getContentResolver(), pending.values());
+			UrlSuggestionIndex.getInstance().onVisits(pending.values());
+		} catch (Exception e) {
+			e.printStackTrace();
+			Log.w("HistoryRecorder", "Unable to update history: " + e.getMessage());
+		}
+
+		truncateIfDue(context);
+	}
+
+	private void truncateIfDue(Context context) {
+		SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+		String historySize = preferences.getString(Constants.PREFERENCES_BROWSER_HISTORY_SIZE, "90");
+		long lastTruncationDate = preferences.getLong(Constants.PREFERENCES_BROWSER_HISTORY_LAST_TRUNCATION_DATE, 0);
+		String lastTruncationSize = preferences.getString(Constants.PREFERENCES_BROWSER_HISTORY_LAST_TRUNCATION_SIZE, null);
+		long now = System.currentTimeMillis();
+
+		// A clock set backwards also makes truncation due.
+		if ((historySize.equals(lastTruncationSize)) &&
+				(now >= lastTruncationDate) &&
+				(now - lastTruncationDate < TRUNCATION_INTERVAL_MS)) {
+			return;
+		}
+
+		BookmarksProviderWrapper.truncateHistory(context.getContentResolver(), historySize);
+
+		SharedPreferences.Editor editor = preferences.edit();
+		editor.putLong(Constants.PREFERENCES_BROWSER_HISTORY_LAST_TRUNCATION_DATE, now);
+		editor.putString(Constants.PREFERENCES_BROWSER_HISTORY_LAST_TRUNCATION_SIZE, historySize);
+		editor.commit();
+	}
+
+}
@@ -0,0 +1,621 @@
+/*
+ * Zirco Browser for Android
+ *
+ * Copyright (C) 2010 - 2011 J. Devauchelle and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 3 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package org.zirco.providers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.zirco.model.UrlSuggestionScorer;
+import org.zirco.model.items.UrlSuggestionItem;
+
+import com.psiphon3.psiphonlibrary.BackgroundExecutors;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.provider.Browser;
+import android.util.Log;
+
+/**
+ * In-memory index of the history, bookmarks and weave bookmarks, for url suggestions.
+ *
+ * Entries keep their lowercased title and url, and a weight computed from
+ * their visit count and last visit date, which orders suggestions of equal
+ * note. The lowercased titles and urls, hosts included, are indexed by
+ * trigram: a pattern of three characters or more is only checked against
+ * the entries containing its rarest trigram, shorter patterns against all
+ * entries. Matches are scored by UrlSuggestionScorer on the cached
+ * lowercase fields, and only the best ones are selected and sorted.
+ *
+ * The matches and suggestions of the last few patterns are cached for the
+ * current content of the index. A pattern containing a cached pattern,
+ * e.g. "goog" after "goo", is only checked against the cached matches, and
+ * a repeated pattern, e.g. after deleting a character, reuses its
+ * suggestions. A query still running when cancelQueries() is called, i.e.
+ * when the pattern is being changed again, is abandoned, and returns the
+ * last suggestions so that the displayed ones stay until the next query.
+ *
+ * The index is built from the database on the serial database executor the
+ * first time it is needed. Visits written by the HistoryRecorder are added
+ * to it as they are written; any other change to the history, bookmarks or
+ * weave bookmarks invalidates it, and it is rebuilt shortly after.
+ */
+public final class UrlSuggestionIndex {
+
+	/**
+	 * Maximum number of suggestions returned.
+	 */
+	public static final int MAX_SUGGESTIONS = 50;
+
+	private static final long REBUILD_DELAY_MS = 1000;
+	private static final long BUILD_TIMEOUT_MS = 2000;
+
+	/**
+	 * Compact the postings once there are at least this many removed entries, and more removed than live entries.
+	 */
+	private static final int MIN_DEAD_ENTRIES_TO_COMPACT = 1000;
+
+	private static final int MAX_SESSION_PATTERNS = 8;
+
+	/**
+	 * Number of entries checked between two checks for cancellation.
+	 */
+	private static final int CANCELLATION_CHECK_INTERVAL = 256;
+
+	private static final long RECENCY_HALF_WEIGHT_MS = 30L * 24 * 60 * 60 * 1000;
+
+	private static final int TYPE_HISTORY = 1;
+	private static final int TYPE_BOOKMARK = 2;
+	private static final int TYPE_WEAVE = 3;
+
+	/**
+	 * An indexed history, bookmark or weave bookmark item.
+	 */
+	private static final class Entry {
+		private final String mTitle;
+		private final String mUrl;
+		private final int mType;
+		private final int mVisits;
+		private final long mDate;
+		private final String mLowerTitle;
+		private final String mLowerUrl;
+		private final float mWeight;
+		private boolean mLive = true;
+
+		private Entry(String title, String url, int type, int visits, long date, long now) {
+			mTitle = title != null ? title : "";
+			mUrl = url;
+			mType = type;
+			mVisits = visits;
+			mDate = date;
+			mLowerTitle = mTitle.toLowerCase();
+			mLowerUrl = mUrl.toLowerCase();
+
+			float recency = date > 0 ? 1f / (1f + (float) Math.max(0, now - date) / RECENCY_HALF_WEIGHT_MS) : 0f;
+			mWeight = (1 + visits) * (1 + recency);
+		}
+	}
+
+	/**
+	 * A growable list of ints.
+	 */
+	private static final class IntList {
+		private int[] mValues;
+		private int mSize = 0;
+
+		private IntList(int capacity) {
+			mValues = new int[capacity];
+		}
+
+		private void add(int value) {
+			if (mSize == mValues.length) {
+				int[] values = new int[mValues.length * 2];
+				System.arraycopy(mValues, 0, values, 0, mSize);
+				mValues = values;
+			}
+			mValues[mSize++] = value;
+		}
+
+		private int last() {
+			return mValues[mSize - 1];
+		}
+	}
+
+	/**
+	 * Cached matches and suggestions for a pattern.
+	 */
+	private static final class SessionEntry {
+		private final IntList mMatches;
+		private boolean mLookInWeaveBookmarks;
+		private List<UrlSuggestionItem> mResults;
+
+		private SessionEntry(IntList matches) {
+			mMatches = matches;
+		}
+	}
+
+	/**
+	 * Thrown when a query is cancelled.
+	 */
+	private static final class QueryCancelledException extends Exception {
+		private static final long serialVersionUID = 1L;
+	}
+
+	private final Object mLock = new Object();
+	private Context mContext = null;
+
+	private List<Entry> mEntries = new ArrayList<Entry>();
+	private Map<Integer, IntList> mPostings = new HashMap<Integer, IntList>();
+	private Map<String, Integer> mEntriesByUrl = new HashMap<String, Integer>();
+	private int mDeadCount = 0;
+	private int mVersion = 0;
+
+	private final Map<String, SessionEntry> mSession = new LinkedHashMap<String, SessionEntry>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, SessionEntry> eldest) {
+			return size() > MAX_SESSION_PATTERNS;
+		}
+	};
+	private int mSessionVersion = -1;
+
+	/**
+	 * The suggestions returned by the last completed query.
+	 */
+	private List<UrlSuggestionItem> mLastResults = new ArrayList<UrlSuggestionItem>();
+
+	private final AtomicInteger mCancelCount = new AtomicInteger();
+
+	private boolean mBuilt = false;
+	private int mGeneration = 0;
+	private boolean mRebuildScheduled = false;
+
+	private final Runnable mBuildRunnable = new Runnable() {
+		@Override
+		public void run() {
+			build();
+		}
+	};
+
+	private final Runnable mScheduledBuildRunnable = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (mLock) {
+				mRebuildScheduled = false;
+			}
+			BackgroundExecutors.serialDb().execute(mBuildRunnable);
+		}
+	};
+
+	/**
+	 * Holder for singleton implementation.
+	 */
+	private static final class UrlSuggestionIndexHolder {
+		private static final UrlSuggestionIndex INSTANCE = new UrlSuggestionIndex();
+		/**
+		 * Private Constructor.
+		 */
+		private UrlSuggestionIndexHolder() { }
+	}
+
+	/**
+	 * Get the unique instance of the UrlSuggestionIndex.
+	 * @return The instance of the UrlSuggestionIndex
+	 */
+	public static UrlSuggestionIndex getInstance() {
+		return UrlSuggestionIndexHolder.INSTANCE;
+	}
+
+	/**
+	 * Private Constructor.
+	 */
+	private UrlSuggestionIndex() { }
+
+	/**
+	 * Get the best suggestions for a pattern, sorted by note.
+	 * Must not be called on the serial database executor.
+	 * @param context The current context.
+	 * @param pattern The pattern to search for.
+	 * @param lookInWeaveBookmarks If true, suggestions will include bookmarks from weave.
+	 * @return The suggestions, at most MAX_SUGGESTIONS, or those of the last completed query if this one was cancelled.
+	 */
+	public List<UrlSuggestionItem> getSuggestions(Context context, String pattern, boolean lookInWeaveBookmarks) {
+		int cancelCount = mCancelCount.get();
+		boolean built;
+		synchronized (mLock) {
+			if (mContext == null) {
+				mContext = context.getApplicationContext();
+			}
+			built = mBuilt;
+		}
+
+		if (!built) {
+			waitForBuild();
+		}
+
+		String lowerPattern = pattern.toLowerCase();
+
+		synchronized (mLock) {
+			if (mSessionVersion != mVersion) {
+				mSession.clear();
+				mSessionVersion = mVersion;
+			}
+
+			try {
+				SessionEntry sessionEntry = mSession.get(lowerPattern);
+
+				if (sessionEntry == null) {
+					// The matches of a pattern are among those of any pattern it contains.
+					String basePattern = null;
+					for (String cachedPattern : mSession.keySet()) {
+						if ((lowerPattern.contains(cachedPattern)) &&
+								((basePattern == null) || (cachedPattern.length() > basePattern.length()))) {
+							basePattern = cachedPattern;
+						}
+					}
+
+					IntList matches;
+					if (basePattern != null) {
+						matches = refine(mSession.get(basePattern).mMatches, lowerPattern, cancelCount);
+					} else {
+						matches = match(lowerPattern, cancelCount);
+					}
+
+					sessionEntry = new SessionEntry(matches);
+					mSession.put(lowerPattern, sessionEntry);
+				}
+
+				if ((sessionEntry.mResults == null) ||
+						(sessionEntry.mLookInWeaveBookmarks != lookInWeaveBookmarks)) {
+					sessionEntry.mResults = rank(pattern, sessionEntry.mMatches, lookInWeaveBookmarks, cancelCount);
+					sessionEntry.mLookInWeaveBookmarks = lookInWeaveBookmarks;
+				}
+
+				mLastResults = sessionEntry.mResults;
+				return new ArrayList<UrlSuggestionItem>(sessionEntry.mResults);
+			} catch (QueryCancelledException e) {
+				return new ArrayList<UrlSuggestionItem>(mLastResults);
+			}
+		}
+	}
+
+	/**
+	 * Cancel the queries running, e.g. because the pattern is being changed. May be called on any thread.
+	 */
+	public void cancelQueries() {
+		mCancelCount.incrementAndGet();
+	}
+
+	/**
+	 * Add visits written to the history. Called by the HistoryRecorder on the serial database executor.
+	 * @param visits The visits.
+	 */
+	void onVisits(Collection<HistoryRecorder.Visit> visits) {
+		synchronized (mLock) {
+			if (!mBuilt) {
+				return;
+			}
+
+			long now = System.currentTimeMillis();
+
+			for (HistoryRecorder.Visit visit : visits) {
+				// Same row matching as BookmarksProviderWrapper.updateHistory().
+				Integer index = mEntriesByUrl.get(visit.mUrl);
+				if ((index == null) &&
+						(visit.mOriginalUrl != null)) {
+					index = mEntriesByUrl.get(visit.mOriginalUrl);
+				}
+
+				if (index != null) {
+					Entry previous = mEntries.get(index.intValue());
+					String title = previous.mType == TYPE_BOOKMARK ? previous.mTitle : visit.mTitle;
+					remove(index.intValue());
+					add(new Entry(title, previous.mUrl, previous.mType, previous.mVisits + visit.mVisits, visit.mDate, now));
+				} else {
+					add(new Entry(visit.mTitle, visit.mUrl, TYPE_HISTORY, visit.mVisits, visit.mDate, now));
+				}
+			}
+
+			compactIfNeeded();
+		}
+	}
+
+	/**
+	 * Invalidate the index after a change to the history, bookmarks or weave bookmarks
+	 * other than the visits added by onVisits().
+	 */
+	public void invalidate() {
+		synchronized (mLock) {
+			mGeneration++;
+			if (!mBuilt) {
+				return;
+			}
+			mBuilt = false;
+
+			if (!mRebuildScheduled) {
+				mRebuildScheduled = true;
+				BackgroundExecutors.scheduled().schedule(mScheduledBuildRunnable, REBUILD_DELAY_MS, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	private void waitForBuild() {
+		Future<?> future = BackgroundExecutors.serialDb().submit(mBuildRunnable);
+		try {
+			future.get(BUILD_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		} catch (Exception e) {
+			// Suggest from the stale index, if any.
+			Log.w("UrlSuggestionIndex", "Unable to build index: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Build the index from the database. Runs on the serial database executor, so
+	 * that no visits are written between reading the database and replacing the index.
+	 */
+	private void build() {
+		Context context;
+		int generation;
+
+		synchronized (mLock) {
+			if (mBuilt ||
+					(mContext == null)) {
+				return;
+			}
+			context = mContext;
+			generation = mGeneration;
+		}
+
+		ContentResolver contentResolver = context.getContentResolver();
+		long now = System.currentTimeMillis();
+		List<Entry> entries = new ArrayList<Entry>();
+
+		Cursor cursor = BookmarksProviderWrapper.getAllStockRecords(contentResolver);
+		if (cursor != null) {
+			int titleIndex = cursor.getColumnIndex(Browser.BookmarkColumns.TITLE);
+			int urlIndex = cursor.getColumnIndex(Browser.BookmarkColumns.URL);
+			int visitsIndex = cursor.getColumnIndex(Browser.BookmarkColumns.VISITS);
+			int dateIndex = cursor.getColumnIndex(Browser.BookmarkColumns.DATE);
+			int bookmarkIndex = cursor.getColumnIndex(Browser.BookmarkColumns.BOOKMARK);
+
+			while (cursor.moveToNext()) {
+				String url = cursor.getString(urlIndex);
+				if (url != null) {
+					entries.add(new Entry(cursor.getString(titleIndex),
+							url,
+							cursor.getInt(bookmarkIndex) > 0 ? TYPE_BOOKMARK : TYPE_HISTORY,
+							cursor.getInt(visitsIndex),
+							cursor.getLong(dateIndex),
+							now));
+				}
+			}
+
+			cursor.close();
+		}
+
+		Cursor weaveCursor = BookmarksProviderWrapper.getAllWeaveBookmarks(contentResolver);
+		if (weaveCursor != null) {
+			int titleIndex = weaveCursor.getColumnIndex(WeaveColumns.WEAVE_BOOKMARKS_TITLE);
+			int urlIndex = weaveCursor.getColumnIndex(WeaveColumns.WEAVE_BOOKMARKS_URL);
+
+			while (weaveCursor.moveToNext()) {
+				String url = weaveCursor.getString(urlIndex);
+				if (url != null) {
+					entries.add(new Entry(weaveCursor.getString(titleIndex), url, TYPE_WEAVE, 0, 0, now));
+				}
+			}
+
+			weaveCursor.close();
+		}
+
+		synchronized (mLock) {
+			reset(entries);
+			// Changed again while reading; the next query or scheduled rebuild will read it again.
+			mBuilt = generation == mGeneration;
+		}
+	}
+
+	private void reset(List<Entry> entries) {
+		mVersion++;
+		mEntries = new ArrayList<Entry>(entries.size());
+		mPostings = new HashMap<Integer, IntList>();
+		mEntriesByUrl = new HashMap<String, Integer>();
+		mDeadCount = 0;
+
+		for (Entry entry : entries) {
+			add(entry);
+		}
+	}
+
+	private void add(Entry entry) {
+		mVersion++;
+		int index = mEntries.size();
+		mEntries.add(entry);
+
+		if (entry.mType != TYPE_WEAVE) {
+			// As in updateHistory(), the first row with a given url wins.
+			if (!mEntriesByUrl.containsKey(entry.mUrl)) {
+				mEntriesByUrl.put(entry.mUrl, index);
+			}
+		}
+
+		addPostings(entry.mLowerTitle, index);
+		addPostings(entry.mLowerUrl, index);
+	}
+
+	private void addPostings(String text, int index) {
+		for (int i = 0; i + 3 <= text.length(); i++) {
+			Integer trigram = trigram(text, i);
+			IntList postings = mPostings.get(trigram);
+			if (postings == null) {
+				postings = new IntList(4);
+				mPostings.put(trigram, postings);
+			}
+			// Entries are added in index order, so a repeated trigram is always the last one.
+			if ((postings.mSize == 0) ||
+					(postings.last() != index)) {
+				postings.add(index);
+			}
+		}
+	}
+
+	private void remove(int index) {
+		mVersion++;
+		Entry entry = mEntries.get(index);
+		entry.mLive = false;
+		mEntriesByUrl.remove(entry.mUrl);
+		mDeadCount++;
+	}
+
+	private void compactIfNeeded() {
+		if ((mDeadCount >= MIN_DEAD_ENTRIES_TO_COMPACT) &&
+				(mDeadCount > mEntries.size() - mDeadCount)) {
+			List<Entry> live = new ArrayList<Entry>(mEntries.size() - mDeadCount);
+			for (Entry entry : mEntries) {
+				if (entry.mLive) {
+					live.add(entry);
+				}
+			}
+			reset(live);
+		}
+	}
+
+	/**
+	 * Find the live entries whose title or url contains the pattern.
+	 * @param lowerPattern The lowercased pattern.
+	 * @param cancelCount The value of mCancelCount when the query started.
+	 * @return The matching entry indexes.
+	 * @throws QueryCancelledException
+	 */
+	private IntList match(String lowerPattern, int cancelCount) throws QueryCancelledException {
+		IntList candidates = null;
+
+		for (int i = 0; i + 3 <= lowerPattern.length(); i++) {
+			IntList postings = mPostings.get(trigram(lowerPattern, i));
+			if (postings == null) {
+				return new IntList(1);
+			}
+			if ((candidates == null) ||
+					(postings.mSize < candidates.mSize)) {
+				candidates = postings;
+			}
+		}
+
+		int count = candidates != null ? candidates.mSize : mEntries.size();
+		IntList matches = new IntList(Math.max(1, Math.min(count, 256)));
+
+		for (int i = 0; i < count; i++) {
+			checkCancelled(i, cancelCount);
+			int index = candidates != null ? candidates.mValues[i] : i;
+			if (matches(mEntries.get(index), lowerPattern)) {
+				matches.add(index);
+			}
+		}
+
+		return matches;
+	}
+
+	/**
+	 * Find the entries among previous matches whose title or url contains the pattern.
+	 * @param previousMatches The matches of a pattern contained in this one.
+	 * @param lowerPattern The lowercased pattern.
+	 * @param cancelCount The value of mCancelCount when the query started.
+	 * @return The matching entry indexes.
+	 * @throws QueryCancelledException
+	 */
+	private IntList refine(IntList previousMatches, String lowerPattern, int cancelCount) throws QueryCancelledException {
+		IntList matches = new IntList(Math.max(1, previousMatches.mSize));
+
+		for (int i = 0; i < previousMatches.mSize; i++) {
+			checkCancelled(i, cancelCount);
+			int index = previousMatches.mValues[i];
+			if (matches(mEntries.get(index), lowerPattern)) {
+				matches.add(index);
+			}
+		}
+
+		return matches;
+	}
+
+	private static boolean matches(Entry entry, String lowerPattern) {
+		return (entry.mLive) &&
+				((entry.mLowerTitle.indexOf(lowerPattern) >= 0) ||
+						(entry.mLowerUrl.indexOf(lowerPattern) >= 0));
+	}
+
+	private void checkCancelled(int iteration, int cancelCount) throws QueryCancelledException {
+		if ((iteration % CANCELLATION_CHECK_INTERVAL == 0) &&
+				(mCancelCount.get() != cancelCount)) {
+			throw new QueryCancelledException();
+		}
+	}
+
+	/**
+	 * Score the matches and select the best MAX_SUGGESTIONS of them, only sorting those.
+	 * @param pattern The pattern.
+	 * @param matches The matching entry indexes.
+	 * @param lookInWeaveBookmarks If false, weave bookmarks are skipped.
+	 * @param cancelCount The value of mCancelCount when the query started.
+	 * @return The best suggestions, sorted by note.
+	 * @throws QueryCancelledException
+	 */
+	private List<UrlSuggestionItem> rank(String pattern, IntList matches, boolean lookInWeaveBookmarks, int cancelCount) throws QueryCancelledException {
+		UrlSuggestionScorer scorer = new UrlSuggestionScorer(pattern);
+
+		int[] candidates = new int[matches.mSize];
+		float[] notes = new float[matches.mSize];
+		float[] weights = new float[matches.mSize];
+		int count = 0;
+
+		for (int i = 0; i < matches.mSize; i++) {
+			checkCancelled(i, cancelCount);
+			Entry entry = mEntries.get(matches.mValues[i]);
+			if ((!lookInWeaveBookmarks) &&
+					(entry.mType == TYPE_WEAVE)) {
+				continue;
+			}
+
+			candidates[count] = matches.mValues[i];
+			notes[count] = scorer.computeNote(entry.mLowerTitle, entry.mLowerUrl, entry.mType);
+			weights[count] = entry.mWeight;
+			count++;
+		}
+
+		int selected = UrlSuggestionScorer.selectBest(candidates, notes, weights, count, MAX_SUGGESTIONS);
+
+		List<UrlSuggestionItem> results = new ArrayList<UrlSuggestionItem>(selected);
+		for (int i = 0; i < selected; i++) {
+			Entry entry = mEntries.get(candidates[i]);
+			results.add(new UrlSuggestionItem(entry.mTitle, entry.mUrl, entry.mType, notes[i], weights[i]));
+		}
+		return results;
+	}
+
+	private static Integer trigram(String text, int offset) {
+		return Integer.valueOf(((text.charAt(offset) & 0x3FF) << 20) |
+				((text.charAt(offset + 1) & 0x3FF) << 10) |
+				(text.charAt(offset + 2) & 0x3FF));
+	}
+
+}
@@ -15,10 +15,15 @@
 
 package org.zirco.providers;
 
+import java.util.ArrayList;
+
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
@@ -161,6 +166,21 @@ public class ZircoBookmarksContentProvider extends ContentProvider {
 		return count;
 	}
 	
+	/**
+	 * Apply the operations in a single transaction, rather than one per operation.
+	 */
+	@Override
+	public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations) throws OperationApplicationException {
+		mDb.beginTransaction();
+		try {
+			ContentProviderResult[] results = super.applyBatch(operations);
+			mDb.setTransactionSuccessful();
+			return results;
+		} finally {
+			mDb.endTransaction();
+		}
+	}
+	
 	private static class DatabaseHelper extends SQLiteOpenHelper {
 
 		public DatabaseHelper(Context context) {
@@ -17,6 +17,7 @@ import org.emergent.android.weave.client.WeaveFactory;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.zirco.providers.BookmarksProviderWrapper;
+import org.zirco.providers.UrlSuggestionIndex;
 import org.zirco.providers.WeaveColumns;
 import org.zirco.utils.Constants;
 
@@ -186,6 +187,8 @@ public class WeaveSyncTask extends AsyncTask<WeaveAccountInfo, Integer, Throwabl
 		
 		publishProgress(3, 0, 0);
 		mContext.getContentResolver().bulkInsert(WeaveColumns.CONTENT_URI, valuesArray);
+		
+		UrlSuggestionIndex.getInstance().invalidate();
 	}
 	
 	private void doSyncByDelta(WeaveAccountInfo accountInfo, UserWeave userWeave, List<WeaveBasicObject> wboList)
@@ -18,7 +18,6 @@ package org.zirco.ui.activities;
 import java.lang.reflect.Field;
 import java.net.URI;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
@@ -47,12 +46,13 @@ import org.zirco.events.IDownloadEventsListener;
 import org.zirco.model.adapters.UrlSuggestionCursorAdapter;
 import org.zirco.model.items.DownloadItem;
 import org.zirco.providers.BookmarksProviderWrapper;
+import org.zirco.providers.FaviconWriteQueue;
+import org.zirco.providers.HistoryRecorder;
+import org.zirco.providers.UrlSuggestionIndex;
 import org.zirco.ui.activities.preferences.PreferencesActivity;
 import org.zirco.ui.components.CustomWebView;
 import org.zirco.ui.components.CustomWebViewClient;
-import org.zirco.ui.runnables.FaviconUpdaterRunnable;
 import org.zirco.ui.runnables.HideToolbarsRunnable;
-import org.zirco.ui.runnables.HistoryUpdater;
 import org.zirco.utils.AnimationManager;
 import org.zirco.utils.ApplicationUtils;
 import org.zirco.utils.Constants;
@@ -250,6 +250,9 @@ public class MainActivity extends Activity implements IToolbarsContainer, OnTouc
         
         Controller.getInstance().setPreferences(PreferenceManager.getDefaultSharedPreferences(this));    
         
+        // Downloads saved before a restart, loaded in the background, unfinished ones being resumed.
+        Controller.getInstance().loadDownloadList(this);
+        
         if (Controller.getInstance().getPreferences().getBoolean(Constants.PREFERENCES_SHOW_FULL_SCREEN, false)) {        	
         	getWindow().setFlags(WindowManager.LayoutParams.FLAG_FULLSCREEN, WindowManager.LayoutParams.FLAG_FULLSCREEN);
         }
@@ -662,11 +665,11 @@ public class MainActivity extends Activity implements IToolbarsContainer, OnTouc
 			public Cursor runQuery(CharSequence constraint) {
 				if ((constraint != null) &&
 						(constraint.length() > 0)) {
-					return BookmarksProviderWrapper.getUrlSuggestions(getContentResolver(),
+					return BookmarksProviderWrapper.getUrlSuggestions(MainActivity.this,
 							constraint.toString(),
 							PreferenceManager.getDefaultSharedPreferences(MainActivity.this).getBoolean(Constants.PREFERENCE_USE_WEAVE, false));
 				} else {
-					return BookmarksProviderWrapper.getUrlSuggestions(getContentResolver(),
+					return BookmarksProviderWrapper.getUrlSuggestions(MainActivity.this,
 							null,
 							PreferenceManager.getDefaultSharedPreferences(MainActivity.this).getBoolean(Constants.PREFERENCE_USE_WEAVE, false));
 				}
@@ -695,7 +698,11 @@ public class MainActivity extends Activity implements IToolbarsContainer, OnTouc
 
     	mUrlTextWatcher = new TextWatcher() {			
     		@Override
-    		public void onTextChanged(CharSequence arg0, int arg1, int arg2, int arg3) { }
+    		public void onTextChanged(CharSequence arg0, int arg1, int arg2, int arg3) {
+    			// Abandon the suggestions for the previous text. The text view only starts
+    			// filtering the new text after notifying all watchers of the change.
+    			UrlSuggestionIndex.getInstance().cancelQueries();
+    		}
 
     		@Override
     		public void beforeTextChanged(CharSequence arg0, int arg1, int arg2, int arg3) { }
@@ -1114,7 +1121,7 @@ public class MainActivity extends Activity implements IToolbarsContainer, OnTouc
 						
 			@Override
 			public void onReceivedIcon(WebView view, Bitmap icon) {
-				new Thread(new FaviconUpdaterRunnable(MainActivity.this, view.getUrl(), view.getOriginalUrl(), icon)).start();
+				FaviconWriteQueue.getInstance().enqueue(MainActivity.this, view.getUrl(), view.getOriginalUrl(), icon, ApplicationUtils.getFaviconSizeForBookmarks(MainActivity.this));
 				updateFavIcon();
 				
 				super.onReceivedIcon(view, icon);
@@ -1137,7 +1144,7 @@ public class MainActivity extends Activity implements IToolbarsContainer, OnTouc
 			public void onReceivedTitle(WebView view, String title) {
 				setTitle(String.format(getResources().getString(R.string.ApplicationNameUrl), title)); 
 				
-				startHistoryUpdaterRunnable(title, mCurrentWebView.getUrl(), mCurrentWebView.getOriginalUrl());
+				recordHistory(title, mCurrentWebView.getUrl(), mCurrentWebView.getOriginalUrl());
 				
 				super.onReceivedTitle(view, title);
 			}
@@ -1569,15 +1576,13 @@ public class MainActivity extends Activity implements IToolbarsContainer, OnTouc
 	}
     
     /**
-     * Start a runnable to update history.
+     * Record a visit in the history.
      * @param title The page title.
      * @param url The page url.
+     * @param originalUrl The page original url.
      */
-    private void startHistoryUpdaterRunnable(String title, String url, String originalUrl) {
-    	if ((url != null) &&
-    			(url.length() > 0)) {
-    		new Thread(new HistoryUpdater(this, title, url, originalUrl)).start();
-    	}
+    private void recordHistory(String title, String url, String originalUrl) {
+    	HistoryRecorder.getInstance().record(this, title, url, originalUrl);
     }
     
     /**
@@ -2027,6 +2032,9 @@ public class MainActivity extends Activity implements IToolbarsContainer, OnTouc
 	    }	    
 	    // end Psiphon changes
 	    
+		HistoryRecorder.getInstance().flush();
+		FaviconWriteQueue.getInstance().flush();
+		
 		mCurrentWebView.doOnPause();
 		super.onPause();
 	}
@@ -2224,20 +2232,7 @@ public class MainActivity extends Activity implements IToolbarsContainer, OnTouc
 	 * @return true if the url is in the white list
 	 */
 	private boolean checkInAdBlockWhiteList(String url) {
-		
-		if (url != null) {
-			boolean inList = false;
-			Iterator<String> iter = Controller.getInstance().getAdBlockWhiteList(this).iterator();			
-			while ((iter.hasNext()) &&
-					(!inList)) {
-				if (url.contains(iter.next())) {
-					inList = true;
-				}
-			}
-			return inList;
-		} else {
-			return false;
-		}
+		return Controller.getInstance().getAdBlockWhiteListMatcher(this).matches(url);
 	}
 	
 	public void onPageFinished(String url) {
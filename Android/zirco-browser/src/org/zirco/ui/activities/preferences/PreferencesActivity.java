@@ -33,6 +33,7 @@ import org.zirco.utils.ApplicationUtils;
 import org.zirco.utils.Constants;
 import org.zirco.utils.DateUtils;
 import org.zirco.utils.IOUtils;
+import org.zirco.utils.RequestBlocker;
 import android.app.AlertDialog;
 import android.app.ProgressDialog;
 import android.content.DialogInterface;
@@ -40,6 +41,7 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.DialogInterface.OnClickListener;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.database.Cursor;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
@@ -51,6 +53,9 @@ import android.preference.PreferenceManager;
 import android.preference.Preference.OnPreferenceClickListener;
 import android.webkit.CookieManager;
 
+import com.psiphon3.psiphonlibrary.BackgroundExecutors;
+import com.psiphon3.psiphonlibrary.Utils;
+
 /**
  * Preferences activity.
  */
@@ -177,16 +182,28 @@ public class PreferencesActivity extends PreferenceActivity {
                 return true;
             }           
         });
-		/* PSIPHON: Disable AdBlocker
-		Preference whiteListPref = (Preference) findPreference("AdBlockerWhiteList");
-		whiteListPref.setOnPreferenceClickListener(new OnPreferenceClickListener() {
-			@Override
-			public boolean onPreferenceClick(Preference preference) {
-				openWhiteListActivity();
-				return true;
-			}			
-		});
-		*/
+		
+		// PSIPHON: Requests can only be blocked from Honeycomb.
+		if (Build.VERSION.SDK_INT < 11) {
+			getPreferenceScreen().removePreference(findPreference("AdBlockerPreferenceCategory"));
+		} else {
+			Preference whiteListPref = (Preference) findPreference("AdBlockerWhiteList");
+			whiteListPref.setOnPreferenceClickListener(new OnPreferenceClickListener() {
+				@Override
+				public boolean onPreferenceClick(Preference preference) {
+					openWhiteListActivity();
+					return true;
+				}			
+			});
+			
+			RequestBlocker requestBlocker = RequestBlocker.getInstance();
+			if (requestBlocker.getBlockedRequestCount() > 0) {
+				Preference adBlockerPref = (Preference) findPreference(Constants.PREFERENCES_ADBLOCKER_ENABLE);
+				adBlockerPref.setSummary(String.format(getString(R.string.PreferencesActivity_RequestBlockerStatistics),
+						requestBlocker.getBlockedRequestCount(),
+						Utils.byteCountToDisplaySize(requestBlocker.getEstimatedBlockedBytes(), false)));
+			}
+		}
 		
 		Preference clearHistoryPref = (Preference) findPreference("PrivacyClearHistory");
 		clearHistoryPref.setOnPreferenceClickListener(new OnPreferenceClickListener() {
@@ -513,7 +530,9 @@ public class PreferencesActivity extends PreferenceActivity {
 	    			this.getResources().getString(R.string.Commons_ImportingHistoryBookmarks));
 			
 			XmlHistoryBookmarksImporter importer = new XmlHistoryBookmarksImporter(this, fileName, mProgressDialog);
-			new Thread(importer).start();
+			if (!BackgroundExecutors.io().tryExecute(importer)) {
+				onHistoryBookmarksTaskRejected(R.string.Commons_HistoryBookmarksImportSDCardFailedTitle);
+			}
 		}
 		
 	}
@@ -558,15 +577,33 @@ public class PreferencesActivity extends PreferenceActivity {
 	    			this.getResources().getString(R.string.Commons_PleaseWait),
 	    			this.getResources().getString(R.string.Commons_ExportingHistoryBookmarks));
 			
+			Cursor cursor = BookmarksProviderWrapper.getAllStockRecords(this.getContentResolver());
 			XmlHistoryBookmarksExporter exporter = new XmlHistoryBookmarksExporter(this,
 					DateUtils.getNowForFileName() + ".xml",
-					BookmarksProviderWrapper.getAllStockRecords(this.getContentResolver()),
+					cursor,
 					mProgressDialog);
 			
-			new Thread(exporter).start();
+			if (!BackgroundExecutors.io().tryExecute(exporter)) {
+				cursor.close();
+				onHistoryBookmarksTaskRejected(R.string.Commons_HistoryBookmarksExportSDCardFailedTitle);
+			}
 		}
 	}
 	
+	/**
+	 * Dismiss the progress dialog of an import or export which could not be started,
+	 * and tell the user.
+	 * @param titleId The failure dialog title.
+	 */
+	private void onHistoryBookmarksTaskRejected(int titleId) {
+		mProgressDialog.dismiss();
+		ApplicationUtils.showOkDialog(this,
+				android.R.drawable.ic_dialog_alert,
+				getResources().getString(titleId),
+				String.format(getResources().getString(R.string.Commons_HistoryBookmarksFailedMessage),
+						getResources().getString(R.string.Commons_BackgroundTasksBusyMessage)));
+	}
+	
 	/**
 	 * Ask the user to confirm the export. Launch it if confirmed.
 	 */
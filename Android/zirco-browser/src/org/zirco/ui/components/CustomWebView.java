@@ -48,7 +48,7 @@ public class CustomWebView extends WebView {
 	
 	private boolean mIsLoading = false;
 	
-	private String mLoadedUrl;
+	private volatile String mLoadedUrl;
 	
 	private static boolean mBoMethodsLoaded = false;
 	
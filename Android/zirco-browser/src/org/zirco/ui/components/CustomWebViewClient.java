@@ -15,11 +15,14 @@
 
 package org.zirco.ui.components;
 
+import java.io.ByteArrayInputStream;
+
 import org.zirco.R;
 import org.zirco.controllers.Controller;
 import org.zirco.ui.activities.MainActivity;
 import org.zirco.utils.ApplicationUtils;
 import org.zirco.utils.Constants;
+import org.zirco.utils.RequestBlocker;
 import org.zirco.utils.UrlUtils;
 
 import android.app.AlertDialog;
@@ -31,6 +34,7 @@ import android.view.View;
 import android.view.WindowManager;
 import android.webkit.HttpAuthHandler;
 import android.webkit.SslErrorHandler;
+import android.webkit.WebResourceResponse;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
 import android.webkit.WebView.HitTestResult;
@@ -43,6 +47,13 @@ public class CustomWebViewClient extends WebViewClient {
 	
 	private MainActivity mMainActivity;
 	
+	/**
+	 * Url of the page being loaded, and whether it is in the AdBlock white list.
+	 * Read on the threads on which requests are intercepted.
+	 */
+	private volatile String mPageUrl = null;
+	private volatile boolean mPageWhiteListed = false;
+	
 	public CustomWebViewClient(MainActivity mainActivity) {
 		super();
 		mMainActivity = mainActivity;
@@ -67,6 +78,8 @@ public class CustomWebViewClient extends WebViewClient {
 					ApplicationUtils.getStartPage(view.getContext()), "text/html", "UTF-8", "about:start");
 		}
 		
+		setPageUrl(view, url);
+		
 		((CustomWebView) view).notifyPageStarted();
 		mMainActivity.onPageStarted(url);
 		
@@ -159,12 +172,30 @@ public class CustomWebViewClient extends WebViewClient {
 				
 			} else {			
 				((CustomWebView) view).resetLoadedUrl();
+				setPageUrl(view, url);
 				mMainActivity.onUrlLoading(url);
 				return false;
 			}
 		}
 	}
 	
+	/**
+	 * Block ads and trackers before they are downloaded. Only called from Honeycomb.
+	 */
+	@Override
+	public WebResourceResponse shouldInterceptRequest(WebView view, String url) {
+		// Never block the page itself, e.g. an url typed by the user.
+		if ((Controller.getInstance().getPreferences().getBoolean(Constants.PREFERENCES_ADBLOCKER_ENABLE, false)) &&
+				(!mPageWhiteListed) &&
+				(!url.equals(mPageUrl)) &&
+				(!url.equals(((CustomWebView) view).getLoadedUrl())) &&
+				(RequestBlocker.getInstance().shouldBlock(view.getContext(), url))) {
+			return new WebResourceResponse("text/plain", "UTF-8", new ByteArrayInputStream(new byte[0]));
+		}
+		
+		return super.shouldInterceptRequest(view, url);
+	}
+	
 	@Override
 	public void onReceivedHttpAuthRequest(WebView view, final HttpAuthHandler handler, final String host, final String realm) {
 		String username = null;
@@ -229,6 +260,11 @@ public class CustomWebViewClient extends WebViewClient {
         }
 	}
 
+	private void setPageUrl(WebView view, String url) {
+		mPageUrl = url;
+		mPageWhiteListed = Controller.getInstance().getAdBlockWhiteListMatcher(view.getContext()).matches(url);
+	}
+
 	private boolean isExternalApplicationUrl(String url) {
 		return url.startsWith("vnd.") ||
 				url.startsWith("rtsp://") ||
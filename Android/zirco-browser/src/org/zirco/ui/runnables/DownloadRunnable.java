@@ -15,17 +15,15 @@
 
 package org.zirco.ui.runnables;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.Proxy;
 import java.net.URL;
-import java.net.URLConnection;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.zirco.controllers.Controller;
 import org.zirco.model.items.DownloadItem;
@@ -34,18 +32,74 @@ import org.zirco.utils.ProxySettings;
 
 import android.os.Handler;
 import android.os.Message;
+import android.os.Process;
 import android.preference.PreferenceManager;
 
+import com.psiphon3.psiphonlibrary.BackgroundExecutors;
+import com.psiphon3.psiphonlibrary.PsiphonData;
+
 /**
  * Background downloader.
+ * 
+ * A download interrupted by an I/O error, e.g. a tunnel reconnect, is saved
+ * and resumed once the tunnel is connected again, a few times unless it
+ * makes progress. The saved state also allows to resume it after an
+ * application restart.
  */
 public class DownloadRunnable implements Runnable {
-			
-	private static final int BUFFER_SIZE = 4096;
+	
+	/**
+	 * Downloads, and their segments after the first one, run on their own
+	 * threads rather than on the io executor: they can take minutes, and would
+	 * hold the few io threads needed by short transfers, or wait for each other.
+	 */
+	private static final ThreadFactory DOWNLOAD_THREAD_FACTORY = new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			return BackgroundExecutors.newThread("download", Process.THREAD_PRIORITY_BACKGROUND, runnable);
+		}
+	};
+	
+	private static final int MAX_RETRIES = 5;
+	private static final long RETRY_DELAY_MS = 2000;
+	
+	private static final long TUNNEL_POLL_INTERVAL_MS = 1000;
+	private static final long TUNNEL_WAIT_MS = 10 * 60 * 1000;
+	
+	private static final long SAVE_INTERVAL_MS = 5000;
 	
 	private DownloadItem mParent;
 	
-	private boolean mAborted;
+	private volatile boolean mAborted;
+	
+	private volatile SegmentedDownloader mDownloader = null;
+	
+	private int mNotifiedProgress = 0;
+	private volatile long mDownloaded = 0;
+	private long mLastSave = 0;
+	
+	/**
+	 * Attempts state. Attempts run one after the other, on download threads then the scheduled executor.
+	 */
+	private boolean mStarted = false;
+	private int mRetries = 0;
+	private long mTunnelWaitEnd = 0;
+	
+	/**
+	 * Wait for the tunnel to be connected, for a while, then run a new attempt.
+	 */
+	private final Runnable mRetryRunnable = new Runnable() {
+		@Override
+		public void run() {
+			if ((!mAborted) &&
+					(!isTunnelConnected()) &&
+					(System.currentTimeMillis() < mTunnelWaitEnd)) {
+				BackgroundExecutors.scheduled().schedule(this, TUNNEL_POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+			} else {
+				start();
+			}
+		}
+	};
 	
 	/**
 	 * Contructor.
@@ -56,6 +110,13 @@ public class DownloadRunnable implements Runnable {
 		mAborted = false;
 	}
 	
+	/**
+	 * Run a new attempt on its own thread.
+	 */
+	public void start() {
+		DOWNLOAD_THREAD_FACTORY.newThread(this).start();
+	}
+	
 	private Handler mHandler = new Handler() {				
 		
 		public void handleMessage(Message msg) {
@@ -102,97 +163,64 @@ public class DownloadRunnable implements Runnable {
 		
 		if (downloadFile != null) {
 			
-			if (downloadFile.exists()) {
-				downloadFile.delete();
+			if (!mStarted) {
+				mStarted = true;
+				
+				// A saved download is resumed, a new one replaces any file of the same name.
+				if ((mParent.getSegments() == null) &&
+						(downloadFile.exists())) {
+					downloadFile.delete();
+				}
+				
+				mParent.onStart();
 			}
 			
-			BufferedInputStream bis = null;
-			BufferedOutputStream bos = null;
+			SegmentedDownloader downloader = null;
+			long downloadedBefore = mDownloaded;
 			
 			try {
 				
-				mParent.onStart();
-				
 				URL url = new URL(mParent.getUrl());
 				
-                URLConnection conn;
-
-                //Psiphon we are opening connection via local proxy
+				//Psiphon we are opening connection via local proxy
+				Proxy localProxy = null;
 				int localProxyPort = Controller.getInstance().getPreferences().getInt("localProxyPort", 0);
 				
 				if(localProxyPort > 0)
 				{
-				    Proxy localProxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress("localhost", localProxyPort));
-				    conn = url.openConnection(localProxy);
-				}
-				else 
-				{
-				    conn = url.openConnection();
+				    localProxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress("localhost", localProxyPort));
 				}
 				//end Psiphon changes
 				
-				InputStream is = conn.getInputStream();
-							
-				int size = conn.getContentLength();
+				downloader = new SegmentedDownloader(url, localProxy, downloadFile, DOWNLOAD_THREAD_FACTORY,
+						new SegmentedDownloader.ProgressListener() {
+							@Override
+							public void onProgress(long downloaded, long size) {
+								notifyProgress(downloaded, size);
+							}
+						});
+				downloader.setResumeState(mParent.getSize(), mParent.getETag(), mParent.getLastModified(), mParent.getSegments());
 				
-				double oldCompleted = 0;
-				double completed = 0;
-				
-				bis = new BufferedInputStream(is);
-				bos = new BufferedOutputStream(new FileOutputStream(downloadFile));
-				
-				boolean downLoading = true;
-				byte[] buffer = new byte[BUFFER_SIZE];
-				int downloaded = 0;
-				int read;
-				
-				while ((downLoading) &&
-						(!mAborted)) {
-
-					if ((size - downloaded < BUFFER_SIZE) &&
-							(size - downloaded > 0)) {
-						buffer = new byte[size - downloaded];
-					}
-
-					read = bis.read(buffer);
-					
-					if (read > 0) {
-						bos.write(buffer, 0, read);
-						downloaded += read;
-						
-						completed = ((downloaded * 100f) / size);
-						
-					} else {
-						downLoading = false;
-					}
-					
-					// Notify each 5% or more.
-					if (oldCompleted + 5 < completed) {
-						mParent.onProgress((int) completed);
-						oldCompleted = completed;
-					}
+				mDownloader = downloader;
+				if (mAborted) {
+					downloader.abort();
 				}
+				
+				downloader.download();
 
 			} catch (MalformedURLException mue) {
 				mParent.setErrorMessage(mue.getMessage());
+			} catch (FileNotFoundException fnfe) {
+				// Missing on the server, or can't be written: retrying won't help.
+				mParent.setErrorMessage(fnfe.getMessage());
 			} catch (IOException ioe) {
-				mParent.setErrorMessage(ioe.getMessage());
-			} finally {
-				
-				if (bis != null) {
-					try {
-						bis.close();
-					} catch (IOException ioe) {
-						mParent.setErrorMessage(ioe.getMessage());
-					}
+				if (downloader != null) {
+					saveResumeState(downloader);
+				}
+				if (scheduleRetry(downloadedBefore)) {
+					return;
 				}
-				if (bos != null) {
-					try {
-						bos.close();
-					} catch (IOException ioe) {
-						mParent.setErrorMessage(ioe.getMessage());
-					}
-				}							
+				mParent.setErrorMessage(ioe.getMessage());
 			}
 		
 			if (mAborted) {
@@ -211,6 +239,72 @@ public class DownloadRunnable implements Runnable {
 	 */
 	public void abort() {
 		mAborted = true;
+		
+		SegmentedDownloader downloader = mDownloader;
+		if (downloader != null) {
+			downloader.abort();
+		}
+	}
+	
+	/**
+	 * Notify the progress each 5% or more. Called from all the download threads.
+	 * @param downloaded The number of bytes downloaded.
+	 * @param size The file size, or -1 if unknown.
+	 */
+	private synchronized void notifyProgress(long downloaded, long size) {
+		mDownloaded = downloaded;
+		
+		if (size > 0) {
+			int completed = (int) ((downloaded * 100) / size);
+			if (completed >= mNotifiedProgress + 5) {
+				mParent.onProgress(completed);
+				mNotifiedProgress = completed;
+			}
+		}
+		
+		long now = System.currentTimeMillis();
+		SegmentedDownloader downloader = mDownloader;
+		if ((downloader != null) &&
+				(now - mLastSave >= SAVE_INTERVAL_MS)) {
+			mLastSave = now;
+			saveResumeState(downloader);
+		}
+	}
+	
+	private void saveResumeState(SegmentedDownloader downloader) {
+		mParent.setResumeState(downloader.getSize(), downloader.getETag(), downloader.getLastModified(), downloader.getSegments());
+	}
+	
+	/**
+	 * Schedule a new attempt after a failed one, unless aborted or failing repeatedly.
+	 * @param downloadedBefore The downloaded bytes before the failed attempt.
+	 * @return True if a new attempt is scheduled.
+	 */
+	private boolean scheduleRetry(long downloadedBefore) {
+		if (mAborted) {
+			return false;
+		}
+		
+		if (mDownloaded > downloadedBefore) {
+			mRetries = 0;
+		}
+		if (mRetries >= MAX_RETRIES) {
+			return false;
+		}
+		mRetries++;
+		
+		mTunnelWaitEnd = System.currentTimeMillis() + TUNNEL_WAIT_MS;
+		BackgroundExecutors.scheduled().schedule(mRetryRunnable, RETRY_DELAY_MS * mRetries, TimeUnit.MILLISECONDS);
+		return true;
+	}
+	
+	/**
+	 * Check if the tunnel is connected. Always true when not downloading through the local proxy.
+	 * @return True if the tunnel is connected.
+	 */
+	private static boolean isTunnelConnected() {
+		return (Controller.getInstance().getPreferences().getInt("localProxyPort", 0) <= 0) ||
+				(PsiphonData.getPsiphonData().getDataTransferStats().isConnected());
 	}
 
 }
@@ -0,0 +1,502 @@
+/*
+ * Zirco Browser for Android
+ *
+ * Copyright (C) 2010 J. Devauchelle and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 3 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package org.zirco.ui.runnables;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads an url into a file through a proxy.
+ *
+ * The first request asks for the whole file as a range. When the server
+ * answers with a partial content, the file is preallocated and split in
+ * segments, a few for a large file, each downloaded by its own request and
+ * written at its position in the file: a single stream can't fill a
+ * high-latency tunnel. Otherwise the file is downloaded as a single stream,
+ * on the first request.
+ *
+ * Segmented downloads can be resumed, e.g. after a tunnel reconnect or an
+ * application restart, from the state given by getSegments(): the missing
+ * ranges are asked for with an If-Range validator, and the file is downloaded
+ * again from the start if it changed on the server.
+ */
+final class SegmentedDownloader {
+
+	/**
+	 * Notified of the progress, from any of the download threads.
+	 */
+	interface ProgressListener {
+		void onProgress(long downloaded, long size);
+	}
+
+	/**
+	 * Thrown when the file can't be resumed, e.g. it changed on the server.
+	 */
+	private static final class CannotResumeException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		private CannotResumeException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * A range of the file, downloaded from its position up to its end, excluded.
+	 */
+	private static final class Segment {
+		private volatile long mPosition;
+		private final long mEnd;
+
+		private Segment(long position, long end) {
+			mPosition = position;
+			mEnd = end;
+		}
+	}
+
+	private static final int MAX_SEGMENTS = 4;
+	private static final long MIN_SEGMENT_SIZE = 512 * 1024;
+
+	private static final int BUFFER_SIZE = 32 * 1024;
+
+	private static final int CONNECT_TIMEOUT_MS = 30000;
+	private static final int READ_TIMEOUT_MS = 60000;
+
+	private final URL mUrl;
+	private final Proxy mProxy;
+	private final File mFile;
+	private final ThreadFactory mThreadFactory;
+	private final ProgressListener mListener;
+
+	private final AtomicLong mDownloaded = new AtomicLong(0);
+	private volatile long mSize = -1;
+	private volatile String mETag = null;
+	private volatile String mLastModified = null;
+	private volatile Segment[] mSegments = null;
+
+	private volatile boolean mAborted = false;
+	private volatile IOException mFailure = null;
+
+	/**
+	 * Constructor.
+	 * @param url The url to download.
+	 * @param proxy The proxy to connect through, or null for a direct connection.
+	 * @param file The file to write.
+	 * @param threadFactory Factory of the threads downloading the segments after the first one.
+	 * @param listener The progress listener.
+	 */
+	SegmentedDownloader(URL url, Proxy proxy, File file, ThreadFactory threadFactory, ProgressListener listener) {
+		mUrl = url;
+		mProxy = proxy;
+		mFile = file;
+		mThreadFactory = threadFactory;
+		mListener = listener;
+	}
+
+	/**
+	 * Resume a previous download of the same url into the same file. Ignored
+	 * if the state is invalid, in which case the file is downloaded from the start.
+	 * @param size The file size.
+	 * @param eTag The file ETag, or null.
+	 * @param lastModified The file Last-Modified date, or null.
+	 * @param segments The segments, as returned by getSegments().
+	 */
+	void setResumeState(long size, String eTag, String lastModified, String segments) {
+		if ((size <= 0) ||
+				(segments == null) ||
+				(segments.length() == 0)) {
+			return;
+		}
+
+		String[] ranges = segments.split(",");
+		Segment[] parsed = new Segment[ranges.length];
+		try {
+			for (int i = 0; i < ranges.length; i++) {
+				int dash = ranges[i].indexOf('-');
+				long position = Long.parseLong(ranges[i].substring(0, dash));
+				long end = Long.parseLong(ranges[i].substring(dash + 1));
+				if ((position < 0) ||
+						(position > end) ||
+						(end > size)) {
+					return;
+				}
+				parsed[i] = new Segment(position, end);
+			}
+		} catch (NumberFormatException e) {
+			return;
+		} catch (IndexOutOfBoundsException e) {
+			return;
+		}
+
+		mSize = size;
+		mETag = eTag;
+		mLastModified = lastModified;
+		mSegments = parsed;
+	}
+
+	/**
+	 * Download the file. Returns when the file is complete, or aborted.
+	 * @throws IOException If the download fails.
+	 */
+	void download() throws IOException {
+		if (mAborted) {
+			return;
+		}
+
+		if (mSegments != null) {
+			try {
+				resume();
+				return;
+			} catch (CannotResumeException e) {
+				// Download the file again.
+				mFailure = null;
+			}
+		}
+
+		downloadNew();
+	}
+
+	/**
+	 * Abort the download.
+	 */
+	void abort() {
+		mAborted = true;
+	}
+
+	/**
+	 * Get the size of the file, once known.
+	 * @return The size, or -1 if unknown.
+	 */
+	long getSize() {
+		return mSize;
+	}
+
+	/**
+	 * Get the ETag of the file, once known.
+	 * @return The ETag, or null.
+	 */
+	String getETag() {
+		return mETag;
+	}
+
+	/**
+	 * Get the Last-Modified date of the file, once known.
+	 * @return The Last-Modified date, or null.
+	 */
+	String getLastModified() {
+		return mLastModified;
+	}
+
+	/**
+	 * Get the state of the segments, as "position-end" ranges separated by commas.
+	 * @return The segments, or null if the download can't be resumed.
+	 */
+	String getSegments() {
+		Segment[] segments = mSegments;
+		if (segments == null) {
+			return null;
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (Segment segment : segments) {
+			if (sb.length() > 0) {
+				sb.append(',');
+			}
+			sb.append(segment.mPosition).append('-').append(segment.mEnd);
+		}
+		return sb.toString();
+	}
+
+	private void downloadNew() throws IOException {
+		mDownloaded.set(0);
+		mSegments = null;
+
+		URLConnection conn = openConnection(0, -1, null);
+		try {
+			InputStream is = conn.getInputStream();
+			try {
+				boolean partial = getResponseCode(conn) == HttpURLConnection.HTTP_PARTIAL;
+				if (partial) {
+					mSize = parseContentRangeSize(conn.getHeaderField("Content-Range"));
+				} else {
+					mSize = conn.getContentLength();
+				}
+				mETag = conn.getHeaderField("ETag");
+				mLastModified = conn.getHeaderField("Last-Modified");
+
+				if ((partial) &&
+						(mSize > 0)) {
+					int count = (int) Math.max(1, Math.min(MAX_SEGMENTS, mSize / MIN_SEGMENT_SIZE));
+					Segment[] segments = new Segment[count];
+					for (int i = 0; i < count; i++) {
+						segments[i] = new Segment((mSize * i) / count, (mSize * (i + 1)) / count);
+					}
+					mSegments = segments;
+
+					// The first segment is read from the first request, which asked for the whole file.
+					downloadSegments(segments, is);
+				} else {
+					downloadStream(is);
+				}
+			} finally {
+				is.close();
+			}
+		} finally {
+			if (conn instanceof HttpURLConnection) {
+				((HttpURLConnection) conn).disconnect();
+			}
+		}
+	}
+
+	private void resume() throws IOException {
+		if (getIfRangeValidator() == null) {
+			throw new CannotResumeException("No validator to resume the download.");
+		}
+		if (mFile.length() != mSize) {
+			throw new CannotResumeException("The file was modified.");
+		}
+
+		List<Segment> incomplete = new ArrayList<Segment>();
+		long remaining = 0;
+		for (Segment segment : mSegments) {
+			if (segment.mPosition < segment.mEnd) {
+				incomplete.add(segment);
+				remaining += segment.mEnd - segment.mPosition;
+			}
+		}
+		mDownloaded.set(mSize - remaining);
+
+		if (!incomplete.isEmpty()) {
+			downloadSegments(incomplete.toArray(new Segment[incomplete.size()]), null);
+		}
+	}
+
+	private void downloadStream(InputStream is) throws IOException {
+		OutputStream os = new FileOutputStream(mFile);
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int read;
+			while ((!mAborted) &&
+					((read = is.read(buffer)) > 0)) {
+				os.write(buffer, 0, read);
+				mListener.onProgress(mDownloaded.addAndGet(read), mSize);
+			}
+		} finally {
+			os.close();
+		}
+
+		if ((!mAborted) &&
+				(mSize >= 0) &&
+				(mDownloaded.get() < mSize)) {
+			throw new IOException("Connection closed after " + mDownloaded.get() + " of " + mSize + " bytes.");
+		}
+	}
+
+	/**
+	 * Download segments in parallel, the first one on the current thread.
+	 * @param segments The segments.
+	 * @param firstStream The stream of the first segment, or null to request it.
+	 */
+	private void downloadSegments(final Segment[] segments, InputStream firstStream) throws IOException {
+		final String validator = getIfRangeValidator();
+
+		RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+		try {
+			file.setLength(mSize);
+			final FileChannel channel = file.getChannel();
+
+			Thread[] threads = new Thread[segments.length - 1];
+			for (int i = 1; i < segments.length; i++) {
+				final Segment segment = segments[i];
+				threads[i - 1] = mThreadFactory.newThread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							downloadSegment(channel, segment, validator);
+						} catch (IOException e) {
+							fail(e);
+						}
+					}
+				});
+				threads[i - 1].start();
+			}
+
+			try {
+				if (firstStream != null) {
+					copySegment(firstStream, channel, segments[0]);
+				} else {
+					downloadSegment(channel, segments[0], validator);
+				}
+			} catch (IOException e) {
+				fail(e);
+			}
+
+			for (Thread thread : threads) {
+				try {
+					thread.join();
+				} catch (InterruptedException e) {
+					abort();
+					Thread.currentThread().interrupt();
+				}
+			}
+		} finally {
+			file.close();
+		}
+
+		if (!mAborted) {
+			if (mFailure != null) {
+				throw mFailure;
+			}
+			for (Segment segment : segments) {
+				if (segment.mPosition != segment.mEnd) {
+					throw new IOException("Segment " + segment.mPosition + "-" + (segment.mEnd - 1) + " is incomplete.");
+				}
+			}
+		}
+	}
+
+	private void downloadSegment(FileChannel channel, Segment segment, String validator) throws IOException {
+		URLConnection conn = openConnection(segment.mPosition, segment.mEnd - 1, validator);
+		try {
+			InputStream is = conn.getInputStream();
+			try {
+				int responseCode = getResponseCode(conn);
+				if ((responseCode == HttpURLConnection.HTTP_OK) &&
+						(validator != null)) {
+					throw new CannotResumeException("The file changed on the server.");
+				}
+
+				String contentRange = conn.getHeaderField("Content-Range");
+				if ((responseCode != HttpURLConnection.HTTP_PARTIAL) ||
+						(contentRange == null) ||
+						(!contentRange.startsWith("bytes " + segment.mPosition + "-"))) {
+					throw new IOException("Server did not send the range starting at " + segment.mPosition + ".");
+				}
+
+				copySegment(is, channel, segment);
+			} finally {
+				is.close();
+			}
+		} finally {
+			if (conn instanceof HttpURLConnection) {
+				((HttpURLConnection) conn).disconnect();
+			}
+		}
+	}
+
+	/**
+	 * Copy a stream at the segment position in the file, until the end of the segment.
+	 */
+	private void copySegment(InputStream is, FileChannel channel, Segment segment) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+
+		while ((segment.mPosition < segment.mEnd) &&
+				(!mAborted) &&
+				(mFailure == null)) {
+			int read = is.read(buffer, 0, (int) Math.min(buffer.length, segment.mEnd - segment.mPosition));
+			if (read <= 0) {
+				throw new IOException("Connection closed at " + segment.mPosition + " of " + mSize + " bytes.");
+			}
+
+			ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, read);
+			long position = segment.mPosition;
+			while (bytes.hasRemaining()) {
+				position += channel.write(bytes, position);
+			}
+			segment.mPosition = position;
+			mListener.onProgress(mDownloaded.addAndGet(read), mSize);
+		}
+	}
+
+	private synchronized void fail(IOException e) {
+		if (mFailure == null) {
+			mFailure = e;
+		}
+	}
+
+	/**
+	 * Get the validator for If-Range: a strong ETag, or else the Last-Modified date.
+	 * @return The validator, or null if there is none.
+	 */
+	private String getIfRangeValidator() {
+		String eTag = mETag;
+		if ((eTag != null) &&
+				(!eTag.startsWith("W/"))) {
+			return eTag;
+		}
+		return mLastModified;
+	}
+
+	/**
+	 * Open a connection for a range of the file.
+	 * @param first The first byte.
+	 * @param last The last byte, or -1 for the end of the file.
+	 * @param validator The If-Range validator, or null.
+	 */
+	private URLConnection openConnection(long first, long last, String validator) throws IOException {
+		URLConnection conn = mProxy != null ? mUrl.openConnection(mProxy) : mUrl.openConnection();
+		conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+		conn.setReadTimeout(READ_TIMEOUT_MS);
+
+		// Ranges must be of the file itself, not of a compressed version.
+		conn.setRequestProperty("Accept-Encoding", "identity");
+		conn.setRequestProperty("Range", "bytes=" + first + "-" + (last >= 0 ? Long.toString(last) : ""));
+		if (validator != null) {
+			conn.setRequestProperty("If-Range", validator);
+		}
+
+		return conn;
+	}
+
+	private static int getResponseCode(URLConnection conn) throws IOException {
+		if (conn instanceof HttpURLConnection) {
+			return ((HttpURLConnection) conn).getResponseCode();
+		}
+		return -1;
+	}
+
+	/**
+	 * Get the complete size from a "bytes first-last/size" Content-Range.
+	 * @return The size, or -1 if unknown.
+	 */
+	private static long parseContentRangeSize(String contentRange) {
+		if (contentRange != null) {
+			int slash = contentRange.lastIndexOf('/');
+			if (slash != -1) {
+				try {
+					return Long.parseLong(contentRange.substring(slash + 1).trim());
+				} catch (NumberFormatException e) {
+					return -1;
+				}
+			}
+		}
+		return -1;
+	}
+
+}
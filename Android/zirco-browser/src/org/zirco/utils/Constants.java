@@ -81,6 +81,8 @@ public class Constants {
 	public static final String PREFERENCES_DEFAULT_ZOOM_LEVEL = "DefaultZoomLevel";
 	
 	public static final String PREFERENCES_BROWSER_HISTORY_SIZE = "BrowserHistorySize";
+	public static final String PREFERENCES_BROWSER_HISTORY_LAST_TRUNCATION_DATE = "BrowserHistoryLastTruncationDate";
+	public static final String PREFERENCES_BROWSER_HISTORY_LAST_TRUNCATION_SIZE = "BrowserHistoryLastTruncationSize";
 	public static final String PREFERENCES_BROWSER_ENABLE_JAVASCRIPT = "BrowserEnableJavascript";
 	public static final String PREFERENCES_BROWSER_ENABLE_IMAGES = "BrowserEnableImages";
 	public static final String PREFERENCES_BROWSER_USE_WIDE_VIEWPORT = "BrowserUseWideViewPort";
@@ -0,0 +1,295 @@
+/*
+ * Zirco Browser for Android
+ *
+ * Copyright (C) 2010 J. Devauchelle and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 3 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package org.zirco.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.zirco.R;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Decides which requests of a page should not be loaded, e.g. ads and trackers,
+ * so that they do not waste tunnel bandwidth.
+ *
+ * Rules are hosts, which also match their sub-domains, optionally followed by
+ * a path prefix, and are loaded from the request_blocker raw resource. Only
+ * their 64 bits hashes are kept, sorted, behind a Bloom filter which rejects
+ * most of the urls without searching the hashes. Urls are hashed in place,
+ * without allocation.
+ */
+public final class RequestBlocker {
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private static final int BLOOM_BITS_PER_RULE = 16;
+	private static final int BLOOM_HASHES = 4;
+
+	/**
+	 * A blocked response is never downloaded, so its size is unknown: the saved
+	 * bytes are estimated with the typical size of an ad or tracker response.
+	 */
+	private static final long ESTIMATED_BYTES_PER_REQUEST = 8 * 1024;
+
+	/**
+	 * Compiled rules. Immutable, so that they can be shared with the threads
+	 * on which WebView intercepts requests.
+	 */
+	private static final class Rules {
+		private final long[] mHashes;
+		private final long[] mBloom;
+		private final int mBloomMask;
+		private final boolean mHasPathRules;
+
+		private Rules(List<String> rules) {
+			mHashes = new long[rules.size()];
+
+			int bloomBits = 64;
+			while (bloomBits < rules.size() * BLOOM_BITS_PER_RULE) {
+				bloomBits <<= 1;
+			}
+			mBloom = new long[bloomBits / 64];
+			mBloomMask = bloomBits - 1;
+
+			boolean hasPathRules = false;
+			for (int i = 0; i < mHashes.length; i++) {
+				String rule = rules.get(i);
+				long hash = FNV_OFFSET_BASIS;
+				for (int j = 0; j < rule.length(); j++) {
+					hash = (hash ^ rule.charAt(j)) * FNV_PRIME;
+				}
+				mHashes[i] = hash;
+
+				int h1 = (int) hash;
+				int h2 = (int) (hash >>> 32);
+				for (int k = 0; k < BLOOM_HASHES; k++) {
+					int bit = (h1 + (k * h2)) & mBloomMask;
+					mBloom[bit >>> 6] |= 1L << bit;
+				}
+
+				if (rule.indexOf('/') != -1) {
+					hasPathRules = true;
+				}
+			}
+			Arrays.sort(mHashes);
+			mHasPathRules = hasPathRules;
+		}
+
+		private boolean contains(long hash) {
+			int h1 = (int) hash;
+			int h2 = (int) (hash >>> 32);
+			for (int k = 0; k < BLOOM_HASHES; k++) {
+				int bit = (h1 + (k * h2)) & mBloomMask;
+				if ((mBloom[bit >>> 6] & (1L << bit)) == 0) {
+					return false;
+				}
+			}
+			return Arrays.binarySearch(mHashes, hash) >= 0;
+		}
+	}
+
+	private volatile Rules mRules = null;
+
+	private final AtomicInteger mBlockedRequestCount = new AtomicInteger(0);
+
+	/**
+	 * Holder for singleton implementation.
+	 */
+	private static final class RequestBlockerHolder {
+		private static final RequestBlocker INSTANCE = new RequestBlocker();
+		/**
+		 * Private Constructor.
+		 */
+		private RequestBlockerHolder() { }
+	}
+
+	/**
+	 * Get the unique instance of the RequestBlocker.
+	 * @return The instance of the RequestBlocker
+	 */
+	public static RequestBlocker getInstance() {
+		return RequestBlockerHolder.INSTANCE;
+	}
+
+	/**
+	 * Private Constructor.
+	 */
+	private RequestBlocker() { }
+
+	/**
+	 * Check if a request should be blocked, and count it if so. Loads the rules
+	 * on first use, so should not be called on the UI thread.
+	 * @param context The current context.
+	 * @param url The requested url.
+	 * @return True if the request should be blocked.
+	 */
+	public boolean shouldBlock(Context context, String url) {
+		if (url == null) {
+			return false;
+		}
+
+		int length = url.length();
+		int schemeEnd = url.indexOf("://");
+		if ((schemeEnd != 4) &&
+				(schemeEnd != 5)) {
+			return false;
+		}
+		if ((!url.regionMatches(true, 0, "http", 0, 4)) ||
+				((schemeEnd == 5) && (Character.toLowerCase(url.charAt(4)) != 's'))) {
+			return false;
+		}
+
+		// Authority is [user info@]host[:port].
+		int hostStart = schemeEnd + 3;
+		int pathStart = hostStart;
+		while (pathStart < length) {
+			char c = url.charAt(pathStart);
+			if ((c == '/') || (c == '?') || (c == '#')) {
+				break;
+			} else if (c == '@') {
+				hostStart = pathStart + 1;
+			}
+			pathStart++;
+		}
+		int hostEnd = hostStart;
+		while ((hostEnd < pathStart) &&
+				(url.charAt(hostEnd) != ':')) {
+			hostEnd++;
+		}
+
+		int pathEnd = pathStart;
+		while ((pathEnd < length) &&
+				(url.charAt(pathEnd) != '?') &&
+				(url.charAt(pathEnd) != '#')) {
+			pathEnd++;
+		}
+
+		Rules rules = getRules(context);
+
+		// Try the host and each of its parent domains, alone then followed by each path prefix.
+		int suffixStart = hostStart;
+		while (suffixStart < hostEnd) {
+			long hash = FNV_OFFSET_BASIS;
+			for (int i = suffixStart; i < hostEnd; i++) {
+				char c = url.charAt(i);
+				if ((c >= 'A') && (c <= 'Z')) {
+					c += 'a' - 'A';
+				}
+				hash = (hash ^ c) * FNV_PRIME;
+			}
+			if (rules.contains(hash)) {
+				mBlockedRequestCount.incrementAndGet();
+				return true;
+			}
+
+			if (rules.mHasPathRules) {
+				for (int i = pathStart; i < pathEnd; i++) {
+					char c = url.charAt(i);
+					hash = (hash ^ c) * FNV_PRIME;
+					if (((c == '/') || (i == pathEnd - 1)) &&
+							(rules.contains(hash))) {
+						mBlockedRequestCount.incrementAndGet();
+						return true;
+					}
+				}
+			}
+
+			int dot = url.indexOf('.', suffixStart);
+			if ((dot == -1) ||
+					(dot >= hostEnd)) {
+				break;
+			}
+			suffixStart = dot + 1;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Get the number of requests blocked since the application started.
+	 * @return The number of blocked requests.
+	 */
+	public int getBlockedRequestCount() {
+		return mBlockedRequestCount.get();
+	}
+
+	/**
+	 * Get an estimate of the bytes not downloaded thanks to blocked requests.
+	 * @return The estimated number of bytes.
+	 */
+	public long getEstimatedBlockedBytes() {
+		return mBlockedRequestCount.get() * ESTIMATED_BYTES_PER_REQUEST;
+	}
+
+	private Rules getRules(Context context) {
+		Rules rules = mRules;
+		if (rules == null) {
+			synchronized (this) {
+				rules = mRules;
+				if (rules == null) {
+					rules = new Rules(loadRules(context));
+					mRules = rules;
+				}
+			}
+		}
+		return rules;
+	}
+
+	private static List<String> loadRules(Context context) {
+		List<String> rules = new ArrayList<String>();
+
+		InputStream is = context.getResources().openRawResource(R.raw.request_blocker);
+		if (is != null) {
+			try {
+				BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+				String line;
+				while ((line = reader.readLine()) != null) {
+					line = line.trim();
+					if ((line.length() > 0) &&
+							(!line.startsWith("//"))) {
+						// Hosts are case insensitive, paths are not.
+						int slash = line.indexOf('/');
+						if (slash == -1) {
+							rules.add(line.toLowerCase());
+						} else {
+							rules.add(line.substring(0, slash).toLowerCase() + line.substring(slash));
+						}
+					}
+				}
+			} catch (IOException e) {
+				Log.w("RequestBlocker", "Unable to load rules: " + e.getMessage());
+			} finally {
+				try {
+					is.close();
+				} catch (IOException e) {
+					Log.w("RequestBlocker", "Unable to load rules: " + e.getMessage());
+				}
+			}
+		}
+
+		return rules;
+	}
+
+}
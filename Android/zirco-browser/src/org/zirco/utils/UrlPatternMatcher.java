@@ -0,0 +1,180 @@
+/*
+ * Zirco Browser for Android
+ *
+ * Copyright (C) 2010 J. Devauchelle and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 3 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package org.zirco.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Checks whether an url contains any of a list of patterns, e.g. the mobile
+ * view, desktop view or AdBlock white lists, in a single pass over the url.
+ *
+ * The patterns are compiled into an Aho-Corasick automaton, so that matching
+ * is linear in the url length whatever the number of patterns. Matching is
+ * case sensitive, as String.contains() is. Instances are immutable and may
+ * be shared between threads.
+ */
+public final class UrlPatternMatcher {
+
+	private static final int ROOT = 0;
+
+	/**
+	 * Transitions of each node, as sorted characters and their target nodes.
+	 */
+	private final char[][] mKeys;
+	private final int[][] mTargets;
+
+	/**
+	 * Node of the longest proper suffix of each node's string which is also in the trie.
+	 */
+	private final int[] mFailures;
+
+	/**
+	 * Whether a pattern ends at each node, or at one of its failure nodes.
+	 */
+	private final boolean[] mTerminals;
+
+	private final boolean mMatchesAll;
+
+	/**
+	 * Constructor.
+	 * @param patterns The patterns. Null patterns are ignored; an empty pattern matches any url.
+	 */
+	public UrlPatternMatcher(Collection<String> patterns) {
+		List<TreeMap<Character, Integer>> children = new ArrayList<TreeMap<Character, Integer>>();
+		List<Boolean> terminals = new ArrayList<Boolean>();
+		children.add(new TreeMap<Character, Integer>());
+		terminals.add(Boolean.FALSE);
+
+		boolean matchesAll = false;
+
+		if (patterns != null) {
+			for (String pattern : patterns) {
+				if (pattern == null) {
+					continue;
+				}
+				if (pattern.length() == 0) {
+					matchesAll = true;
+					continue;
+				}
+
+				int node = ROOT;
+				for (int i = 0; i < pattern.length(); i++) {
+					Character c = Character.valueOf(pattern.charAt(i));
+					Integer child = children.get(node).get(c);
+					if (child == null) {
+						child = Integer.valueOf(children.size());
+						children.add(new TreeMap<Character, Integer>());
+						terminals.add(Boolean.FALSE);
+						children.get(node).put(c, child);
+					}
+					node = child.intValue();
+				}
+				terminals.set(node, Boolean.TRUE);
+			}
+		}
+
+		int count = children.size();
+		mKeys = new char[count][];
+		mTargets = new int[count][];
+		mFailures = new int[count];
+		mTerminals = new boolean[count];
+		mMatchesAll = matchesAll;
+
+		for (int node = 0; node < count; node++) {
+			TreeMap<Character, Integer> nodeChildren = children.get(node);
+			mKeys[node] = new char[nodeChildren.size()];
+			mTargets[node] = new int[nodeChildren.size()];
+			int i = 0;
+			for (Map.Entry<Character, Integer> entry : nodeChildren.entrySet()) {
+				mKeys[node][i] = entry.getKey().charValue();
+				mTargets[node][i] = entry.getValue().intValue();
+				i++;
+			}
+			mTerminals[node] = terminals.get(node).booleanValue();
+		}
+
+		// Breadth first, so that a node's failure is computed before its children's.
+		int[] queue = new int[count];
+		int head = 0;
+		int tail = 0;
+		for (int child : mTargets[ROOT]) {
+			mFailures[child] = ROOT;
+			queue[tail++] = child;
+		}
+		while (head < tail) {
+			int node = queue[head++];
+			for (int i = 0; i < mKeys[node].length; i++) {
+				char c = mKeys[node][i];
+				int child = mTargets[node][i];
+
+				int failure = mFailures[node];
+				int next = getChild(failure, c);
+				while ((next < 0) &&
+						(failure != ROOT)) {
+					failure = mFailures[failure];
+					next = getChild(failure, c);
+				}
+				mFailures[child] = next >= 0 ? next : ROOT;
+				mTerminals[child] |= mTerminals[mFailures[child]];
+
+				queue[tail++] = child;
+			}
+		}
+	}
+
+	/**
+	 * Check if the url contains any of the patterns.
+	 * @param url The url to check.
+	 * @return True if a pattern is found in the url.
+	 */
+	public boolean matches(String url) {
+		if (url == null) {
+			return false;
+		}
+		if (mMatchesAll) {
+			return true;
+		}
+
+		int node = ROOT;
+		for (int i = 0; i < url.length(); i++) {
+			char c = url.charAt(i);
+			int next = getChild(node, c);
+			while ((next < 0) &&
+					(node != ROOT)) {
+				node = mFailures[node];
+				next = getChild(node, c);
+			}
+			node = next >= 0 ? next : ROOT;
+
+			if (mTerminals[node]) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private int getChild(int node, char c) {
+		int i = Arrays.binarySearch(mKeys[node], c);
+		return i >= 0 ? mTargets[node][i] : -1;
+	}
+
+}
@@ -15,7 +15,6 @@
 
 package org.zirco.utils;
 
-import java.util.Iterator;
 
 import org.zirco.controllers.Controller;
 
@@ -80,20 +79,7 @@ public class UrlUtils {
 	 * @return True if an item in the list match the given url.
 	 */
 	public static boolean checkInMobileViewUrlList(Context context, String url) {
-		
-		if (url != null) {
-			boolean inList = false;
-			Iterator<String> iter = Controller.getInstance().getMobileViewUrlList(context).iterator();			
-			while ((iter.hasNext()) &&
-					(!inList)) {
-				if (url.contains(iter.next())) {
-					inList = true;
-				}
-			}
-			return inList;
-		} else {
-			return false;
-		}
+		return Controller.getInstance().getMobileViewUrlMatcher(context).matches(url);
 	}
 	
 	   /**
@@ -103,20 +89,7 @@ public class UrlUtils {
      * @return True if an item in the list match the given url.
      */
     public static boolean checkInDesktopViewUrlList(Context context, String url) {
-        
-        if (url != null) {
-            boolean inList = false;
-            Iterator<String> iter = Controller.getInstance().getDesktopViewUrlList(context).iterator();          
-            while ((iter.hasNext()) &&
-                    (!inList)) {
-                if (url.contains(iter.next())) {
-                    inList = true;
-                }
-            }
-            return inList;
-        } else {
-            return false;
-        }
+        return Controller.getInstance().getDesktopViewUrlMatcher(context).matches(url);
     }
 	
 }
@@ -0,0 +1,246 @@
+/*
+ * Zirco Browser for Android
+ *
+ * Copyright (C) 2010 J. Devauchelle and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 3 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package org.zirco.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+// Checks UrlSuggestionScorer against simple references, then benchmarks
+// scoring 10k history candidates against the split()-based computeNote it
+// replaced. The scorer is plain Java; from Android/zirco-browser:
+//
+//   javac -d /tmp/scorer src/org/zirco/model/UrlSuggestionScorer.java tests/org/zirco/model/UrlSuggestionScorerBenchmark.java
+//   java -cp /tmp/scorer org.zirco.model.UrlSuggestionScorerBenchmark
+//
+// Prints "OK" after the checks, or throws on the first mismatch, and then
+// the time per pattern of each approach.
+public class UrlSuggestionScorerBenchmark {
+
+	private static final int CANDIDATES = 10000;
+	private static final int SHOWN = 50;
+	private static final int ROUNDS = 20;
+
+	private static final String[] PATTERNS = { "a", "go", "news", "wiki", "psiphon", "http" };
+
+	private static final String[] WORDS = { "news", "google", "search", "wiki", "mail", "video", "the", "and",
+		"world", "sport", "weather", "map", "psiphon", "blog", "forum", "shop", "photo", "music", "home", "page",
+		"Go", "NEWS", "Wikipedia", "\u00e9t\u00e9", "\u0130stanbul", "\u65b0\u95fb" };
+
+	private static final class Candidate {
+		final String mTitle;
+		final String mUrl;
+		final String mLowerTitle;
+		final String mLowerUrl;
+		final float mWeight;
+		float mNote;
+
+		Candidate(String title, String url, float weight) {
+			mTitle = title;
+			mUrl = url;
+			mLowerTitle = title.toLowerCase();
+			mLowerUrl = url.toLowerCase();
+			mWeight = weight;
+		}
+	}
+
+	public static void main(String[] args) {
+		Random random = new Random(0);
+
+		checkCountMatches(random);
+		checkSelectBest(random);
+		System.out.println("OK");
+
+		List<Candidate> candidates = new ArrayList<Candidate>();
+		for (int i = 0; i < CANDIDATES; i++) {
+			candidates.add(new Candidate(randomText(random, 2 + random.nextInt(6), " "),
+					"http://" + randomText(random, 1 + random.nextInt(3), ".") + ".com/" + randomText(random, random.nextInt(4), "/"),
+					random.nextInt(100)));
+		}
+
+		// Warm up both approaches before timing either
+		for (int round = 0; round < ROUNDS; round++) {
+			for (String pattern : PATTERNS) {
+				scoreWithSplit(candidates, pattern);
+				scoreWithScorer(candidates, pattern);
+			}
+		}
+
+		for (String pattern : PATTERNS) {
+			long splitNanos = Long.MAX_VALUE;
+			long scorerNanos = Long.MAX_VALUE;
+			for (int round = 0; round < ROUNDS; round++) {
+				long start = System.nanoTime();
+				scoreWithSplit(candidates, pattern);
+				splitNanos = Math.min(splitNanos, System.nanoTime() - start);
+
+				start = System.nanoTime();
+				scoreWithScorer(candidates, pattern);
+				scorerNanos = Math.min(scorerNanos, System.nanoTime() - start);
+			}
+			System.out.println(String.format("%-8s split + full sort %7.2f ms   scorer + selectBest %6.2f ms",
+					pattern, splitNanos / 1e6, scorerNanos / 1e6));
+		}
+	}
+
+	// countMatches must agree with a plain indexOf() count of non-overlapping
+	// occurrences, including characters which share a low byte in the shift table.
+	private static void checkCountMatches(Random random) {
+		String alphabet = "abcab.\u0161\u0261\u0361\u4e00";
+		for (int i = 0; i < 200000; i++) {
+			String pattern = randomString(random, alphabet, 1 + random.nextInt(4));
+			String text = randomString(random, alphabet, random.nextInt(40));
+			UrlSuggestionScorer scorer = new UrlSuggestionScorer(pattern);
+
+			int expected = 0;
+			int from = 0;
+			String lowerPattern = scorer.getLowerPattern();
+			while ((from = text.indexOf(lowerPattern, from)) >= 0) {
+				expected++;
+				from += lowerPattern.length();
+			}
+
+			check(scorer.countMatches(text) == expected, "countMatches(\"" + text + "\") for \"" + pattern + "\"");
+		}
+
+		UrlSuggestionScorer scorer = new UrlSuggestionScorer("C++");
+		check(scorer.countMatches("c++ and c++") == 2, "countMatches with regex metacharacters");
+		check(scorer.countMatches("news c") == 0, "countMatches at the end of the text");
+	}
+
+	// selectBest must put the same notes and weights first, in the same order,
+	// as a full sort, including when many notes are equal.
+	private static void checkSelectBest(Random random) {
+		for (int i = 0; i < 2000; i++) {
+			int count = random.nextInt(300);
+			int n = random.nextInt(80);
+			int distinctNotes = 1 + random.nextInt(10);
+
+			int[] candidates = new int[count];
+			float[] notes = new float[count];
+			float[] weights = new float[count];
+			Integer[] sorted = new Integer[count];
+			for (int j = 0; j < count; j++) {
+				candidates[j] = j;
+				notes[j] = random.nextInt(distinctNotes);
+				weights[j] = random.nextInt(5);
+				sorted[j] = j;
+			}
+
+			final float[] originalNotes = notes.clone();
+			final float[] originalWeights = weights.clone();
+			Arrays.sort(sorted, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					int result = Float.compare(originalNotes[b], originalNotes[a]);
+					if (result == 0) {
+						result = Float.compare(originalWeights[b], originalWeights[a]);
+					}
+					return result;
+				}
+			});
+
+			int selected = UrlSuggestionScorer.selectBest(candidates, notes, weights, count, n);
+			check(selected == Math.min(n, count), "selectBest count");
+			for (int j = 0; j < selected; j++) {
+				check(notes[j] == originalNotes[sorted[j]] && weights[j] == originalWeights[sorted[j]],
+						"selectBest order at " + j);
+				check(notes[j] == originalNotes[candidates[j]] && weights[j] == originalWeights[candidates[j]],
+						"selectBest moved a candidate without its note");
+			}
+		}
+	}
+
+	// UrlSuggestionItem.computeNote before the scorer, with a full sort as
+	// UrlSuggestionItemComparator did.
+	private static void scoreWithSplit(List<Candidate> candidates, String pattern) {
+		List<Candidate> scored = new ArrayList<Candidate>(candidates.size());
+		for (Candidate candidate : candidates) {
+			String lowerPattern = pattern.toLowerCase();
+
+			int titleMatchCount;
+			String title = candidate.mTitle.toLowerCase();
+			if (title.equals(lowerPattern)) {
+				titleMatchCount = 1;
+			} else {
+				titleMatchCount = title.split(lowerPattern).length - 1;
+			}
+
+			String url = candidate.mUrl.toLowerCase();
+			int urlMatchCount = url.split("\\Q" + lowerPattern + "\\E").length - 1;
+
+			candidate.mNote = titleMatchCount * 2 + urlMatchCount;
+			scored.add(candidate);
+		}
+
+		Collections.sort(scored, new Comparator<Candidate>() {
+			@Override
+			public int compare(Candidate object1, Candidate object2) {
+				Float value1 = new Float(object1.mNote);
+				Float value2 = new Float(object2.mNote);
+				int result = value2.compareTo(value1);
+				if (result == 0) {
+					result = Float.compare(object2.mWeight, object1.mWeight);
+				}
+				return result;
+			}
+		});
+	}
+
+	private static int scoreWithScorer(List<Candidate> candidates, String pattern) {
+		UrlSuggestionScorer scorer = new UrlSuggestionScorer(pattern);
+		int count = candidates.size();
+		int[] indexes = new int[count];
+		float[] notes = new float[count];
+		float[] weights = new float[count];
+		for (int i = 0; i < count; i++) {
+			Candidate candidate = candidates.get(i);
+			indexes[i] = i;
+			notes[i] = scorer.computeNote(candidate.mLowerTitle, candidate.mLowerUrl, 1);
+			weights[i] = candidate.mWeight;
+		}
+		return UrlSuggestionScorer.selectBest(indexes, notes, weights, count, SHOWN);
+	}
+
+	private static String randomText(Random random, int words, String separator) {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < words; i++) {
+			if (i > 0) {
+				text.append(separator);
+			}
+			text.append(WORDS[random.nextInt(WORDS.length)]);
+		}
+		return text.toString();
+	}
+
+	private static String randomString(Random random, String alphabet, int length) {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < length; i++) {
+			text.append(alphabet.charAt(random.nextInt(alphabet.length())));
+		}
+		return text.toString();
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+}
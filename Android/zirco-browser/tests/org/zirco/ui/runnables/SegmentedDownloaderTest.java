@@ -0,0 +1,447 @@
+/*
+ * Zirco Browser for Android
+ *
+ * Copyright (C) 2010 J. Devauchelle and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 3 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package org.zirco.ui.runnables;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+// Runs SegmentedDownloader against a local com.sun.net.httpserver stand-in
+// which can ignore Range, cut a response short and change the file under a
+// resumed download. SegmentedDownloader only uses java.net, so this runs on a
+// desktop JVM:
+//
+//   javac -d /tmp/downloader src/org/zirco/ui/runnables/SegmentedDownloader.java tests/org/zirco/ui/runnables/SegmentedDownloaderTest.java
+//   java -cp /tmp/downloader org.zirco.ui.runnables.SegmentedDownloaderTest
+//
+// (from Android/zirco-browser). Prints "OK" or throws on the first mismatch.
+public class SegmentedDownloaderTest {
+
+	// Large enough for the maximum of four segments.
+	private static final int FILE_SIZE = 3 * 1024 * 1024 + 123;
+
+	private static final int CUT_AFTER = 100000;
+
+	private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			return new Thread(r, "Segment");
+		}
+	};
+
+	private static final SegmentedDownloader.ProgressListener LISTENER = new SegmentedDownloader.ProgressListener() {
+		@Override
+		public void onProgress(long downloaded, long size) {
+		}
+	};
+
+	/**
+	 * Serves one file, honouring Range and If-Range unless told otherwise,
+	 * and records the requests.
+	 */
+	private static final class TestServer implements HttpHandler {
+
+		/**
+		 * Cut the response to every request, rather than to the one at mCutStart.
+		 */
+		static final long CUT_ALL = -1;
+		static final long CUT_NONE = -2;
+
+		private final HttpServer mServer;
+		private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+
+		volatile byte[] mContent;
+		volatile String mETag;
+		volatile String mLastModified;
+		volatile boolean mHonourRange = true;
+		volatile long mCutStart = CUT_NONE;
+
+		private final List<String> mRequests = new ArrayList<String>();
+
+		TestServer() throws IOException {
+			mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+			mServer.createContext("/", this);
+			// Segments are requested in parallel, while the first response is still open.
+			mServer.setExecutor(mExecutor);
+			mServer.start();
+		}
+
+		URL getUrl() throws IOException {
+			return new URL("http://127.0.0.1:" + mServer.getAddress().getPort() + "/file");
+		}
+
+		void stop() {
+			mServer.stop(0);
+			mExecutor.shutdownNow();
+		}
+
+		/**
+		 * Get the requests since the last call, as "range" or "range if-range".
+		 */
+		List<String> takeRequests() {
+			synchronized (mRequests) {
+				List<String> requests = new ArrayList<String>(mRequests);
+				mRequests.clear();
+				return requests;
+			}
+		}
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				String range = exchange.getRequestHeaders().getFirst("Range");
+				String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+				synchronized (mRequests) {
+					mRequests.add(ifRange != null ? range + " " + ifRange : range);
+				}
+
+				byte[] content = mContent;
+				boolean partial = (mHonourRange) &&
+						(range != null) &&
+						((ifRange == null) || (ifRange.equals(mETag)) || (ifRange.equals(mLastModified)));
+
+				int first = 0;
+				int last = content.length - 1;
+				if (partial) {
+					int dash = range.indexOf('-');
+					first = Integer.parseInt(range.substring("bytes=".length(), dash));
+					if (dash + 1 < range.length()) {
+						last = Math.min(last, Integer.parseInt(range.substring(dash + 1)));
+					}
+					exchange.getResponseHeaders().set("Content-Range", "bytes " + first + "-" + last + "/" + content.length);
+				}
+				if (mETag != null) {
+					exchange.getResponseHeaders().set("ETag", mETag);
+				}
+				if (mLastModified != null) {
+					exchange.getResponseHeaders().set("Last-Modified", mLastModified);
+				}
+				exchange.sendResponseHeaders(partial ? 206 : 200, last - first + 1);
+
+				int end = last + 1;
+				if ((mCutStart == CUT_ALL) ||
+						(mCutStart == first)) {
+					end = Math.min(end, first + CUT_AFTER);
+				}
+
+				OutputStream os = exchange.getResponseBody();
+				for (int position = first; position < end; position += 8192) {
+					os.write(content, position, Math.min(8192, end - position));
+				}
+				os.flush();
+			} catch (IOException e) {
+				// The client closed the connection, e.g. after the first segment.
+			} finally {
+				try {
+					// Closes the connection when fewer bytes than announced were written.
+					exchange.close();
+				} catch (RuntimeException e) {
+				}
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		TestServer server = new TestServer();
+		try {
+			checkRanged(server);
+			checkRangeIgnored(server);
+			checkCutAndResumed(server);
+			checkETagChanged(server);
+			checkAllSegmentsCut(server);
+			checkETagChangedLastModifiedNot(server);
+			checkLocalFileResized(server);
+		} finally {
+			server.stop();
+		}
+
+		System.out.println("OK");
+	}
+
+	// The server honours Range: the file is split in four segments, the first
+	// read from the first request.
+	private static void checkRanged(TestServer server) throws Exception {
+		reset(server, 1);
+		File file = newFile();
+
+		SegmentedDownloader downloader = newDownloader(server, file);
+		downloader.download();
+
+		checkFile(file, server.mContent);
+		check(downloader.getSize() == FILE_SIZE, "ranged: size");
+		check(downloader.getETag().equals(server.mETag), "ranged: ETag");
+
+		List<String> requests = server.takeRequests();
+		check(requests.size() == 4, "ranged: " + requests);
+		check(requests.get(0).equals("bytes=0-"), "ranged: first request " + requests.get(0));
+		for (long[] segment : parseSegments(downloader.getSegments())) {
+			check(segment[0] == segment[1], "ranged: incomplete segment in " + downloader.getSegments());
+		}
+	}
+
+	// The server answers the first request with the whole file: it is
+	// downloaded as a single stream, and can't be resumed.
+	private static void checkRangeIgnored(TestServer server) throws Exception {
+		reset(server, 2);
+		server.mHonourRange = false;
+		File file = newFile();
+
+		SegmentedDownloader downloader = newDownloader(server, file);
+		downloader.download();
+
+		checkFile(file, server.mContent);
+		check(downloader.getSegments() == null, "range ignored: segments " + downloader.getSegments());
+		check(server.takeRequests().size() == 1, "range ignored: requests");
+	}
+
+	// The second segment's response is cut: the download fails with its
+	// state saved, and a new downloader asks only for the missing ranges,
+	// validated with If-Range.
+	private static void checkCutAndResumed(TestServer server) throws Exception {
+		reset(server, 3);
+		server.mCutStart = FILE_SIZE / 4;
+		File file = newFile();
+
+		SegmentedDownloader downloader = newDownloader(server, file);
+		checkFails(downloader, "cut");
+		String segments = downloader.getSegments();
+		long[] cut = parseSegments(segments)[1];
+		check((cut[0] > FILE_SIZE / 4) && (cut[0] < cut[1]), "cut: second segment state " + segments);
+		server.takeRequests();
+
+		server.mCutStart = TestServer.CUT_NONE;
+		SegmentedDownloader resumed = newDownloader(server, file);
+		resumed.setResumeState(downloader.getSize(), downloader.getETag(), downloader.getLastModified(), segments);
+		resumed.download();
+
+		checkFile(file, server.mContent);
+		checkResumeRequests(server.takeRequests(), segments, server.mETag, "cut");
+	}
+
+	// The file changes on the server between the cut and the resume: the
+	// If-Range request gets the whole file, and it is downloaded again from
+	// the start.
+	private static void checkETagChanged(TestServer server) throws Exception {
+		reset(server, 4);
+		server.mCutStart = FILE_SIZE / 4;
+		File file = newFile();
+
+		SegmentedDownloader downloader = newDownloader(server, file);
+		checkFails(downloader, "ETag changed");
+		String oldETag = downloader.getETag();
+
+		server.mCutStart = TestServer.CUT_NONE;
+		server.mContent = newContent(5);
+		server.mETag = "\"5\"";
+		server.takeRequests();
+
+		SegmentedDownloader resumed = newDownloader(server, file);
+		resumed.setResumeState(downloader.getSize(), oldETag, downloader.getLastModified(), downloader.getSegments());
+		resumed.download();
+
+		checkFile(file, server.mContent);
+		check(resumed.getETag().equals("\"5\""), "ETag changed: new ETag");
+		List<String> requests = server.takeRequests();
+		check(requests.get(0).endsWith(" " + oldETag), "ETag changed: first request " + requests);
+		check(requests.contains("bytes=0-"), "ETag changed: not downloaded again " + requests);
+	}
+
+	// Every response is cut, twice: each resume goes on from where the
+	// previous run stopped, through the state as saved in database, until a
+	// run completes the file.
+	private static void checkAllSegmentsCut(TestServer server) throws Exception {
+		reset(server, 6);
+		server.mCutStart = TestServer.CUT_ALL;
+		File file = newFile();
+
+		SegmentedDownloader downloader = newDownloader(server, file);
+		checkFails(downloader, "all cut");
+		String segments = downloader.getSegments();
+		check(parseSegments(segments).length == 4, "all cut: segments " + segments);
+		server.takeRequests();
+
+		SegmentedDownloader resumed = newDownloader(server, file);
+		resumed.setResumeState(downloader.getSize(), downloader.getETag(), downloader.getLastModified(), segments);
+		checkFails(resumed, "all cut, first resume");
+		checkResumeRequests(server.takeRequests(), segments, server.mETag, "all cut, first resume");
+		String resumedSegments = resumed.getSegments();
+		long[][] before = parseSegments(segments);
+		long[][] after = parseSegments(resumedSegments);
+		for (int i = 0; i < before.length; i++) {
+			check((after[i][0] >= before[i][0]) && (after[i][1] == before[i][1]),
+					"all cut: segments went back from " + segments + " to " + resumedSegments);
+		}
+
+		server.mCutStart = TestServer.CUT_NONE;
+		SegmentedDownloader completed = newDownloader(server, file);
+		completed.setResumeState(resumed.getSize(), resumed.getETag(), resumed.getLastModified(), resumedSegments);
+		completed.download();
+
+		checkFile(file, server.mContent);
+		checkResumeRequests(server.takeRequests(), resumedSegments, server.mETag, "all cut, second resume");
+	}
+
+	// The ETag changes but not the Last-Modified date, e.g. the file was
+	// replaced within the same second: the strong ETag is the validator, so
+	// the file is downloaded again rather than mixed with the new one.
+	private static void checkETagChangedLastModifiedNot(TestServer server) throws Exception {
+		reset(server, 7);
+		server.mCutStart = FILE_SIZE / 2;
+		File file = newFile();
+
+		SegmentedDownloader downloader = newDownloader(server, file);
+		checkFails(downloader, "ETag changed, Last-Modified not");
+
+		server.mCutStart = TestServer.CUT_NONE;
+		server.mContent = newContent(8);
+		server.mETag = "\"8\"";
+		server.takeRequests();
+
+		SegmentedDownloader resumed = newDownloader(server, file);
+		resumed.setResumeState(downloader.getSize(), downloader.getETag(), downloader.getLastModified(), downloader.getSegments());
+		resumed.download();
+
+		checkFile(file, server.mContent);
+		List<String> requests = server.takeRequests();
+		check(requests.get(0).endsWith(" \"7\""), "ETag changed, Last-Modified not: first request " + requests);
+		check(requests.contains("bytes=0-"), "ETag changed, Last-Modified not: not downloaded again " + requests);
+	}
+
+	// The local file no longer has the size of the download, e.g. it was
+	// truncated or replaced: the saved segments aren't asked for, and the
+	// file is downloaded again from the start.
+	private static void checkLocalFileResized(TestServer server) throws Exception {
+		long[] sizes = { FILE_SIZE / 3, FILE_SIZE + 1000 };
+		for (long size : sizes) {
+			reset(server, 9);
+			server.mCutStart = FILE_SIZE / 4;
+			File file = newFile();
+
+			SegmentedDownloader downloader = newDownloader(server, file);
+			checkFails(downloader, "local file resized");
+
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(size);
+			} finally {
+				raf.close();
+			}
+			server.mCutStart = TestServer.CUT_NONE;
+			server.takeRequests();
+
+			SegmentedDownloader resumed = newDownloader(server, file);
+			resumed.setResumeState(downloader.getSize(), downloader.getETag(), downloader.getLastModified(), downloader.getSegments());
+			resumed.download();
+
+			checkFile(file, server.mContent);
+			List<String> requests = server.takeRequests();
+			check(requests.get(0).equals("bytes=0-"), "local file resized to " + size + ": first request " + requests);
+		}
+	}
+
+	private static void reset(TestServer server, int seed) {
+		server.mContent = newContent(seed);
+		server.mETag = "\"" + seed + "\"";
+		server.mLastModified = "Mon, 0" + seed + " Jun 2015 10:00:00 GMT";
+		server.mHonourRange = true;
+		server.mCutStart = TestServer.CUT_NONE;
+		server.takeRequests();
+	}
+
+	private static byte[] newContent(int seed) {
+		byte[] content = new byte[FILE_SIZE];
+		new Random(seed).nextBytes(content);
+		return content;
+	}
+
+	private static File newFile() throws IOException {
+		File file = File.createTempFile("download", ".bin");
+		file.deleteOnExit();
+		return file;
+	}
+
+	private static SegmentedDownloader newDownloader(TestServer server, File file) throws IOException {
+		return new SegmentedDownloader(server.getUrl(), null, file, THREAD_FACTORY, LISTENER);
+	}
+
+	private static void checkFails(SegmentedDownloader downloader, String name) {
+		try {
+			downloader.download();
+		} catch (IOException e) {
+			return;
+		}
+		throw new AssertionError(name + ": download didn't fail");
+	}
+
+	/**
+	 * Each incomplete segment, and only those, must be asked for from its
+	 * saved position, with the validator.
+	 */
+	private static void checkResumeRequests(List<String> requests, String segments, String validator, String name) {
+		List<String> expected = new ArrayList<String>();
+		for (long[] segment : parseSegments(segments)) {
+			if (segment[0] < segment[1]) {
+				expected.add("bytes=" + segment[0] + "-" + (segment[1] - 1) + " " + validator);
+			}
+		}
+		check(!expected.isEmpty(), name + ": nothing to resume in " + segments);
+		check(requests.size() == expected.size() && requests.containsAll(expected),
+				name + ": requests " + requests + " for " + segments);
+	}
+
+	private static long[][] parseSegments(String segments) {
+		check(segments != null, "no segments");
+		String[] ranges = segments.split(",");
+		long[][] parsed = new long[ranges.length][];
+		for (int i = 0; i < ranges.length; i++) {
+			int dash = ranges[i].indexOf('-');
+			parsed[i] = new long[] { Long.parseLong(ranges[i].substring(0, dash)), Long.parseLong(ranges[i].substring(dash + 1)) };
+		}
+		return parsed;
+	}
+
+	private static void checkFile(File file, byte[] content) throws IOException {
+		byte[] data = new byte[(int) file.length()];
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			raf.readFully(data);
+		} finally {
+			raf.close();
+		}
+		check(Arrays.equals(data, content), "file content differs");
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+}
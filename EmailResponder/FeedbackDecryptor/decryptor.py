@@ -16,6 +16,8 @@
 
 
 from base64 import b64decode
+import gzip
+from StringIO import StringIO
 import M2Crypto
 
 from config import config
@@ -87,4 +89,12 @@ def decrypt(data):
     plaintext = aesCipher.update(ciphertext)
     plaintext += aesCipher.final()
 
+    # Newer Android clients gzip the content before encrypting it. The JSON
+    # content never starts with the gzip magic bytes.
+    if plaintext[:2] == '\x1f\x8b':
+        try:
+            plaintext = gzip.GzipFile(fileobj=StringIO(plaintext)).read()
+        except IOError:
+            raise DecryptorException("can't decompress content")
+
     return plaintext